@@ -0,0 +1,17 @@
+function loop(counter, n) {
+	if (n == 0) {
+		return counter.count;
+	} else {
+		counter.add(1).add(2);
+		return loop(counter, n - 1);
+	}
+}
+
+var counter = {
+	count: 0,
+	add: function (n) {
+		this.count = this.count + n;
+		return this;
+	}
+};
+print(loop(counter, 5000));
@@ -0,0 +1,18 @@
+function makeList(n) {
+	if (n == 0) {
+		return undefined;
+	} else {
+		return { value: n, next: makeList(n - 1) };
+	}
+}
+
+function loop(n, sum) {
+	if (n == 0) {
+		return sum;
+	} else {
+		var list = makeList(100);
+		return loop(n - 1, sum + list.value);
+	}
+}
+
+print(loop(2000, 0));
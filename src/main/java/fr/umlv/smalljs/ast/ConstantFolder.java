@@ -0,0 +1,128 @@
+package fr.umlv.smalljs.ast;
+
+import fr.umlv.smalljs.ast.Expr.Block;
+import fr.umlv.smalljs.ast.Expr.FieldAccess;
+import fr.umlv.smalljs.ast.Expr.FieldAssignment;
+import fr.umlv.smalljs.ast.Expr.Folded;
+import fr.umlv.smalljs.ast.Expr.Fun;
+import fr.umlv.smalljs.ast.Expr.FunCall;
+import fr.umlv.smalljs.ast.Expr.If;
+import fr.umlv.smalljs.ast.Expr.Literal;
+import fr.umlv.smalljs.ast.Expr.LocalVarAccess;
+import fr.umlv.smalljs.ast.Expr.LocalVarAssignment;
+import fr.umlv.smalljs.ast.Expr.MethodCall;
+import fr.umlv.smalljs.ast.Expr.New;
+import fr.umlv.smalljs.ast.Expr.Return;
+import fr.umlv.smalljs.rt.JSObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+
+// evaluate at compile time the operators called with two literals (integers or strings),
+// the operators are the functions of the global environment, so each interpreter keeps its own semantics,
+// an operator can be redefined afterward, so a folded call keeps the operators it depends on
+// and the interpreters check them before using the folded value
+public final class ConstantFolder {
+  private static final Set<String> OPERATORS = Set.of("+", "-", "*", "/", "%", "==", "!=", "<", "<=", ">", ">=");
+
+  private ConstantFolder() {
+    throw new AssertionError();
+  }
+
+  public static Script fold(Script script, JSObject globalEnv) {
+    return new Script(fold(script.body(), globalEnv));
+  }
+
+  public static Block fold(Block block, JSObject globalEnv) {
+    return new Block(foldAll(block.instrs(), globalEnv), block.lineNumber());
+  }
+
+  private static List<Expr> foldAll(List<Expr> exprs, JSObject globalEnv) {
+    return exprs.stream().map(expr -> fold(expr, globalEnv)).toList();
+  }
+
+  public static Expr fold(Expr expression, JSObject globalEnv) {
+    return switch (expression) {
+      case Block block -> fold(block, globalEnv);
+      case Literal<?> literal -> literal;
+      case Folded folded -> folded;
+      case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
+        var newArgs = foldAll(args, globalEnv);
+        yield foldOperator(qualifier, newArgs, globalEnv, lineNumber)
+            .orElseGet(() -> new FunCall(fold(qualifier, globalEnv), newArgs, lineNumber));
+      }
+      case LocalVarAccess localVarAccess -> localVarAccess;
+      case LocalVarAssignment(String name, Expr expr, boolean declaration, int lineNumber) ->
+          new LocalVarAssignment(name, fold(expr, globalEnv), declaration, lineNumber);
+      case Fun(Optional<String> optName, List<String> parameters, Block body, int lineNumber) ->
+          new Fun(optName, parameters, fold(body, globalEnv), lineNumber);
+      case Return(Expr expr, int lineNumber) -> new Return(fold(expr, globalEnv), lineNumber);
+      case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) ->
+          new If(fold(condition, globalEnv), fold(trueBlock, globalEnv), fold(falseBlock, globalEnv), lineNumber);
+      case New(Map<String, Expr> initMap, int lineNumber) -> {
+        // keep the order of the fields
+        var newInitMap = new LinkedHashMap<String, Expr>();
+        initMap.forEach((fieldName, expr) -> newInitMap.put(fieldName, fold(expr, globalEnv)));
+        yield new New(newInitMap, lineNumber);
+      }
+      case FieldAccess(Expr receiver, String name, int lineNumber) ->
+          new FieldAccess(fold(receiver, globalEnv), name, lineNumber);
+      case FieldAssignment(Expr receiver, String name, Expr expr, int lineNumber) ->
+          new FieldAssignment(fold(receiver, globalEnv), name, fold(expr, globalEnv), lineNumber);
+      case MethodCall(Expr receiver, String name, List<Expr> args, int lineNumber) ->
+          new MethodCall(fold(receiver, globalEnv), name, foldAll(args, globalEnv), lineNumber);
+    };
+  }
+
+  private static boolean isFoldable(Object value) {
+    return value instanceof Integer || value instanceof String;
+  }
+
+  // the value of a literal or of a folded call, null if the expression is not a constant
+  private static Object constantValue(Expr expression) {
+    return switch (expression) {
+      case Literal<?>(Object value, int _) when isFoldable(value) -> value;
+      case Folded(Object value, FunCall _, Map<String, Object> _, int _) -> value;
+      default -> null;
+    };
+  }
+
+  private static Optional<Expr> foldOperator(Expr qualifier, List<Expr> args, JSObject globalEnv, int lineNumber) {
+    if (!(qualifier instanceof LocalVarAccess(String name, int _))
+        || !OPERATORS.contains(name)
+        || args.size() != 2
+        || !(globalEnv.lookup(name) instanceof JSObject operator)) {
+      return Optional.empty();
+    }
+    var left = constantValue(args.get(0));
+    var right = constantValue(args.get(1));
+    if (left == null || right == null) {
+      return Optional.empty();
+    }
+    Object result;
+    try {
+      result = operator.invoke(UNDEFINED, new Object[] { left, right });
+    } catch (RuntimeException e) {
+      // the error will be reported when the code is executed
+      return Optional.empty();
+    }
+    if (!isFoldable(result)) {
+      return Optional.empty();
+    }
+    // the value depends on the operator and on the operators of the folded arguments
+    var operators = new HashMap<String, Object>();
+    operators.put(name, operator);
+    for (var arg : args) {
+      if (arg instanceof Folded folded) {
+        operators.putAll(folded.operators());
+      }
+    }
+    return Optional.of(new Folded(result, new FunCall(qualifier, args, lineNumber), operators, lineNumber));
+  }
+}
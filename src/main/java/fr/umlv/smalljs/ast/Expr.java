@@ -50,6 +50,17 @@ public sealed interface Expr {
     }
   }
 
+  // a call to operators evaluated by the ConstantFolder, the value is only valid
+  // while the operators of the global environment are the functions used to compute it,
+  // otherwise the call (with its arguments already folded) is evaluated
+  record Folded(Object value, FunCall call, Map<String, Object> operators, int lineNumber) implements Expr {
+    public Folded {
+      requireNonNull(value);
+      requireNonNull(call);
+      operators = Map.copyOf(operators);
+    }
+  }
+
   record If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) implements Expr, Instr{
     public If {
       requireNonNull(condition);
@@ -4,6 +4,7 @@ import fr.umlv.smalljs.ast.Expr;
 import fr.umlv.smalljs.ast.Expr.Block;
 import fr.umlv.smalljs.ast.Expr.FieldAccess;
 import fr.umlv.smalljs.ast.Expr.FieldAssignment;
+import fr.umlv.smalljs.ast.Expr.Folded;
 import fr.umlv.smalljs.ast.Expr.Fun;
 import fr.umlv.smalljs.ast.Expr.FunCall;
 import fr.umlv.smalljs.ast.Expr.If;
@@ -45,6 +46,12 @@ public final class ASTInterpreter {
       case Literal<?>(Object value, int lineNumber) -> {
         throw new UnsupportedOperationException("TODO Literal");
       }
+      case Folded(Object value, FunCall call, Map<String, Object> operators, int lineNumber) -> {
+        // not created for now, interpret does not run the ConstantFolder until Literal and FunCall are implemented,
+        // the folded value is only valid if the operators have not been redefined
+        var unchanged = operators.entrySet().stream().allMatch(e -> env.lookup(e.getKey()) == e.getValue());
+        yield unchanged ? value : visit(call, env);
+      }
       case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
         throw new UnsupportedOperationException("TODO FunCall");
       }
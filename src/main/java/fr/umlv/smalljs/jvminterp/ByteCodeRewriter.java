@@ -13,6 +13,7 @@ import java.lang.invoke.MethodType;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.StringJoiner;
 
 import fr.umlv.smalljs.rt.Failure;
@@ -23,6 +24,7 @@ import fr.umlv.smalljs.ast.Expr;
 import fr.umlv.smalljs.ast.Expr.Block;
 import fr.umlv.smalljs.ast.Expr.FieldAccess;
 import fr.umlv.smalljs.ast.Expr.FieldAssignment;
+import fr.umlv.smalljs.ast.Expr.Folded;
 import fr.umlv.smalljs.ast.Expr.Fun;
 import fr.umlv.smalljs.ast.Expr.FunCall;
 import fr.umlv.smalljs.ast.Expr.If;
@@ -100,6 +102,9 @@ public final class ByteCodeRewriter {
             case Literal<?>(Object value, int lineNumber) -> {
                 // do nothing
             }
+            case Folded(Object value, FunCall call, Map<String, Object> operators, int lineNumber) -> {
+                // do nothing
+            }
             case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
                 // do nothing
             }
@@ -154,6 +159,11 @@ public final class ByteCodeRewriter {
     private static final Handle BSM_GET = bsm("bsm_get", CallSite.class, Lookup.class, String.class, MethodType.class, String.class);
     private static final Handle BSM_SET = bsm("bsm_set", CallSite.class, Lookup.class, String.class, MethodType.class, String.class);
     private static final Handle BSM_METHODCALL = bsm("bsm_methodcall", CallSite.class, Lookup.class, String.class, MethodType.class);
+    private static final Handle BSM_OP = bsm("bsm_op", CallSite.class, Lookup.class, String.class, MethodType.class, String.class);
+    private static final Handle BSM_BUILTIN = bsm("bsm_builtin", CallSite.class, Lookup.class, String.class, MethodType.class, String[].class);
+
+    // the operators of the global environment, a call with two arguments is linked by bsm_op
+    private static final Set<String> OPERATORS = Set.of("+", "-", "*", "/", "%", "==", "!=", "<", "<=", ">", ">=");
 
     private static void visit(Expr expression, JSObject env, MethodVisitor mv, FunDictionary dictionary) {
         switch(expression) {
@@ -187,6 +197,33 @@ public final class ByteCodeRewriter {
                 default -> throw new IllegalStateException("Unexpected value: " + value);
                 }
             }
+            case Folded(Object value, FunCall call, Map<String, Object> operators, int lineNumber) -> {
+                // the folded value is computed by the builtin operators, otherwise only the call is generated
+                if (!operators.entrySet().stream().allMatch(e -> RT.isBuiltinOperator(e.getKey(), e.getValue()))) {
+                    visit(call, env, mv, dictionary);
+                    return;
+                }
+                // generate an invokedynamic "builtin" with the names of the operators,
+                // if one of them has been redefined, jump to the call
+                var callLabel = new Label();
+                var endLabel = new Label();
+                mv.visitInvokeDynamicInsn("builtin", "()Z", BSM_BUILTIN, operators.keySet().toArray());
+                mv.visitJumpInsn(IFEQ, callLabel);
+                visit(new Literal<>(value, lineNumber), env, mv, dictionary);
+                mv.visitJumpInsn(GOTO, endLabel);
+                mv.visitLabel(callLabel);
+                visit(call, env, mv, dictionary);
+                mv.visitLabel(endLabel);
+            }
+            case FunCall(Expr qualifier, List<Expr> args, int lineNumber)
+                    when qualifier instanceof LocalVarAccess(String name, int _) && args.size() == 2
+                    && OPERATORS.contains(name) && env.lookup(name) == JSObject.UNDEFINED -> {
+                // a call to an operator, visit the arguments
+                visit(args.get(0), env, mv, dictionary);
+                visit(args.get(1), env, mv, dictionary);
+                // generate an invokedynamic "op" with the name of the operator
+                mv.visitInvokeDynamicInsn("op", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", BSM_OP, name);
+            }
             case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
                 // visit the qualifier
                 visit(qualifier, env, mv, dictionary);
@@ -265,28 +302,44 @@ public final class ByteCodeRewriter {
                 mv.visitLabel(labelEnd);
             }
             case New(Map<String, Expr> initMap, int lineNumber) -> {
-                throw new UnsupportedOperationException("TODO New");
                 // call newObject with an INVOKESTATIC
+                mv.visitInsn(ACONST_NULL);
+                mv.visitMethodInsn(INVOKESTATIC, JSOBJECT, "newObject", "(L" + JSOBJECT + ";)L" + JSOBJECT + ";", false);
                 // for each initialization expression
-                // generate a string with the key
-                // call register on the JSObject
+                initMap.forEach((key, init) -> {
+                    mv.visitInsn(DUP);
+                    // generate a string with the key
+                    mv.visitLdcInsn(key);
+                    visit(init, env, mv, dictionary);
+                    // call register on the JSObject
+                    mv.visitMethodInsn(INVOKEVIRTUAL, JSOBJECT, "register", "(Ljava/lang/String;Ljava/lang/Object;)V", false);
+                });
             }
             case FieldAccess(Expr receiver, String name, int lineNumber) -> {
-                throw new UnsupportedOperationException("TODO FieldAccess");
                 // visit the receiver
+                visit(receiver, env, mv, dictionary);
                 // generate an invokedynamic that goes a get through BSM_GET
+                mv.visitInvokeDynamicInsn("get", "(Ljava/lang/Object;)Ljava/lang/Object;", BSM_GET, name);
             }
             case FieldAssignment(Expr receiver, String name, Expr expr, int lineNumber) -> {
-                throw new UnsupportedOperationException("TODO FieldAssignment");
                 // visit the receiver
+                visit(receiver, env, mv, dictionary);
                 // visit the expression
+                visit(expr, env, mv, dictionary);
+                // generate an invokedynamic that goes a set through BSM_SET
+                mv.visitInvokeDynamicInsn("set", "(Ljava/lang/Object;Ljava/lang/Object;)V", BSM_SET, name);
             }
             case MethodCall(Expr receiver, String name, List<Expr> args, int lineNumber) -> {
-                throw new UnsupportedOperationException("TODO MethodCall");
                 // visit the receiver
+                visit(receiver, env, mv, dictionary);
                 // for each argument
-                // visit the argument
-                // generate an invokedynamic that call BSM_METHODCALL
+                for (var arg : args) {
+                    // visit the argument
+                    visit(arg, env, mv, dictionary);
+                }
+                // generate an invokedynamic that call BSM_METHODCALL, the name of the method is the name of the invokedynamic
+                var descriptor = "(" + ("Ljava/lang/Object;".repeat(args.size() + 1)) + ")Ljava/lang/Object;";
+                mv.visitInvokeDynamicInsn(name, descriptor, BSM_METHODCALL);
             }
         }
     }
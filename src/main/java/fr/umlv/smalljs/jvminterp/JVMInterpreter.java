@@ -7,12 +7,12 @@ import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.List;
 
+import fr.umlv.smalljs.ast.ConstantFolder;
 import fr.umlv.smalljs.ast.Expr.Block;
 import fr.umlv.smalljs.ast.Script;
 import fr.umlv.smalljs.rt.JSObject;
 
 public final class JVMInterpreter {
-  @SuppressWarnings("unchecked")
   private static JSObject createGblobalEnv(PrintStream outStream) {
     JSObject globalEnv = JSObject.newEnv(null);
     globalEnv.register("global", globalEnv);
@@ -21,23 +21,23 @@ public final class JVMInterpreter {
       outStream.println(Arrays.stream(args).map(String::valueOf).collect(joining(" ")));
       return UNDEFINED;
     }));
-    globalEnv.register("+", JSObject.newFunction("+", (_, args) -> (Integer) args[0] + (Integer) args[1]));
-    globalEnv.register("-", JSObject.newFunction("-", (_, args) -> (Integer) args[0] - (Integer) args[1]));
-    globalEnv.register("/", JSObject.newFunction("/", (_, args) -> (Integer) args[0] / (Integer) args[1]));
-    globalEnv.register("*", JSObject.newFunction("*", (_, args) -> (Integer) args[0] * (Integer) args[1]));
-    globalEnv.register("%", JSObject.newFunction("%", (_, args) -> (Integer) args[0] % (Integer) args[1]));
-    globalEnv.register("==", JSObject.newFunction("==", (_, args) -> args[0].equals(args[1])));
-    globalEnv.register("!=", JSObject.newFunction("!=", (_, args) -> !args[0].equals(args[1])));
-    globalEnv.register("<", JSObject.newFunction("<",   (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) < 0)));
-    globalEnv.register("<=", JSObject.newFunction("<=", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) <= 0)));
-    globalEnv.register(">", JSObject.newFunction(">",   (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) > 0)));
-    globalEnv.register(">=", JSObject.newFunction(">=", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) >= 0)));
+    globalEnv.register("+", RT.newOperator("+"));
+    globalEnv.register("-", RT.newOperator("-"));
+    globalEnv.register("/", RT.newOperator("/"));
+    globalEnv.register("*", RT.newOperator("*"));
+    globalEnv.register("%", RT.newOperator("%"));
+    globalEnv.register("==", RT.newOperator("=="));
+    globalEnv.register("!=", RT.newOperator("!="));
+    globalEnv.register("<", RT.newOperator("<"));
+    globalEnv.register("<=", RT.newOperator("<="));
+    globalEnv.register(">", RT.newOperator(">"));
+    globalEnv.register(">=", RT.newOperator(">="));
     return globalEnv;
   }
 
   public static void interpret(Script script, PrintStream outStream) {
     JSObject globalEnv = createGblobalEnv(outStream);
-    Block body = script.body();
+    Block body = ConstantFolder.fold(script.body(), globalEnv);
     JSObject function = ByteCodeRewriter.createFunction("main", List.of(), body, globalEnv);
     function.invoke(UNDEFINED, new Object[0]);
   }
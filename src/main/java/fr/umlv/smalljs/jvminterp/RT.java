@@ -13,7 +13,10 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles.Lookup;
 import java.lang.invoke.MethodType;
 import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.Map;
 
+import fr.umlv.smalljs.rt.ArrayMap.Layout;
 import fr.umlv.smalljs.rt.Failure;
 import fr.umlv.smalljs.rt.JSObject;
 
@@ -27,7 +30,7 @@ public final class RT {
       TRUTH = lookup.findStatic(RT.class, "truth", methodType(boolean.class, Object.class));
 
       GET_MH = lookup.findVirtual(JSObject.class, "getMethodHandle", methodType(MethodHandle.class));
-      METH_LOOKUP_MH = lookup.findStatic(RT.class, "lookupMethodHandle", methodType(MethodHandle.class, JSObject.class, String.class));
+      METH_LOOKUP_MH = lookup.findStatic(RT.class, "lookupMethodHandle", methodType(MethodHandle.class, Object.class, String.class, int.class));
       PARAMETER_COUNT_CHECK = lookup.findStatic(RT.class, "parameterCountCheck", methodType(MethodHandle.class, MethodHandle.class, int.class));
     } catch (NoSuchMethodException | IllegalAccessException e) {
       throw new AssertionError(e);
@@ -150,11 +153,48 @@ public final class RT {
   public static CallSite bsm_lookup(Lookup lookup, String name, MethodType type, String functionName) {
     var classLoader = (FunClassLoader) lookup.lookupClass().getClassLoader();
     var globalEnv = classLoader.getGlobal();
-    // get the LOOKUP method handle
-    // use the global environment as first argument and the functionName as second argument
-    var target = insertArguments(LOOKUP, 0, globalEnv, functionName);
-    // create a constant callsite
-    return new ConstantCallSite(target);
+    return new GlobalCache(type, globalEnv, functionName);
+  }
+
+  // the value of a global is a constant guarded by the switch point of its key in the global environment,
+  // a register of the key invalidates the switch point and the value is looked up again,
+  // after MAX_RELINKS invalidations, the call site always does a lookup
+  private static final class GlobalCache extends MutableCallSite {
+    private static final MethodHandle SLOW_PATH;
+
+    static {
+      var lookup = lookup();
+      try {
+        SLOW_PATH = lookup.findVirtual(GlobalCache.class, "slowPath", methodType(Object.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static final int MAX_RELINKS = 8;
+    private final JSObject globalEnv;
+    private final String name;
+    private int relinks;
+
+    private GlobalCache(MethodType type, JSObject globalEnv, String name) {
+      super(type);
+      this.globalEnv = globalEnv;
+      this.name = name;
+      setTarget(SLOW_PATH.bindTo(this));
+    }
+
+    private Object slowPath() {
+      if (++relinks > MAX_RELINKS) {
+        setTarget(insertArguments(LOOKUP, 0, globalEnv, name));
+        return globalEnv.lookup(name);
+      }
+      // the switch point is fetched before the value, so if the global is registered in between,
+      // the switch point is already invalidated and the stale value is never used
+      var switchPoint = globalEnv.getSwitchPoint(name);
+      var value = globalEnv.lookup(name);
+      setTarget(switchPoint.guardWithTest(constant(Object.class, value), SLOW_PATH.bindTo(this)));
+      return value;
+    }
   }
 
   public static Object bsm_fun(Lookup lookup, String name, Class<?> type, int funId) {
@@ -185,32 +225,392 @@ public final class RT {
     return new ConstantCallSite(target);
   }
 
+  // the builtin operators of the global environment, generic is the implementation of the function
+  // (receiver, left, right), intrinsic is the implementation on two ints that throws an ArithmeticException
+  // if the result does not fit in an int
+  private record Operator(MethodHandle generic, MethodHandle intrinsic) {}
+
+  private static final Map<String, Operator> OPERATORS;
+  static {
+    var lookup = lookup();
+    try {
+      var intType = methodType(int.class, int.class, int.class);
+      var booleanType = methodType(boolean.class, int.class, int.class);
+      var genericType = methodType(Object.class, Object.class, Object.class, Object.class);
+      OPERATORS = Map.ofEntries(
+          Map.entry("+", new Operator(lookup.findStatic(RT.class, "add", genericType), lookup.findStatic(Math.class, "addExact", intType))),
+          Map.entry("-", new Operator(lookup.findStatic(RT.class, "sub", genericType), lookup.findStatic(Math.class, "subtractExact", intType))),
+          Map.entry("*", new Operator(lookup.findStatic(RT.class, "mul", genericType), lookup.findStatic(Math.class, "multiplyExact", intType))),
+          Map.entry("/", new Operator(lookup.findStatic(RT.class, "div", genericType), lookup.findStatic(RT.class, "div", intType))),
+          Map.entry("%", new Operator(lookup.findStatic(RT.class, "rem", genericType), lookup.findStatic(RT.class, "rem", intType))),
+          Map.entry("==", new Operator(lookup.findStatic(RT.class, "eq", genericType), lookup.findStatic(RT.class, "eq", booleanType))),
+          Map.entry("!=", new Operator(lookup.findStatic(RT.class, "ne", genericType), lookup.findStatic(RT.class, "ne", booleanType))),
+          Map.entry("<", new Operator(lookup.findStatic(RT.class, "lt", genericType), lookup.findStatic(RT.class, "lt", booleanType))),
+          Map.entry("<=", new Operator(lookup.findStatic(RT.class, "le", genericType), lookup.findStatic(RT.class, "le", booleanType))),
+          Map.entry(">", new Operator(lookup.findStatic(RT.class, "gt", genericType), lookup.findStatic(RT.class, "gt", booleanType))),
+          Map.entry(">=", new Operator(lookup.findStatic(RT.class, "ge", genericType), lookup.findStatic(RT.class, "ge", booleanType))));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  // create the function of a builtin operator, used to initialize the global environment
+  static JSObject newOperator(String name) {
+    var operator = OPERATORS.get(name);
+    if (operator == null) {
+      throw new IllegalArgumentException("unknown operator " + name);
+    }
+    return JSObject.newFunction(name, operator.generic());
+  }
+
+  private static Object add(Object receiver, Object left, Object right) { return (Integer) left + (Integer) right; }
+  private static Object sub(Object receiver, Object left, Object right) { return (Integer) left - (Integer) right; }
+  private static Object mul(Object receiver, Object left, Object right) { return (Integer) left * (Integer) right; }
+  private static Object div(Object receiver, Object left, Object right) { return (Integer) left / (Integer) right; }
+  private static Object rem(Object receiver, Object left, Object right) { return (Integer) left % (Integer) right; }
+  private static Object eq(Object receiver, Object left, Object right) { return left.equals(right); }
+  private static Object ne(Object receiver, Object left, Object right) { return !left.equals(right); }
+  @SuppressWarnings("unchecked")
+  private static Object lt(Object receiver, Object left, Object right) { return ((Comparable<Object>) left).compareTo(right) < 0; }
+  @SuppressWarnings("unchecked")
+  private static Object le(Object receiver, Object left, Object right) { return ((Comparable<Object>) left).compareTo(right) <= 0; }
+  @SuppressWarnings("unchecked")
+  private static Object gt(Object receiver, Object left, Object right) { return ((Comparable<Object>) left).compareTo(right) > 0; }
+  @SuppressWarnings("unchecked")
+  private static Object ge(Object receiver, Object left, Object right) { return ((Comparable<Object>) left).compareTo(right) >= 0; }
+
+  // a division by zero throws an ArithmeticException, so the generic operator reports it
+  private static int div(int left, int right) { return left / right; }
+  private static int rem(int left, int right) { return left % right; }
+  private static boolean eq(int left, int right) { return left == right; }
+  private static boolean ne(int left, int right) { return left != right; }
+  private static boolean lt(int left, int right) { return left < right; }
+  private static boolean le(int left, int right) { return left <= right; }
+  private static boolean gt(int left, int right) { return left > right; }
+  private static boolean ge(int left, int right) { return left >= right; }
+
+  public static CallSite bsm_op(Lookup lookup, String name, MethodType type, String operatorName) {
+    var classLoader = (FunClassLoader) lookup.lookupClass().getClassLoader();
+    var globalEnv = classLoader.getGlobal();
+    return new OperatorCache(type, globalEnv, operatorName);
+  }
+
+  // a call to an operator of the global environment with two arguments,
+  // if the operator is the builtin one, the call site checks that the arguments are ints
+  // and calls the intrinsic, the generic function is called if the arguments are not ints or if the result overflows,
+  // the target is guarded by the switch point of the operator in the global environment, so a redefinition relinks it
+  private static final class OperatorCache extends MutableCallSite {
+    private static final MethodHandle SLOW_PATH, INT_CHECK;
+
+    static {
+      var lookup = lookup();
+      try {
+        SLOW_PATH = lookup.findVirtual(OperatorCache.class, "slowPath", methodType(Object.class, Object.class, Object.class));
+        INT_CHECK = lookup.findStatic(OperatorCache.class, "intCheck", methodType(boolean.class, Object.class, Object.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private final JSObject globalEnv;
+    private final String name;
+
+    private OperatorCache(MethodType type, JSObject globalEnv, String name) {
+      super(type);
+      this.globalEnv = globalEnv;
+      this.name = name;
+      setTarget(SLOW_PATH.bindTo(this));
+    }
+
+    private static boolean intCheck(Object left, Object right) {
+      return left instanceof Integer && right instanceof Integer;
+    }
+
+    private Object slowPath(Object left, Object right) throws Throwable {
+      var type = type();
+      var switchPoint = globalEnv.getSwitchPoint(name);
+      if (!(globalEnv.lookup(name) instanceof JSObject function)) {
+        throw new Failure("the operator " + name + " is not a function");
+      }
+      var mh = parameterCountCheck(function.getMethodHandle(), 3);
+      var generic = insertArguments(mh.asType(methodType(Object.class, Object.class, Object.class, Object.class)), 0, UNDEFINED);
+      var target = generic;
+      var operator = OPERATORS.get(name);
+      if (operator != null && mh == operator.generic()) {
+        var intrinsic = catchException(operator.intrinsic().asType(type), ArithmeticException.class,
+            dropArguments(generic, 0, ArithmeticException.class));
+        target = guardWithTest(INT_CHECK, intrinsic, generic);
+      }
+      setTarget(switchPoint.guardWithTest(target, SLOW_PATH.bindTo(this)));
+      return target.invokeExact(left, right);
+    }
+  }
+
+  // true if the function is the builtin operator with that name
+  static boolean isBuiltinOperator(String name, Object function) {
+    var operator = OPERATORS.get(name);
+    return operator != null && function instanceof JSObject jsObject && jsObject.getMethodHandle() == operator.generic();
+  }
+
+  public static CallSite bsm_builtin(Lookup lookup, String name, MethodType type, String... operatorNames) {
+    var classLoader = (FunClassLoader) lookup.lookupClass().getClassLoader();
+    var globalEnv = classLoader.getGlobal();
+    return new BuiltinCheck(type, globalEnv, operatorNames);
+  }
+
+  // the guard of a constant folded by the ConstantFolder, true if the operators are the builtin ones,
+  // the result is guarded by the switch points of the operators in the global environment,
+  // so a redefinition of one of them computes the result again
+  private static final class BuiltinCheck extends MutableCallSite {
+    private static final MethodHandle SLOW_PATH;
+
+    static {
+      var lookup = lookup();
+      try {
+        SLOW_PATH = lookup.findVirtual(BuiltinCheck.class, "slowPath", methodType(boolean.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private final JSObject globalEnv;
+    private final String[] names;
+
+    private BuiltinCheck(MethodType type, JSObject globalEnv, String[] names) {
+      super(type);
+      this.globalEnv = globalEnv;
+      this.names = names;
+      setTarget(SLOW_PATH.bindTo(this));
+    }
+
+    private boolean slowPath() {
+      var target = constant(boolean.class, true);
+      var builtin = true;
+      for (var name : names) {
+        target = globalEnv.getSwitchPoint(name).guardWithTest(target, SLOW_PATH.bindTo(this));
+        builtin &= isBuiltinOperator(name, globalEnv.lookup(name));
+      }
+      if (!builtin) {
+        // the folded constant is never used again
+        setTarget(constant(boolean.class, false));
+        return false;
+      }
+      setTarget(target);
+      return true;
+    }
+  }
+
   public static CallSite bsm_get(Lookup lookup, String name, MethodType type, String fieldName) {
-    throw new UnsupportedOperationException("TODO bsm_get");
-    // get the LOOKUP method handle
-    // use the fieldName as second argument
-    // make it accept an Object (not a JSObject) as first parameter
-    // create a constant callsite
+    return new FieldCache(type, fieldName, false);
   }
 
   public static CallSite bsm_set(Lookup lookup, String name, MethodType type, String fieldName) {
-    throw new UnsupportedOperationException("TODO bsm_set");
-    // get the REGISTER method handle
-    // use the fieldName as second argument
-    // make it accept an Object (not a JSObject) as first parameter
-    // create a constant callsite
+    return new FieldCache(type, fieldName, true);
+  }
+
+  private static JSObject asJSObject(Object receiver, String fieldName) {
+    if (!(receiver instanceof JSObject jsObject)) {
+      throw new Failure("can not access to the field " + fieldName + " of " + receiver);
+    }
+    return jsObject;
+  }
+
+  // the guard and the access of a field computed at link time from a receiver,
+  // check(Object)boolean verifies that a receiver has the same layout, and if the field is not in the receiver,
+  // the same proto and the protos before the one holding the field (or all of them) still have the same layouts,
+  // access(Object)Object reads the field either in the receiver or in the proto holding it
+  private record FieldGuard(MethodHandle check, MethodHandle access) {
+    private static final MethodHandle LAYOUT_CHECK, PROTO_CHECK, FAST_ACCESS;
+
+    static {
+      var lookup = lookup();
+      try {
+        LAYOUT_CHECK = lookup.findStatic(FieldGuard.class, "layoutCheck", methodType(boolean.class, Object.class, Layout.class));
+        PROTO_CHECK = lookup.findStatic(FieldGuard.class, "protoCheck", methodType(boolean.class, Object.class, Layout.class, JSObject.class, JSObject[].class, Layout[].class));
+        FAST_ACCESS = lookup.findVirtual(JSObject.class, "fastAccess", methodType(Object.class, int.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static boolean layoutCheck(Object receiver, Layout layout) {
+      return receiver instanceof JSObject jsObject && jsObject.getLayout() == layout;
+    }
+
+    private static boolean protoCheck(Object receiver, Layout layout, JSObject proto, JSObject[] protos, Layout[] layouts) {
+      if (!(receiver instanceof JSObject jsObject) || jsObject.getLayout() != layout || jsObject.getProto() != proto) {
+        return false;
+      }
+      for (var i = 0; i < protos.length; i++) {
+        if (protos[i].getLayout() != layouts[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    static FieldGuard of(JSObject jsObject, String fieldName) {
+      var layout = jsObject.getLayout();
+      var slot = layout.slot(fieldName);
+      if (slot != -1) {
+        return new FieldGuard(
+            insertArguments(LAYOUT_CHECK, 1, layout),
+            insertArguments(FAST_ACCESS, 1, slot).asType(methodType(Object.class, Object.class)));
+      }
+      // walk the proto chain to find the object holding the field
+      var protos = new ArrayList<JSObject>();
+      var layouts = new ArrayList<Layout>();
+      MethodHandle access = null;
+      for (var proto = jsObject.getProto(); proto != null; proto = proto.getProto()) {
+        var protoLayout = proto.getLayout();
+        protos.add(proto);
+        layouts.add(protoLayout);
+        var protoSlot = protoLayout.slot(fieldName);
+        if (protoSlot != -1) {
+          access = dropArguments(insertArguments(FAST_ACCESS, 0, proto, protoSlot), 0, Object.class);
+          break;
+        }
+      }
+      if (access == null) {
+        access = dropArguments(constant(Object.class, UNDEFINED), 0, Object.class);
+      }
+      var check = insertArguments(PROTO_CHECK, 1, layout, jsObject.getProto(),
+          protos.toArray(JSObject[]::new), layouts.toArray(Layout[]::new));
+      return new FieldGuard(check, access);
+    }
+  }
+
+  // polymorphic inline cache of a field access (get) or a field assignment (set) keyed on the layout of the receiver,
+  // each new layout adds a guard checking the layout pointer in front of a fastAccess(slot)/fastRegister(slot),
+  // for a get, the proto chain is walked when the guard is installed,
+  // after MAX_SHAPES layouts, the call site is megamorphic and always does a lookup/register
+  private static final class FieldCache extends MutableCallSite {
+    private static final MethodHandle SLOW_GET, SLOW_SET, GET, SET, LAYOUT_CHECK, FAST_REGISTER;
+
+    static {
+      var lookup = lookup();
+      try {
+        SLOW_GET = lookup.findVirtual(FieldCache.class, "slowGet", methodType(Object.class, Object.class));
+        SLOW_SET = lookup.findVirtual(FieldCache.class, "slowSet", methodType(void.class, Object.class, Object.class));
+        GET = lookup.findStatic(FieldCache.class, "get", methodType(Object.class, Object.class, String.class));
+        SET = lookup.findStatic(FieldCache.class, "set", methodType(void.class, Object.class, String.class, Object.class));
+        LAYOUT_CHECK = lookup.findStatic(FieldGuard.class, "layoutCheck", methodType(boolean.class, Object.class, Layout.class));
+        FAST_REGISTER = lookup.findVirtual(JSObject.class, "fastRegister", methodType(void.class, int.class, String.class, Object.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static final int MAX_SHAPES = 4;
+    private final String fieldName;
+    private int shapes;
+
+    private FieldCache(MethodType type, String fieldName, boolean set) {
+      super(type);
+      this.fieldName = fieldName;
+      setTarget((set ? SLOW_SET : SLOW_GET).bindTo(this));
+    }
+
+    private static Object get(Object receiver, String fieldName) {
+      return asJSObject(receiver, fieldName).lookup(fieldName);
+    }
+
+    private static void set(Object receiver, String fieldName, Object value) {
+      asJSObject(receiver, fieldName).register(fieldName, value);
+    }
+
+    private Object slowGet(Object receiver) {
+      var jsObject = asJSObject(receiver, fieldName);
+      var value = jsObject.lookup(fieldName);
+      if (++shapes > MAX_SHAPES) {
+        setTarget(insertArguments(GET, 1, fieldName));
+        return value;
+      }
+
+      var guard = FieldGuard.of(jsObject, fieldName);
+      setTarget(guardWithTest(guard.check(), guard.access(), getTarget()));
+      return value;
+    }
+
+    private void slowSet(Object receiver, Object value) {
+      var jsObject = asJSObject(receiver, fieldName);
+      var layout = jsObject.getLayout();
+      var slot = layout.slot(fieldName);
+      jsObject.register(fieldName, value);
+      if (++shapes > MAX_SHAPES) {
+        setTarget(insertArguments(SET, 1, fieldName));
+        return;
+      }
+
+      var check = insertArguments(LAYOUT_CHECK, 1, layout);
+      // a new field changes the layout of the receiver, so it is registered by the generic path
+      var target = slot != -1 ? insertArguments(FAST_REGISTER, 1, slot, fieldName) : insertArguments(SET, 1, fieldName);
+      setTarget(guardWithTest(check, target.asType(type()), getTarget()));
+    }
   }
 
   @SuppressWarnings("unused")  // used by a method handle
-  private static MethodHandle lookupMethodHandle(JSObject receiver, String fieldName) {
-    var function = (JSObject) receiver.lookup(fieldName);
-    return function.getMethodHandle();
+  private static MethodHandle lookupMethodHandle(Object receiver, String fieldName, int parameterCount) {
+    var value = asJSObject(receiver, fieldName).lookup(fieldName);
+    if (!(value instanceof JSObject function)) {
+      throw new Failure("the field " + fieldName + " of " + receiver + " is not a function");
+    }
+    return parameterCountCheck(function.getMethodHandle(), parameterCount);
   }
 
   public static CallSite bsm_methodcall(Lookup lookup, String name, MethodType type) {
-    throw new UnsupportedOperationException("TODO bsm_methodcall");
-    //var combiner = insertArguments(METH_LOOKUP_MH, 1, name).asType(methodType(MethodHandle.class, Object.class));
-    //var target = foldArguments(invoker(type), combiner);
-    //return new ConstantCallSite(target);
+    return new MethodCache(type, name);
+  }
+
+  // polymorphic inline cache of a method call keyed on the layout of the receiver and the function called,
+  // like InliningCache, each new layout adds a guard in front of the method handle of the function,
+  // the guard checks the layout (and the protos, see FieldGuard) and that the field still contains the function,
+  // after MAX_SHAPES layouts, the call site is megamorphic and always does a lookup
+  private static final class MethodCache extends MutableCallSite {
+    private static final MethodHandle SLOW_PATH, FUNCTION_CHECK;
+
+    static {
+      var lookup = lookup();
+      try {
+        SLOW_PATH = lookup.findVirtual(MethodCache.class, "slowPath", methodType(MethodHandle.class, Object.class));
+        FUNCTION_CHECK = lookup.findStatic(MethodCache.class, "functionCheck", methodType(boolean.class, Object.class, JSObject.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static final int MAX_SHAPES = 4;
+    private final String name;
+    private int shapes;
+
+    private MethodCache(MethodType type, String name) {
+      super(type);
+      this.name = name;
+      setTarget(foldArguments(exactInvoker(type), SLOW_PATH.bindTo(this)));
+    }
+
+    private static boolean functionCheck(Object value, JSObject function) {
+      return value == function;
+    }
+
+    private MethodHandle slowPath(Object receiver) {
+      var type = type();
+      var mh = lookupMethodHandle(receiver, name, type.parameterCount());
+      var target = mh.asType(type);
+      if (++shapes > MAX_SHAPES) {
+        var combiner = insertArguments(METH_LOOKUP_MH, 1, name, type.parameterCount());
+        setTarget(foldArguments(invoker(type), combiner));
+        return target;
+      }
+
+      var jsObject = (JSObject) receiver;
+      var function = (JSObject) jsObject.lookup(name);
+      var guard = FieldGuard.of(jsObject, name);
+      var check = guardWithTest(guard.check(),
+          filterReturnValue(guard.access(), insertArguments(FUNCTION_CHECK, 1, function)),
+          dropArguments(constant(boolean.class, false), 0, Object.class));
+      setTarget(guardWithTest(check, target, getTarget()));
+      return target;
+    }
   }
 }
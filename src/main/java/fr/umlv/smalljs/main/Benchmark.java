@@ -0,0 +1,75 @@
+package fr.umlv.smalljs.main;
+
+import fr.umlv.smalljs.ast.Script;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+import static java.nio.file.Files.newBufferedReader;
+
+// run a script several times with several interpreters and print the time of an execution,
+// the first executions warm up the JIT and are not measured, the output of the script is discarded
+// run with /path/to/jdk-22/bin/java --class-path lib/tatoo-runtime.jar:target/smalljs-1.0.jar fr.umlv.smalljs.main.Benchmark samples/bench_fibo.js
+public final class Benchmark {
+  // the jvm interpreter prints its generated bytecode on the standard error, so it is only run on demand
+  private static final List<String> DEFAULT_INTERPRETERS = List.of("stack", "stack-offheap", "threaded", "reg");
+  private static final int WARMUP_ITERATIONS = 10;
+  private static final int ITERATIONS = 20;
+
+  private static void printHelp() {
+    System.err.println("""
+            Help:
+              fr.umlv.smalljs.main.Benchmark input-file.js [interpreter...]
+                available interpreters: ast, stack, stack-offheap, threaded, reg and jvm
+                by default: stack, stack-offheap, threaded and reg
+            """);
+    System.exit(1);
+  }
+
+  // the times of the measured executions in nanoseconds, sorted
+  private static long[] measure(String name, Script script) {
+    var interpreter = Main.interpreter(name);
+    var out = new PrintStream(OutputStream.nullOutputStream());
+    for (var i = 0; i < WARMUP_ITERATIONS; i++) {
+      interpreter.accept(script, out);
+    }
+    var times = new long[ITERATIONS];
+    for (var i = 0; i < ITERATIONS; i++) {
+      var start = System.nanoTime();
+      interpreter.accept(script, out);
+      times[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(times);
+    return times;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      printHelp();
+      return;
+    }
+    var names = (args.length == 1) ? DEFAULT_INTERPRETERS : List.of(args).subList(1, args.length);
+    Script script;
+    try (var reader = newBufferedReader(Path.of(args[0]))) {
+      // the AST is immutable, so it is shared by all the executions
+      script = createScript(reader);
+    }
+    System.out.println("interpreter      min (ms)  median (ms)");
+    for (var name : names) {
+      long[] times;
+      try {
+        times = measure(name, script);
+      } catch(RuntimeException e) {
+        e.printStackTrace();
+        printHelp();
+        return;
+      }
+      System.out.printf("%-15s %9.2f %12.2f%n", name, times[0] / 1_000_000.0, times[times.length / 2] / 1_000_000.0);
+    }
+  }
+}
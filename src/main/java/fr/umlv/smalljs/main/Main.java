@@ -3,11 +3,19 @@ package fr.umlv.smalljs.main;
 import fr.umlv.smalljs.ast.Script;
 import fr.umlv.smalljs.astinterp.ASTInterpreter;
 import fr.umlv.smalljs.jvminterp.JVMInterpreter;
+import fr.umlv.smalljs.regvm.RegInterpreter;
+import fr.umlv.smalljs.stackinterp.CodeCache;
+import fr.umlv.smalljs.stackinterp.Heap;
+import fr.umlv.smalljs.stackinterp.Options;
+import fr.umlv.smalljs.stackinterp.Snapshot;
 import fr.umlv.smalljs.stackinterp.StackInterpreter;
+import fr.umlv.smalljs.stackinterp.ThreadedInterpreter;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.nio.file.Path;
 import java.util.function.BiConsumer;
 
@@ -18,10 +26,13 @@ import static java.nio.file.Files.newBufferedReader;
 
 // run with /path/to/jdk-22/bin/java --class-path lib/tatoo-runtime.jar:target/smalljs-1.0.jar fr.umlv.smalljs.main.Main ast samples/hello.js
 public final class Main {
-  private static BiConsumer<Script, PrintStream> interpreter(String name) {
+  static BiConsumer<Script, PrintStream> interpreter(String name) {
     return switch (name) {
       case "ast" -> ASTInterpreter::interpret;
       case "stack" -> StackInterpreter::interpret;
+      case "stack-offheap" -> (script, out) -> StackInterpreter.interpret(script, out, Options.DEFAULT.withHeap(Heap::offHeap));
+      case "threaded" -> ThreadedInterpreter::interpret;
+      case "reg" -> RegInterpreter::interpret;
       case "jvm" -> JVMInterpreter::interpret;
       default -> throw new IllegalArgumentException("unkonwn interpreter " + name);
     };
@@ -31,17 +42,57 @@ public final class Main {
     System.err.println("""
             Help:
               fr.umlv.smalljs.main.Main interpreter [input-file.js]
-                available interpreters: ast, stack and jvm
+                available interpreters: ast, stack, stack-offheap, threaded, reg and jvm
+              fr.umlv.smalljs.main.Main snapshot input-file.js snapshot-file
+                compile the script for the stack interpreter and save it
+              fr.umlv.smalljs.main.Main restore snapshot-file
+                run a saved script with the stack interpreter
+              fr.umlv.smalljs.main.Main --cache cache-directory stack [input-file.js]
+                run the script with the stack interpreter, the compiled script is stored in the cache directory
             """);
     System.exit(1);
   }
 
+  private static String readAll(Reader reader) throws IOException {
+    var writer = new StringWriter();
+    reader.transferTo(writer);
+    return writer.toString();
+  }
+
   public static void main(String[] args) throws IOException {
-    if (args.length == 0 || args.length > 2) {
+    if (args.length >= 3 && args[0].equals("--cache")) {
+      if (args.length > 4 || !args[2].equals("stack")) {
+        printHelp();
+        return;
+      }
+      try (var reader = (args.length == 4) ? newBufferedReader(Path.of(args[3])) : new InputStreamReader(in, UTF_8)) {
+        var state = new CodeCache(Path.of(args[1])).load(readAll(reader), System.out);
+        StackInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+      } catch(RuntimeException e) {
+        e.printStackTrace();
+        printHelp();
+      }
+      return;
+    }
+    if (args.length == 0 || args.length > 3 || (args.length == 3) != args[0].equals("snapshot")) {
       printHelp();
       return;
     }
     try {
+      switch (args[0]) {
+        case "snapshot" -> {
+          try (var reader = newBufferedReader(Path.of(args[1]))) {
+            Snapshot.save(Path.of(args[2]), StackInterpreter.compile(createScript(reader), System.out));
+          }
+          return;
+        }
+        case "restore" -> {
+          var state = Snapshot.restore(Path.of(args[1]), System.out);
+          StackInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+          return;
+        }
+        default -> {}
+      }
       var interpreter = interpreter(args[0]);
       try (var reader = (args.length == 2) ? newBufferedReader(Path.of(args[1])) : new InputStreamReader(in, UTF_8)) {
         var script = createScript(reader);
@@ -0,0 +1,22 @@
+package fr.umlv.smalljs.regvm;
+
+import static java.util.Objects.requireNonNull;
+
+// the registers of a frame are the local variables (this, the parameters and the variables) followed by the temporaries,
+// caches is a side table of the instructions used by the inline caches of the interpreter
+public record RegCode(int[] instrs, int parameterCount, int registerCount, int[] caches) {
+	public RegCode {
+		requireNonNull(instrs);
+		requireNonNull(caches);
+		if (parameterCount < 1 || registerCount < 1 || parameterCount > registerCount) {
+			throw new IllegalArgumentException("invalid parameter or register count");
+		}
+		if (caches.length != instrs.length) {
+			throw new IllegalArgumentException("invalid caches length");
+		}
+	}
+
+	public RegCode(int[] instrs, int parameterCount, int registerCount) {
+		this(instrs, parameterCount, registerCount, new int[instrs.length]);
+	}
+}
@@ -0,0 +1,82 @@
+package fr.umlv.smalljs.regvm;
+
+import java.util.List;
+
+import fr.umlv.smalljs.stackinterp.Dictionary;
+import fr.umlv.smalljs.stackinterp.TagValues;
+
+// instructions of the register VM, the operands named r are register indexes relative to the frame
+public interface RegInstructions {
+	int CONST = 1; // CONST rd tag_value (smallint or dictionary_index)
+	int MOVE = 2; // MOVE rd rs
+	int LOOKUP = 3; // LOOKUP rd dictionary_index (String global_name)
+	int REGISTER = 4; // REGISTER rs dictionary_index (String global_name)
+	int CALL = 5; // CALL rf rbase argument_count, the receiver is in rbase followed by the arguments, the result is stored in rbase
+	int RET = 6; // RET rs
+	int JUMP = 7; // JUMP instr_index
+	int JUMP_IF_FALSE = 8; // JUMP_IF_FALSE rs instr_index
+	int NEW = 9; // NEW rd dictionary_index (JSObject class) rbase, the field values are in rbase, rbase + 1, etc
+	int GET = 10; // GET rd robject dictionary_index (String field_name)
+	int PUT = 11; // PUT robject dictionary_index (String field_name) rs
+	// a CALL in tail position, always followed by RET rbase, the callee reuses the frame of the caller
+	// if enabled (see Options.tailCalls)
+	int TAILCALL = 12; // TAILCALL rf rbase argument_count
+	// guard of a constant folded by the ConstantFolder, jump to the unfolded code
+	// if an operator of the bitmask (see GlobalGuards.operators) is not the builtin one anymore
+	int JUMP_IF_NOT_BUILTIN = 13; // JUMP_IF_NOT_BUILTIN instr_index operators
+
+	// operators on two registers, executed inline on small ints,
+	// otherwise the function of the global environment is called
+	int ADD = 21; // ADD rd rleft rright
+	int SUB = 22;
+	int MUL = 23;
+	int DIV = 24;
+	int REM = 25;
+	int EQ = 26;
+	int NE = 27;
+	int LT = 28;
+	int LE = 29;
+	int GT = 30;
+	int GE = 31;
+
+	// names of the operators in the global environment, indexed by instr - ADD
+	List<String> OPERATOR_NAMES = List.of("+", "-", "*", "/", "%", "==", "!=", "<", "<=", ">", ">=");
+
+	// number of ints used by an instruction and its operands
+	static int size(int instr) {
+		return switch (instr) {
+			case JUMP, RET -> 2;
+			case CONST, MOVE, LOOKUP, REGISTER, JUMP_IF_FALSE, JUMP_IF_NOT_BUILTIN -> 3;
+			case CALL, TAILCALL, NEW, GET, PUT, ADD, SUB, MUL, DIV, REM, EQ, NE, LT, LE, GT, GE -> 4;
+			default -> throw new IllegalStateException("unknown instr " + instr);
+		};
+	}
+
+	static void dump(int[] instrs, Dictionary dict) {
+		for (var pc = 0; pc < instrs.length; pc += size(instrs[pc])) {
+			var instr = instrs[pc];
+			var text = switch (instr) {
+				case CONST -> {
+					var value = instrs[pc + 2];
+					yield "CONST r" + instrs[pc + 1] + " "
+							+ (TagValues.isSmallInt(value) ? TagValues.decodeSmallInt(value) : TagValues.decodeDictObject(value, dict));
+				}
+				case MOVE -> "MOVE r" + instrs[pc + 1] + " r" + instrs[pc + 2];
+				case LOOKUP -> "LOOKUP r" + instrs[pc + 1] + " " + TagValues.decodeDictObject(instrs[pc + 2], dict);
+				case REGISTER -> "REGISTER r" + instrs[pc + 1] + " " + TagValues.decodeDictObject(instrs[pc + 2], dict);
+				case CALL -> "CALL r" + instrs[pc + 1] + " r" + instrs[pc + 2] + " " + instrs[pc + 3];
+				case TAILCALL -> "TAILCALL r" + instrs[pc + 1] + " r" + instrs[pc + 2] + " " + instrs[pc + 3];
+				case RET -> "RET r" + instrs[pc + 1];
+				case JUMP -> "JUMP " + instrs[pc + 1];
+				case JUMP_IF_NOT_BUILTIN -> "JUMP_IF_NOT_BUILTIN " + instrs[pc + 1] + " " + Integer.toBinaryString(instrs[pc + 2]);
+				case JUMP_IF_FALSE -> "JUMP_IF_FALSE r" + instrs[pc + 1] + " " + instrs[pc + 2];
+				case NEW -> "NEW r" + instrs[pc + 1] + " " + TagValues.decodeDictObject(instrs[pc + 2], dict) + " r" + instrs[pc + 3];
+				case GET -> "GET r" + instrs[pc + 1] + " r" + instrs[pc + 2] + " " + TagValues.decodeDictObject(instrs[pc + 3], dict);
+				case PUT -> "PUT r" + instrs[pc + 1] + " " + TagValues.decodeDictObject(instrs[pc + 2], dict) + " r" + instrs[pc + 3];
+				default -> OPERATOR_NAMES.get(instr - ADD) + " r" + instrs[pc + 1] + " r" + instrs[pc + 2] + " r" + instrs[pc + 3];
+			};
+			System.err.println(pc + " " + text);
+		}
+		System.err.println();
+	}
+}
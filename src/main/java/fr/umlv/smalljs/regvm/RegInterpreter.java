@@ -0,0 +1,307 @@
+package fr.umlv.smalljs.regvm;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.Interpreters.*;
+import static fr.umlv.smalljs.stackinterp.TagValues.*;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import fr.umlv.smalljs.ast.ConstantFolder;
+import fr.umlv.smalljs.ast.Expr;
+import fr.umlv.smalljs.ast.Script;
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.stackinterp.Dictionary;
+import fr.umlv.smalljs.stackinterp.GlobalGuards;
+import fr.umlv.smalljs.stackinterp.Heap;
+import fr.umlv.smalljs.stackinterp.Options;
+import fr.umlv.smalljs.stackinterp.StackInterpreter;
+import fr.umlv.smalljs.stackinterp.Tracer;
+
+// interpreter of the register VM, the values, the dictionary, the objects and the GC are the same as the StackInterpreter.
+// The registers of all the frames are stored in one array, the frame of a callee starts at the register
+// that contains the receiver (rbase of CALL), so the receiver and the arguments are not copied.
+// The return addresses are stored in another array, the frames, as (bp, pc, code) triples,
+// if tail calls are enabled (see Options.tailCalls), a TAILCALL moves the receiver and the arguments
+// to the start of the current frame and pushes no triple
+public final class RegInterpreter {
+	private RegInterpreter() {
+		throw new AssertionError();
+	}
+
+	private static final int FRAME_BP_OFFSET = 0;
+	private static final int FRAME_PC_OFFSET = 1;
+	private static final int FRAME_CODE_OFFSET = 2;
+	private static final int FRAME_SIZE = 3;
+
+	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv) {
+		return execute(function, dict, globalEnv, Options.DEFAULT);
+	}
+
+	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, Options options) {
+		// the frames of the register VM are not known by Generations (see Generations.returnTo)
+		if (options.nurserySize() != 0) {
+			throw new IllegalArgumentException("the register VM does not support a generational heap");
+		}
+		try (var heap = options.heapFactory().create(options.initialHeapSize())) {
+			return run(function, dict, globalEnv, options, heap);
+		}
+	}
+
+	private static Object run(JSObject function, Dictionary dict, JSObject globalEnv, Options options, Heap heap) {
+		var tracer = options.tracer();
+		var code = (RegCode) function.lookup("__code__");
+		var instrs = code.instrs();
+		var caches = code.caches();
+		var vCode = encodeDictObject(code, dict);
+
+		var registers = new int[Math.max(options.initialStackSize(), code.registerCount())];
+		var frames = new int[FRAME_SIZE * 64];
+
+		var undefined = encodeDictObject(UNDEFINED, dict);
+
+		// the LOOKUP caches and the builtin operators are only checked again when their global changes
+		var guards = new GlobalGuards(globalEnv, dict);
+
+		var hp = 0; // heap pointer
+		var pc = 0; // instruction pointer
+		var bp = 0; // base pointer, index of the register 0 of the current frame
+		var fp = 0; // frame pointer, index of the next free frame
+
+		// initialize all the registers
+		Arrays.fill(registers, 0, code.registerCount(), undefined);
+
+		var dispatches = 0L;
+		for (;;) {
+			if (Tracer.ENABLED) {
+				dispatches++;
+			}
+			var instr = instrs[pc];
+			switch (instr) {
+				case RegInstructions.CONST -> {
+					registers[bp + instrs[pc + 1]] = instrs[pc + 2];
+					pc += 3;
+				}
+				case RegInstructions.MOVE -> {
+					registers[bp + instrs[pc + 1]] = registers[bp + instrs[pc + 2]];
+					pc += 3;
+				}
+				case RegInstructions.LOOKUP -> {
+					// REGISTER or a native function may have changed the global
+					var epoch = guards.epoch(instrs[pc + 2]);
+					// the cache contains the value and the epoch of the global when the value was cached
+					var hit = caches[pc + 1] == epoch;
+					if (!hit) {
+						var name = (String) decodeDictObject(instrs[pc + 2], dict);
+						caches[pc] = encodeDictObject(globalEnv.lookup(name), dict);
+						caches[pc + 1] = epoch;
+					}
+					registers[bp + instrs[pc + 1]] = caches[pc];
+					if (Tracer.ENABLED) {
+						var name = (String) decodeDictObject(instrs[pc + 2], dict);
+						tracer.inlineCache("lookup", name, hit);
+						tracer.lookup(name, decodeDictObject(caches[pc], dict));
+					}
+					pc += 3;
+				}
+				case RegInstructions.REGISTER -> {
+					var name = (String) decodeDictObject(instrs[pc + 2], dict);
+					globalEnv.register(name, decodeAnyValue(registers[bp + instrs[pc + 1]], dict, heap));
+					pc += 3;
+				}
+				case RegInstructions.CALL, RegInstructions.TAILCALL -> {
+					// the inline cache of the instruction
+					var cache = pc;
+					var vQualifier = registers[bp + instrs[pc + 1]];
+					var base = bp + instrs[pc + 2];
+					var argumentCount = instrs[pc + 3];
+					pc += 4;
+
+					if (Tracer.ENABLED) {
+						var args = new Object[argumentCount];
+						for (var i = 0; i < argumentCount; i++) {
+							args[i] = decodeAnyValue(registers[base + 1 + i], dict, heap);
+						}
+						tracer.funcall((JSObject) decodeAnyValue(vQualifier, dict, heap), decodeAnyValue(registers[base], dict, heap), args);
+					}
+
+					int vNewCode;
+					if (caches[cache] == vQualifier && caches[cache + 1] != 0) {
+						// the code of the function and the number of arguments have already been checked
+						vNewCode = caches[cache + 1];
+					} else {
+						var newFunction = (JSObject) decodeAnyValue(vQualifier, dict, heap);
+						var maybeCode = newFunction.lookup("__code__");
+						if (maybeCode == UNDEFINED) { // native call !
+							caches[cache + 1] = 0;
+							var receiver = decodeAnyValue(registers[base], dict, heap);
+							var args = new Object[argumentCount];
+							for (var i = 0; i < argumentCount; i++) {
+								args[i] = decodeAnyValue(registers[base + 1 + i], dict, heap);
+							}
+							// in tail position, the RET that follows returns the result
+							registers[base] = encodeAnyValue(newFunction.invoke(receiver, args), dict);
+							continue;
+						}
+
+						var newCode = (RegCode) maybeCode;
+						if (newCode.parameterCount() != argumentCount + 1/* this */) {
+							throw new Failure("wrong number of arguments for " + newFunction.getName() + " expected "
+									+ (newCode.parameterCount() - 1) + " but was " + argumentCount);
+						}
+						// the cache contains the function and its code (never 0, a dictionary index)
+						vNewCode = encodeDictObject(newCode, dict);
+						caches[cache] = vQualifier;
+						caches[cache + 1] = vNewCode;
+					}
+					var newCode = (RegCode) decodeDictObject(vNewCode, dict);
+
+					if (instr == RegInstructions.TAILCALL && options.tailCalls()) {
+						// the callee returns to the caller of the current function, the receiver and the arguments
+						// are moved to the start of the current frame, the source registers are above them
+						System.arraycopy(registers, base, registers, bp, argumentCount + 1);
+						base = bp;
+					} else {
+						// save bp/pc/code of the caller
+						if (fp + FRAME_SIZE > frames.length) {
+							frames = Arrays.copyOf(frames, frames.length << 1);
+						}
+						frames[fp + FRAME_BP_OFFSET] = bp;
+						frames[fp + FRAME_PC_OFFSET] = pc;
+						frames[fp + FRAME_CODE_OFFSET] = vCode;
+						fp += FRAME_SIZE;
+					}
+
+					// the frame of the callee starts at the receiver, grow the registers if it does not fit
+					var needed = base + newCode.registerCount();
+					registers = growStack(registers, needed, options);
+					// initialize all the registers that are not parameters
+					Arrays.fill(registers, base + newCode.parameterCount(), needed, undefined);
+
+					code = newCode;
+					vCode = vNewCode;
+					instrs = code.instrs();
+					caches = code.caches();
+					bp = base;
+					pc = 0;
+				}
+				case RegInstructions.RET -> {
+					var result = registers[bp + instrs[pc + 1]];
+					if (Tracer.ENABLED) {
+						tracer.ret(decodeAnyValue(result, dict, heap));
+					}
+					if (fp == 0) {
+						if (Tracer.ENABLED) {
+							tracer.dispatches(dispatches);
+						}
+						return decodeAnyValue(result, dict, heap);
+					}
+					// the result is stored in the register of the receiver, rbase of the CALL
+					registers[bp] = result;
+
+					// restore bp/pc/code of the caller
+					fp -= FRAME_SIZE;
+					bp = frames[fp + FRAME_BP_OFFSET];
+					pc = frames[fp + FRAME_PC_OFFSET];
+					vCode = frames[fp + FRAME_CODE_OFFSET];
+					code = (RegCode) decodeDictObject(vCode, dict);
+					instrs = code.instrs();
+					caches = code.caches();
+				}
+				case RegInstructions.JUMP -> pc = instrs[pc + 1];
+				case RegInstructions.JUMP_IF_NOT_BUILTIN -> {
+					// an operator has been redefined, the folded constant is not valid anymore
+					pc = guards.builtinOperators(instrs[pc + 2]) ? pc + 3 : instrs[pc + 1];
+				}
+				case RegInstructions.JUMP_IF_FALSE -> {
+					pc = (registers[bp + instrs[pc + 1]] == FALSE) ? instrs[pc + 2] : pc + 3;
+				}
+				case RegInstructions.NEW -> {
+					var vClass = instrs[pc + 2];
+					var base = bp + instrs[pc + 3];
+					var length = ((JSObject) decodeDictObject(vClass, dict)).length();
+
+					// the roots of the GC are the registers of all the frames
+					var size = OBJECT_HEADER_SIZE + length;
+					hp = StackInterpreter.allocate(size, registers, bp + code.registerCount(), heap, hp, dict, options);
+
+					var ref = hp - size;
+					heap.set(ref, vClass);
+					heap.set(ref + StackInterpreter.GC_OFFSET, StackInterpreter.GC_EMPTY);
+					heap.copyFrom(registers, base, ref + OBJECT_HEADER_SIZE, length);
+
+					registers[bp + instrs[pc + 1]] = encodeReference(ref);
+					pc += 4;
+				}
+				case RegInstructions.GET -> {
+					var vFieldName = instrs[pc + 3];
+					var ref = decodeReference(registers[bp + instrs[pc + 2]]);
+					var vClass = heap.get(ref);
+					// find the field index, either in the inline cache or from the class
+					var hit = caches[pc] == vClass;
+					if (!hit) {
+						caches[pc] = vClass;
+						caches[pc + 1] = fieldIndex(vClass, vFieldName, dict);
+					}
+					if (Tracer.ENABLED) {
+						tracer.inlineCache("get", (String) decodeDictObject(vFieldName, dict), hit);
+					}
+					var fieldIndex = caches[pc + 1];
+					registers[bp + instrs[pc + 1]] = (fieldIndex == -1) ? undefined : heap.get(ref + OBJECT_HEADER_SIZE + fieldIndex);
+					pc += 4;
+				}
+				case RegInstructions.PUT -> {
+					var vFieldName = instrs[pc + 2];
+					var ref = decodeReference(registers[bp + instrs[pc + 1]]);
+					var vClass = heap.get(ref);
+					// find the field index, either in the inline cache or from the class
+					var hit = caches[pc] == vClass;
+					if (!hit) {
+						caches[pc] = vClass;
+						caches[pc + 1] = fieldIndex(vClass, vFieldName, dict);
+					}
+					if (Tracer.ENABLED) {
+						tracer.inlineCache("put", (String) decodeDictObject(vFieldName, dict), hit);
+					}
+					var fieldIndex = caches[pc + 1];
+					if (fieldIndex == -1) {
+						throw new Failure("invalid field " + decodeDictObject(vFieldName, dict));
+					}
+					heap.set(ref + OBJECT_HEADER_SIZE + fieldIndex, registers[bp + instrs[pc + 3]]);
+					pc += 4;
+				}
+				case RegInstructions.ADD, RegInstructions.SUB, RegInstructions.MUL, RegInstructions.DIV, RegInstructions.REM,
+						RegInstructions.EQ, RegInstructions.NE, RegInstructions.LT, RegInstructions.LE, RegInstructions.GT, RegInstructions.GE -> {
+					var left = registers[bp + instrs[pc + 2]];
+					var right = registers[bp + instrs[pc + 3]];
+					int result;
+					// fast path, both operands are small ints and the operator is the builtin one
+					if (isSmallInt(left) && isSmallInt(right) && guards.builtinOperator(instr - RegInstructions.ADD)) {
+						result = operator(instr - RegInstructions.ADD, decodeSmallInt(left), decodeSmallInt(right), globalEnv, dict, heap);
+					} else {
+						// slow path, call the operator of the global environment
+						result = callOperator(instr - RegInstructions.ADD, left, right, globalEnv, dict, heap);
+					}
+					registers[bp + instrs[pc + 1]] = result;
+					pc += 4;
+				}
+				default -> throw new AssertionError("unknown instruction " + instr);
+			}
+		}
+	}
+
+	public static void interpret(Script script, PrintStream outStream) {
+		interpret(script, outStream, Options.DEFAULT);
+	}
+
+	public static void interpret(Script script, PrintStream outStream, Options options) {
+		JSObject globalEnv = StackInterpreter.createGlobalEnv(outStream);
+		Expr.Block body = ConstantFolder.fold(script.body(), globalEnv);
+		Dictionary dictionary = new Dictionary();
+		JSObject function = RegRewriter.createFunction(Optional.of("main"), List.of(), body, dictionary);
+		execute(function, dictionary, globalEnv, options);
+	}
+}
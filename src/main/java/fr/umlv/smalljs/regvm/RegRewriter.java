@@ -0,0 +1,344 @@
+package fr.umlv.smalljs.regvm;
+
+import static fr.umlv.smalljs.regvm.RegInstructions.*;
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import fr.umlv.smalljs.ast.Expr;
+import fr.umlv.smalljs.ast.Expr.Block;
+import fr.umlv.smalljs.ast.Expr.FieldAccess;
+import fr.umlv.smalljs.ast.Expr.FieldAssignment;
+import fr.umlv.smalljs.ast.Expr.Folded;
+import fr.umlv.smalljs.ast.Expr.Fun;
+import fr.umlv.smalljs.ast.Expr.FunCall;
+import fr.umlv.smalljs.ast.Expr.If;
+import fr.umlv.smalljs.ast.Expr.Literal;
+import fr.umlv.smalljs.ast.Expr.LocalVarAccess;
+import fr.umlv.smalljs.ast.Expr.LocalVarAssignment;
+import fr.umlv.smalljs.ast.Expr.MethodCall;
+import fr.umlv.smalljs.ast.Expr.New;
+import fr.umlv.smalljs.ast.Expr.Return;
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.stackinterp.Dictionary;
+import fr.umlv.smalljs.stackinterp.GlobalGuards;
+import fr.umlv.smalljs.stackinterp.StackInterpreter;
+import fr.umlv.smalljs.stackinterp.TagValues;
+
+public final class RegRewriter {
+	private RegRewriter() {
+		throw new AssertionError();
+	}
+
+	static final class InstrBuffer {
+		private int[] instrs = new int[32];
+		private int size;
+
+		InstrBuffer emit(int value) {
+			if (size == instrs.length) {
+				instrs = Arrays.copyOf(instrs, size << 1);
+			}
+			instrs[size++] = value;
+			return this;
+		}
+
+		int label() {
+			return size;
+		}
+
+		int placeholder() {
+			emit(0);
+			return size - 1;
+		}
+
+		void patch(int position, int label) {
+			instrs[position] = label;
+		}
+
+		int[] toInstrs() {
+			return Arrays.copyOf(instrs, size);
+		}
+	}
+
+	// allocation of the registers of a function, the first registers are the local variables
+	// (same slot numbering as the InstrRewriter), the temporaries are allocated after them.
+	// The lifetimes of the temporaries are nested (a temporary lives until the end of the expression that uses it),
+	// so the linear scan allocation is a stack of registers: a register is free again when its expression is done
+	static final class Registers {
+		private int top;
+		private int max;
+
+		Registers(int localCount) {
+			top = localCount;
+			max = localCount;
+		}
+
+		int allocate() {
+			var register = top++;
+			max = Math.max(max, top);
+			return register;
+		}
+
+		int mark() {
+			return top;
+		}
+
+		void release(int mark) {
+			top = mark;
+		}
+
+		int max() {
+			return max;
+		}
+	}
+
+	// the register is not used, the value of the expression is discarded
+	private static final int NO_REGISTER = -1;
+	// the value of the call is returned, the call is a TAILCALL followed by a RET
+	private static final int TAIL_CALL = -2;
+
+	// the index of the operator in OPERATOR_NAMES if the call is a call to a global operator, -1 otherwise
+	private static int operatorIndex(Expr qualifier, List<Expr> args, JSObject env) {
+		if (qualifier instanceof LocalVarAccess(String name, int _) && args.size() == 2 && env.lookup(name) == UNDEFINED) {
+			return OPERATOR_NAMES.indexOf(name);
+		}
+		return -1;
+	}
+
+	// emit the call, the value is in the register base, either moved to dst or returned
+	private static void emitCall(int function, int base, int argumentCount, int dst, InstrBuffer buffer) {
+		if (dst == TAIL_CALL) {
+			buffer.emit(TAILCALL).emit(function).emit(base).emit(argumentCount);
+			buffer.emit(RET).emit(base);
+			return;
+		}
+		buffer.emit(CALL).emit(function).emit(base).emit(argumentCount);
+		if (dst != NO_REGISTER) {
+			buffer.emit(MOVE).emit(dst).emit(base);
+		}
+	}
+
+	public static JSObject createFunction(Optional<String> name, List<String> parameters, Block body, Dictionary dict) {
+		var env = JSObject.newEnv(null);
+
+		env.register("this", 0);
+		for (var parameter : parameters) {
+			env.register(parameter, env.length());
+		}
+		visitVariable(body, env); // traverse to find all declared variables and register them
+
+		var registers = new Registers(env.length());
+		var buffer = new InstrBuffer();
+		visit(body, NO_REGISTER, env, registers, buffer, dict);
+		// always add return undefined at the end, in case of missing return
+		var result = registers.allocate();
+		buffer.emit(CONST).emit(result).emit(encodeDictObject(UNDEFINED, dict));
+		buffer.emit(RET).emit(result);
+
+		var instrs = buffer.toInstrs();
+		var code = new RegCode(instrs, parameters.size() + 1 /* this */, registers.max());
+		// like the functions of the StackInterpreter, the function is only called by the RegInterpreter
+		// using its __code__, a native function (e.g. an operator) or the Java code can not call it
+		var function = JSObject.newFunction(name.orElse("lambda"), (receiver, args) -> {
+			throw new Failure("native call not supported");
+		});
+		function.register("__code__", code);
+		return function;
+	}
+
+	private static void visitVariable(Expr expression, JSObject env) {
+		switch (expression) {
+			case Block(List<Expr> instrs, int lineNumber) -> {
+				for (Expr instr : instrs) {
+					visitVariable(instr, env);
+				}
+			}
+			case LocalVarAssignment(String name, Expr expr, boolean declaration, int lineNumber) -> {
+				// a variable can be declared twice, e.g. in both branches of an if
+				if (declaration && env.lookup(name) == UNDEFINED) {
+					env.register(name, env.length());
+				}
+			}
+			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) -> {
+				visitVariable(trueBlock, env);
+				visitVariable(falseBlock, env);
+			}
+			default -> {
+				// do nothing
+			}
+		}
+	}
+
+	// the register that contains the value of the expression, either the register of a local variable
+	// or a new temporary
+	private static int operand(Expr expression, JSObject env, Registers registers, InstrBuffer buffer, Dictionary dict) {
+		if (expression instanceof LocalVarAccess(String name, int _) && env.lookup(name) instanceof Integer slot) {
+			return slot;
+		}
+		var register = registers.allocate();
+		visit(expression, register, env, registers, buffer, dict);
+		return register;
+	}
+
+	// the register that will contain the value of the expression, a new temporary if the value is discarded
+	private static int target(int dst, Registers registers) {
+		return (dst == NO_REGISTER) ? registers.allocate() : dst;
+	}
+
+	// emit the instructions that compute the value of the expression in the register dst
+	private static void visit(Expr expression, int dst, JSObject env, Registers registers, InstrBuffer buffer, Dictionary dict) {
+		switch (expression) {
+			case Block(List<Expr> instrs, int lineNumber) -> {
+				for (var instr : instrs) {
+					visit(instr, NO_REGISTER, env, registers, buffer, dict);
+				}
+			}
+			case Literal<?>(Object literalValue, int lineNumber) -> {
+				if (dst == NO_REGISTER) {
+					return;
+				}
+				// test if the literal value is an integer that fits in 31 bits
+				if (literalValue instanceof Integer value && TagValues.fitsSmallInt(value)) {
+					buffer.emit(CONST).emit(dst).emit(encodeSmallInt(value));
+				} else {
+					buffer.emit(CONST).emit(dst).emit(encodeDictObject(literalValue, dict));
+				}
+			}
+			case Folded(Object value, FunCall call, Map<String, Object> operators, int lineNumber) -> {
+				// the folded value is computed by the builtin operators, otherwise only the call is emitted
+				if (!operators.entrySet().stream().allMatch(e -> StackInterpreter.isBuiltinOperator(e.getKey(), e.getValue()))) {
+					visit(call, dst, env, registers, buffer, dict);
+					return;
+				}
+				var callPlaceHolder = buffer.emit(JUMP_IF_NOT_BUILTIN).placeholder();
+				buffer.emit(GlobalGuards.operators(operators.keySet()));
+				visit(new Literal<>(value, lineNumber), dst, env, registers, buffer, dict);
+				var endPlaceHolder = buffer.emit(JUMP).placeholder();
+				buffer.patch(callPlaceHolder, buffer.label());
+				visit(call, dst, env, registers, buffer, dict);
+				buffer.patch(endPlaceHolder, buffer.label());
+			}
+			case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
+				var mark = registers.mark();
+				// a call to a global operator with two arguments is an operator instruction
+				var operatorIndex = operatorIndex(qualifier, args, env);
+				if (operatorIndex != -1) {
+					var target = target(dst, registers);
+					var left = operand(args.get(0), env, registers, buffer, dict);
+					var right = operand(args.get(1), env, registers, buffer, dict);
+					buffer.emit(ADD + operatorIndex).emit(target).emit(left).emit(right);
+					registers.release(mark);
+					return;
+				}
+				var function = operand(qualifier, env, registers, buffer, dict);
+				// the receiver and the arguments are in consecutive registers
+				var base = registers.allocate();
+				buffer.emit(CONST).emit(base).emit(encodeDictObject(UNDEFINED, dict));
+				for (var arg : args) {
+					visit(arg, registers.allocate(), env, registers, buffer, dict);
+				}
+				emitCall(function, base, args.size(), dst, buffer);
+				registers.release(mark);
+			}
+			case LocalVarAccess(String name, int lineNumber) -> {
+				if (dst == NO_REGISTER) {
+					return;
+				}
+				var slotOrUndefined = env.lookup(name);
+				if (slotOrUndefined == UNDEFINED) {
+					buffer.emit(LOOKUP).emit(dst).emit(encodeDictObject(name, dict));
+				} else {
+					buffer.emit(MOVE).emit(dst).emit((int) slotOrUndefined);
+				}
+			}
+			case LocalVarAssignment(String name, Expr expr, boolean declaration, int lineNumber) -> {
+				var slotOrUndefined = env.lookup(name);
+				if (slotOrUndefined == UNDEFINED) {
+					throw new Failure("unknown local variable " + name);
+				}
+				// compute the value directly in the register of the variable
+				visit(expr, (int) slotOrUndefined, env, registers, buffer, dict);
+			}
+			case Fun(Optional<String> optName, List<String> parameters, Block body, int lineNumber) -> {
+				var mark = registers.mark();
+				var target = target(dst, registers);
+				var fun = createFunction(optName, parameters, body, dict);
+				buffer.emit(CONST).emit(target).emit(encodeDictObject(fun, dict));
+				// if the name is present, register the function in the global environment
+				if (optName.isPresent()) {
+					buffer.emit(REGISTER).emit(target).emit(encodeDictObject(optName.get(), dict));
+				}
+				registers.release(mark);
+			}
+			case Return(Expr expr, int lineNumber) -> {
+				// a call in tail position reuses the frame
+				if ((expr instanceof FunCall(Expr qualifier, List<Expr> args, int _) && operatorIndex(qualifier, args, env) == -1)
+						|| expr instanceof MethodCall) {
+					visit(expr, TAIL_CALL, env, registers, buffer, dict);
+					return;
+				}
+				var mark = registers.mark();
+				var result = operand(expr, env, registers, buffer, dict);
+				buffer.emit(RET).emit(result);
+				registers.release(mark);
+			}
+			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) -> {
+				var mark = registers.mark();
+				var test = operand(condition, env, registers, buffer, dict);
+				registers.release(mark);
+				var falsePlaceHolder = buffer.emit(JUMP_IF_FALSE).emit(test).placeholder();
+				visit(trueBlock, NO_REGISTER, env, registers, buffer, dict);
+				var endPlaceHolder = buffer.emit(JUMP).placeholder();
+				buffer.patch(falsePlaceHolder, buffer.label());
+				visit(falseBlock, NO_REGISTER, env, registers, buffer, dict);
+				buffer.patch(endPlaceHolder, buffer.label());
+			}
+			case New(Map<String, Expr> initMap, int lineNumber) -> {
+				var mark = registers.mark();
+				var target = target(dst, registers);
+				// create a JSObject class, the field values are computed in consecutive registers
+				var clazz = JSObject.newObject(null);
+				var base = registers.mark();
+				initMap.forEach((fieldName, expr) -> {
+					clazz.register(fieldName, clazz.length());
+					visit(expr, registers.allocate(), env, registers, buffer, dict);
+				});
+				buffer.emit(NEW).emit(target).emit(encodeDictObject(clazz, dict)).emit(base);
+				registers.release(mark);
+			}
+			case FieldAccess(Expr receiver, String name, int lineNumber) -> {
+				var mark = registers.mark();
+				var target = target(dst, registers);
+				var object = operand(receiver, env, registers, buffer, dict);
+				buffer.emit(GET).emit(target).emit(object).emit(encodeDictObject(name, dict));
+				registers.release(mark);
+			}
+			case FieldAssignment(Expr receiver, String name, Expr expr, int lineNumber) -> {
+				var mark = registers.mark();
+				var object = operand(receiver, env, registers, buffer, dict);
+				var value = operand(expr, env, registers, buffer, dict);
+				buffer.emit(PUT).emit(object).emit(encodeDictObject(name, dict)).emit(value);
+				registers.release(mark);
+			}
+			case MethodCall(Expr receiver, String name, List<Expr> args, int lineNumber) -> {
+				var mark = registers.mark();
+				var function = registers.allocate();
+				// the receiver and the arguments are in consecutive registers
+				var base = registers.allocate();
+				visit(receiver, base, env, registers, buffer, dict);
+				buffer.emit(GET).emit(function).emit(base).emit(encodeDictObject(name, dict));
+				for (var arg : args) {
+					visit(arg, registers.allocate(), env, registers, buffer, dict);
+				}
+				emitCall(function, base, args.size(), dst, buffer);
+				registers.release(mark);
+			}
+		}
+	}
+}
@@ -48,6 +48,9 @@ public final class ArrayMap extends AbstractMap<String, Object> {
   Object fastAccess(int slot) {
     return array[slot];
   }
+  void fastPut(int slot, Object value) {
+    array[slot] = value;
+  }
   
   @Override
   public Object get(Object key) {
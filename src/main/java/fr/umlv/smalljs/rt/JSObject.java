@@ -7,8 +7,10 @@ import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.invoke.SwitchPoint;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 
 public final class JSObject {
@@ -16,7 +18,8 @@ public final class JSObject {
   private final String name;
   private final MethodHandle mh;
   private final /*LinkedHashMap<String, Object>*/ArrayMap valueMap = new /*LinkedHashMap<>*/ArrayMap();
-  private SwitchPoint switchPoint = new SwitchPoint();
+  private SwitchPoint switchPoint;  // lazily allocated, when some code depends on the values
+  private HashMap<String, SwitchPoint> keySwitchPoints;  // lazily allocated, when some code depends on the value of a key
   
   private static final class Undefined {
   	@Override public String toString() { return "undefined"; }
@@ -67,6 +70,9 @@ public final class JSObject {
     return function;
   }
   
+  public JSObject getProto() {
+    return proto;
+  }
   public String getName() {
 		return name;
 	}
@@ -74,14 +80,31 @@ public final class JSObject {
     return mh;
   }
   public SwitchPoint getSwitchPoint() {
+    if (switchPoint == null) {
+      switchPoint = new SwitchPoint();
+    }
     return switchPoint;
   }
+  // the switch point invalidated when the value of the key changes
+  public SwitchPoint getSwitchPoint(String key) {
+    requireNonNull(key);
+    if (keySwitchPoints == null) {
+      keySwitchPoints = new HashMap<>();
+    }
+    return keySwitchPoints.computeIfAbsent(key, _ -> new SwitchPoint());
+  }
   public ArrayMap.Layout getLayout() {
     return valueMap.layout();
   }
   public Object fastAccess(int slot) {
     return valueMap.fastAccess(slot);
   }
+  // register a value of a key already present at the slot of the current layout
+  public void fastRegister(int slot, String key, Object value) {
+    requireNonNull(value);
+    valueMap.fastPut(slot, value);
+    invalidate(key);
+  }
 
   public Object invoke(Object receiver, Object[] args) {
     //System.err.println("invoke " + this + " " + receiver + " " + java.util.Arrays.toString(args));
@@ -118,15 +141,34 @@ public final class JSObject {
     requireNonNull(key);
     requireNonNull(value);
     valueMap.put(key, value);
-    
+    invalidate(key);
+  }
+
+  private void invalidate(String key) {
+    var keySwitchPoint = keySwitchPoints == null ? null : keySwitchPoints.remove(key);
+    if (switchPoint == null && keySwitchPoint == null) {  // no code depends on the value
+      return;
+    }
     // broadcast change, not thread safe
-    SwitchPoint.invalidateAll(new SwitchPoint[] { switchPoint });
-    switchPoint = new SwitchPoint();
+    if (switchPoint == null) {
+      SwitchPoint.invalidateAll(new SwitchPoint[] { keySwitchPoint });
+    } else if (keySwitchPoint == null) {
+      SwitchPoint.invalidateAll(new SwitchPoint[] { switchPoint });
+    } else {
+      SwitchPoint.invalidateAll(new SwitchPoint[] { switchPoint, keySwitchPoint });
+    }
+    switchPoint = null;
   }
   
   public int length() {
     return valueMap.size();
   }
+
+  // iterate over the keys and the values in the order of registration
+  public void forEach(BiConsumer<? super String, Object> action) {
+    requireNonNull(action);
+    valueMap.forEach(action);
+  }
   
   public JSObject mirror(Function<Object, Object> valueMapper) {
     requireNonNull(valueMapper);
@@ -2,11 +2,35 @@ package fr.umlv.smalljs.stackinterp;
 
 import static java.util.Objects.requireNonNull;
 
-public record Code(int[] instrs, int parameterCount, int slotCount) {
+// caches is a side table of the instructions used by the inline caches of the interpreter,
+// the cache of an instruction starts at the same index as the instruction.
+// A Code is shared by all the executions of a function and both arrays are mutated in place:
+// the inline caches are written in caches and the StackInterpreter quickens FUNCALL (resp. TAILCALL)
+// to FUNCALL_CODE (resp. TAILCALL_CODE) and back in instrs. These are the only instructions
+// rewritten after the compilation, a quickened instruction keeps the size and the operands
+// of the original one, so the ThreadedInterpreter decodes both forms and Snapshot saves
+// the unquickened form (the caches are never saved)
+public record Code(int[] instrs, int parameterCount, int slotCount, int maxStack, int[] caches) {
 	public Code {
+		requireNonNull(instrs);
+		requireNonNull(caches);
 		if (parameterCount < 1 || slotCount < 1 || parameterCount > slotCount) {
 			throw new IllegalArgumentException("invalid parameter or slot count");
 		}
-		requireNonNull(instrs);
+		if (maxStack < 0) {
+			throw new IllegalArgumentException("invalid max stack");
+		}
+		if (caches.length != instrs.length) {
+			throw new IllegalArgumentException("invalid caches length");
+		}
+	}
+
+	public Code(int[] instrs, int parameterCount, int slotCount, int maxStack) {
+		this(instrs, parameterCount, slotCount, maxStack, new int[instrs.length]);
+	}
+
+	public Code(int[] instrs, int parameterCount, int slotCount) {
+		// no static analysis, an operand stack can not be bigger than the number of instructions
+		this(instrs, parameterCount, slotCount, instrs.length);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// an on-disk cache of the scripts compiled by the StackInterpreter,
+// the entries are snapshots (see Snapshot) named by the hash of the source of the script,
+// so a script that has already been run is not parsed again, main is not compiled again
+// and a function is only read (or compiled from its saved AST) if the function is called.
+// A cache can be shared by several processes, an entry is written in a temporary file then renamed
+public final class CodeCache {
+	// change it when the instructions or the format of the snapshot change
+	private static final String VERSION = "smalljs-stack-6";
+
+	private final Path directory;
+
+	public CodeCache(Path directory) {
+		this.directory = requireNonNull(directory);
+	}
+
+	// the name of the entry of a source
+	static String key(String source) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		digest.update(VERSION.getBytes(UTF_8));
+		digest.update(source.getBytes(UTF_8));
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	// return the compiled script, either from the cache or compiled and stored in the cache
+	public Snapshot.State load(String source, PrintStream outStream) throws IOException {
+		requireNonNull(source);
+		requireNonNull(outStream);
+		var path = directory.resolve(key(source));
+		if (Files.exists(path)) {
+			try {
+				return Snapshot.restore(path, outStream);
+			} catch (IOException | RuntimeException e) {
+				// a truncated or corrupted entry, remove it and compile the script again
+				deleteEntry(path);
+			}
+		}
+		var state = StackInterpreter.compile(createScript(new StringReader(source)), outStream);
+		Files.createDirectories(directory);
+		var temporary = Files.createTempFile(directory, "entry", ".tmp");
+		try {
+			Snapshot.save(temporary, state);
+			Files.move(temporary, path, ATOMIC_MOVE, REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+		return state;
+	}
+
+	// another process may have already removed or replaced the entry,
+	// if the entry can not be removed, it is replaced when the script is compiled again
+	private static void deleteEntry(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			// the entry is replaced by the move
+		}
+	}
+}
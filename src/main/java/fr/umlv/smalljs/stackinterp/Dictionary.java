@@ -2,10 +2,13 @@ package fr.umlv.smalljs.stackinterp;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class Dictionary {
 	private final HashMap<Object, Integer> indexMap = new HashMap<>();
 	private final ArrayList<Object> constants = new ArrayList<>();
+	// the epochs of the LOOKUP caches of the codes of this dictionary (see GlobalGuards.epoch)
+	private final AtomicInteger epoch = new AtomicInteger();
 
 	public int index(Object constant) {
 		return indexMap.computeIfAbsent(constant, key -> {
@@ -18,4 +21,13 @@ public final class Dictionary {
 	public Object getConst(int index) {
 		return constants.get(index);
 	}
+
+	public int size() {
+		return constants.size();
+	}
+
+	// a new epoch, never 0 (the value of an empty cache) unless 2^32 epochs have been used
+	int nextEpoch() {
+		return epoch.incrementAndGet();
+	}
 }
@@ -0,0 +1,295 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.GC_EMPTY;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.GC_MARK;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.GC_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.mark;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.objectSize;
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+
+import java.util.Arrays;
+
+import fr.umlv.smalljs.rt.Failure;
+
+// a generational layout of the heap of the StackInterpreter (see Options.nurserySize),
+// the nursery [0, nurserySize) is a bump pointer region, the old space [nurserySize, heap.size()) grows with the heap.
+// A minor GC copies the live objects of the nursery to the old space (all survivors are promoted),
+// the roots are the stack and the old objects of the dirty cards.
+// A major GC marks the whole heap and slides the live old objects down (mark-compact),
+// the young objects are not moved, the next minor GC promotes them.
+//
+// The old space is divided in cards of CARD_SIZE ints, PUT marks the card of the field it writes as dirty,
+// crossings stores, for each card, the start of the object that contains the first int of the card,
+// so a dirty card can be scanned without scanning the old space from its start.
+// All the iterations of a script are recursive calls so the stack is deep, a minor GC only scans the stack
+// above a watermark, the frames below the watermark have not been modified since the last minor GC,
+// so they do not reference young objects (see returnTo)
+final class Generations {
+	static final int CARD_SHIFT = 5;
+	static final int CARD_SIZE = 1 << CARD_SHIFT;
+
+	private final Heap heap;
+	private final int nurserySize;
+	private final Options options;
+	private final Dictionary dict;
+
+	private int youngTop;  // bump pointer of the nursery
+	private int oldTop;  // allocation pointer of the old space
+	private int stackWatermark;
+	private boolean[] cards;
+	private int[] crossings;
+
+	Generations(Heap heap, Options options, Dictionary dict) {
+		this.heap = heap;
+		this.nurserySize = options.nurserySize();
+		this.options = options;
+		this.dict = dict;
+		this.oldTop = nurserySize;
+		this.cards = new boolean[cardCount(heap.size())];
+		this.crossings = new int[cards.length];
+	}
+
+	private static int cardCount(int heapSize) {
+		return (heapSize + CARD_SIZE - 1) >>> CARD_SHIFT;
+	}
+
+	// the write barrier, slot is the index of the field written by PUT
+	void recordWrite(int slot) {
+		cards[slot >>> CARD_SHIFT] = true;
+	}
+
+	// called when a function returns, the frame of the caller at bp may now be modified
+	void returnTo(int bp) {
+		if (bp < stackWatermark) {
+			stackWatermark = bp;
+		}
+	}
+
+	// the roots are the values of the stack below sp, bp is the base of the current frame,
+	// return the reference of the new object
+	int allocate(int size, int[] stack, int sp, int bp) {
+		if (youngTop + size > nurserySize) {
+			collect(stack, sp, bp);
+			if (size > nurserySize) {
+				// too big for the nursery, the object is directly allocated in the old space,
+				// its fields are written by NEW without a write barrier so its cards are dirty
+				ensureOldSpace(size);
+				var ref = oldTop;
+				allocateOld(ref, size);
+				for (var slot = ref; slot < ref + size; slot += CARD_SIZE) {
+					recordWrite(slot);
+				}
+				recordWrite(ref + size - 1);
+				return ref;
+			}
+		}
+		var ref = youngTop;
+		youngTop += size;
+		return ref;
+	}
+
+	private void collect(int[] stack, int sp, int bp) {
+		// the old space may not have enough room for the survivors
+		if (oldTop + youngTop > heap.size()) {
+			var oldTopBefore = oldTop;
+			majorGC(stack, sp);
+			// grow the heap if the GC has not reclaimed enough memory
+			var oldSize = heap.size() - nurserySize;
+			if (oldTop + youngTop > heap.size() || oldTopBefore - oldTop < options.minReclaimRatio() * oldSize) {
+				grow(oldTop + youngTop);
+			}
+		}
+		minorGC(stack, sp, bp);
+	}
+
+	private void ensureOldSpace(int size) {
+		if (oldTop + size > heap.size()) {
+			grow(oldTop + size);
+			if (oldTop + size > heap.size()) {
+				throw new Failure("out of memory");
+			}
+		}
+	}
+
+	// grow the old space, the heap never grows beyond its maximum size
+	private void grow(int needed) {
+		var newSize = Options.grow(heap.size(), needed, options.maxHeapSize(), options.growthFactor());
+		if (newSize <= heap.size()) {
+			return;
+		}
+		heap.grow(newSize);
+		cards = Arrays.copyOf(cards, cardCount(heap.size()));
+		crossings = Arrays.copyOf(crossings, cards.length);
+	}
+
+	private void allocateOld(int ref, int size) {
+		// update the crossings of the cards that start inside the object
+		for (var card = (ref + CARD_SIZE - 1) >>> CARD_SHIFT; card << CARD_SHIFT < ref + size; card++) {
+			crossings[card] = ref;
+		}
+		oldTop = ref + size;
+	}
+
+	// copy a young object to the old space, return its new address,
+	// the GC slot of the young object is used to store its new address
+	private int promote(int ref) {
+		var forward = heap.get(ref + GC_OFFSET);
+		if (forward != GC_EMPTY) {
+			return forward;  // already promoted
+		}
+		var size = objectSize(heap, ref, dict);
+		ensureOldSpace(size);
+		var newRef = oldTop;
+		heap.move(ref, newRef, size);
+		allocateOld(newRef, size);
+		heap.set(ref + GC_OFFSET, newRef);
+		return newRef;
+	}
+
+	// promote the young object referenced by the value if any, return the new value
+	private int promoteValue(int value) {
+		if (isReference(value)) {
+			var ref = decodeReference(value);
+			if (ref < nurserySize) {
+				return encodeReference(promote(ref));
+			}
+		}
+		return value;
+	}
+
+	private void promoteFields(int ref) {
+		var end = ref + objectSize(heap, ref, dict);
+		for (var i = ref + OBJECT_HEADER_SIZE; i < end; i++) {
+			var value = heap.get(i);
+			var newValue = promoteValue(value);
+			if (newValue != value) {
+				heap.set(i, newValue);
+			}
+		}
+	}
+
+	private void minorGC(int[] stack, int sp, int bp) {
+		var youngTopBefore = youngTop;
+		var oldTopBefore = oldTop;
+
+		// 1. promote the young objects referenced by the stack above the watermark
+		for (var i = stackWatermark; i < sp; i++) {
+			stack[i] = promoteValue(stack[i]);
+		}
+		// only the current frame and the frames above it can be modified before the next function return
+		stackWatermark = bp;
+
+		// 2. promote the young objects referenced by the old objects of the dirty cards
+		for (var card = nurserySize >>> CARD_SHIFT; card < cards.length && card << CARD_SHIFT < oldTopBefore; card++) {
+			if (!cards[card]) {
+				continue;
+			}
+			cards[card] = false;
+			var cardEnd = Math.min((card + 1) << CARD_SHIFT, oldTopBefore);
+			for (var ref = Math.max(crossings[card], nurserySize); ref < cardEnd; ref += objectSize(heap, ref, dict)) {
+				promoteFields(ref);
+			}
+		}
+
+		// 3. scan the promoted objects (Cheney's algorithm), they may reference young objects
+		for (var ref = oldTopBefore; ref < oldTop; ref += objectSize(heap, ref, dict)) {
+			promoteFields(ref);
+		}
+
+		youngTop = 0;
+		if (Tracer.ENABLED) {
+			options.tracer().gc(youngTopBefore, 0, nurserySize);
+		}
+	}
+
+	private void majorGC(int[] stack, int sp) {
+		var oldTopBefore = oldTop;
+
+		// 1. scan the stack and recursively mark all reachable objects, young and old
+		for (var i = 0; i < sp; i++) {
+			var value = stack[i];
+			if (isReference(value)) {
+				mark(heap, decodeReference(value), dict);
+			}
+		}
+
+		// 2. scan the old space and store the new address of all live old objects in their GC slot
+		var newOldTop = nurserySize;
+		for (var ref = nurserySize; ref < oldTop;) {
+			var size = objectSize(heap, ref, dict);
+			if (heap.get(ref + GC_OFFSET) == GC_MARK) {
+				heap.set(ref + GC_OFFSET, newOldTop);
+				newOldTop += size;
+			}
+			ref += size;
+		}
+
+		// 3. rewrite the references to the old objects, in the stack, the live young objects and the live old objects,
+		// the cards are computed again, a field of an old object that references a young object dirties its new card
+		Arrays.fill(cards, false);
+		for (var i = 0; i < sp; i++) {
+			stack[i] = forwardValue(stack[i]);
+		}
+		for (var ref = 0; ref < youngTop;) {
+			var size = objectSize(heap, ref, dict);
+			if (heap.get(ref + GC_OFFSET) == GC_MARK) {
+				forwardFields(ref, size, ref);
+				heap.set(ref + GC_OFFSET, GC_EMPTY);
+			}
+			ref += size;
+		}
+		for (var ref = nurserySize; ref < oldTop;) {
+			var size = objectSize(heap, ref, dict);
+			var newRef = heap.get(ref + GC_OFFSET);
+			if (newRef != GC_EMPTY) {
+				forwardFields(ref, size, newRef);
+			}
+			ref += size;
+		}
+
+		// 4. scan the old space and move the live objects to their new addresses
+		oldTop = nurserySize;
+		for (var ref = nurserySize; ref < oldTopBefore;) {
+			var size = objectSize(heap, ref, dict);
+			var newRef = heap.get(ref + GC_OFFSET);
+			if (newRef != GC_EMPTY) {
+				heap.move(ref, newRef, size);
+				heap.set(newRef + GC_OFFSET, GC_EMPTY);
+				allocateOld(newRef, size);
+			}
+			ref += size;
+		}
+
+		if (Tracer.ENABLED) {
+			options.tracer().gc(oldTopBefore, oldTop, heap.size());
+		}
+	}
+
+	// the new value of a reference to an old object, the young objects are not moved by a major GC
+	private int forwardValue(int value) {
+		if (isReference(value)) {
+			var ref = decodeReference(value);
+			if (ref >= nurserySize) {
+				return encodeReference(heap.get(ref + GC_OFFSET));
+			}
+		}
+		return value;
+	}
+
+	// rewrite the fields of the object at ref that will be moved at newRef
+	private void forwardFields(int ref, int size, int newRef) {
+		for (var i = OBJECT_HEADER_SIZE; i < size; i++) {
+			var value = heap.get(ref + i);
+			if (isReference(value) && decodeReference(value) < nurserySize) {
+				if (newRef >= nurserySize) {
+					recordWrite(newRef + i);
+				}
+				continue;
+			}
+			heap.set(ref + i, forwardValue(value));
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static java.util.Objects.requireNonNull;
+
+import java.lang.invoke.SwitchPoint;
+import java.util.Arrays;
+import java.util.Collection;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// the guards of the inline caches that depend on the global environment of an execution,
+// a guard uses the switch point of its key (see JSObject.getSwitchPoint(String)), so registering a global,
+// e.g. a named function declared at each call, only invalidates the caches of that global.
+// The LOOKUP caches are stored in the codes and shared by all the executions, they are stamped
+// with the epoch of their key, the codes are only executed with their dictionary, so the epochs
+// are counted by the dictionary and an epoch is never reused, even by another execution.
+// The stack, threaded and register interpreters create one instance per execution
+public final class GlobalGuards {
+	private final JSObject globalEnv;
+	private final Dictionary dict;
+
+	// indexed by the dictionary index of the name of a global
+	private SwitchPoint[] switchPoints = new SwitchPoint[0];
+	private int[] epochs = new int[0];
+
+	// indexed like Instructions.OPERATOR_NAMES
+	private final SwitchPoint[] operatorSwitchPoints = new SwitchPoint[Instructions.OPERATOR_NAMES.size()];
+	private final boolean[] builtinOperators = new boolean[Instructions.OPERATOR_NAMES.size()];
+
+	public GlobalGuards(JSObject globalEnv, Dictionary dict) {
+		this.globalEnv = requireNonNull(globalEnv);
+		this.dict = requireNonNull(dict);
+	}
+
+	// the epoch of the global named by vName (a string encoded in the dictionary),
+	// a new epoch is used each time the global is registered
+	public int epoch(int vName) {
+		var index = vName >>> 2;
+		if (index >= epochs.length) {
+			// the compilation of a function at its first call adds names to the dictionary
+			var length = Math.max(index + 1, dict.size());
+			switchPoints = Arrays.copyOf(switchPoints, length);
+			epochs = Arrays.copyOf(epochs, length);
+		}
+		var switchPoint = switchPoints[index];
+		if (switchPoint == null || switchPoint.hasBeenInvalidated()) {
+			switchPoints[index] = globalEnv.getSwitchPoint((String) decodeDictObject(vName, dict));
+			epochs[index] = dict.nextEpoch();
+		}
+		return epochs[index];
+	}
+
+	// true if the operator (an index in OPERATOR_NAMES) of the global environment is the builtin one
+	public boolean builtinOperator(int operatorIndex) {
+		var switchPoint = operatorSwitchPoints[operatorIndex];
+		if (switchPoint == null || switchPoint.hasBeenInvalidated()) {
+			var name = Instructions.OPERATOR_NAMES.get(operatorIndex);
+			// get the switch point before the value, so a change of the value is always seen
+			operatorSwitchPoints[operatorIndex] = globalEnv.getSwitchPoint(name);
+			builtinOperators[operatorIndex] = StackInterpreter.isBuiltinOperator(name, globalEnv.lookup(name));
+		}
+		return builtinOperators[operatorIndex];
+	}
+
+	// the bitmask of operators, the bit i is set if the operator i of OPERATOR_NAMES is one of the names,
+	// the operand of JUMP_IF_NOT_BUILTIN
+	public static int operators(Collection<String> names) {
+		var operators = 0;
+		for (var name : names) {
+			var index = Instructions.OPERATOR_NAMES.indexOf(name);
+			if (index == -1) {
+				throw new IllegalArgumentException("unknown operator " + name);
+			}
+			operators |= 1 << index;
+		}
+		return operators;
+	}
+
+	// true if the operators of the bitmask (see operators(Collection)) are the builtin ones,
+	// the guard of a constant folded by the ConstantFolder only checks the operators used to compute it
+	public boolean builtinOperators(int operators) {
+		for (var bits = operators; bits != 0; bits &= bits - 1) {
+			if (!builtinOperator(Integer.numberOfTrailingZeros(bits))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
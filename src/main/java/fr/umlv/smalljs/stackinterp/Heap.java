@@ -0,0 +1,192 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// the memory of the objects allocated by the interpreters, indexed by int (see TagValues.encodeReference),
+// either an int array on the Java heap or a memory segment outside the Java heap, so a big script heap
+// is not scanned nor copied by the GC of the JVM.
+// The references are still tagged 30-bit ints, so an off-heap heap is not bigger than an on-heap one
+// (see TagValues.MAX_HEAP_SIZE), lifting this limit requires 64-bit values.
+// A heap is owned by one execution, it grows (keeping its content) after a GC and is closed at the end of the execution
+public sealed interface Heap extends AutoCloseable {
+	int size();
+	int get(int index);
+	void set(int index, int value);
+
+	// copy length ints from the array to the heap
+	void copyFrom(int[] array, int arrayIndex, int index, int length);
+
+	// copy length ints inside the heap, the two ranges may overlap
+	void move(int from, int to, int length);
+
+	void grow(int newSize);
+
+	@Override
+	void close();
+
+	// creates the heap of an execution, see Options.heapFactory
+	@FunctionalInterface
+	interface Factory {
+		Heap create(int size);
+	}
+
+	static Heap onHeap(int size) {
+		return new ArrayHeap(new int[size]);
+	}
+
+	static Heap offHeap(int size) {
+		return new SegmentHeap(size, null);
+	}
+
+	// the content of the heap is mapped to the file, the file is created if it does not exist
+	static Factory mapped(Path path) {
+		requireNonNull(path);
+		return size -> new SegmentHeap(size, path);
+	}
+
+	final class ArrayHeap implements Heap {
+		private int[] array;
+
+		private ArrayHeap(int[] array) {
+			this.array = array;
+		}
+
+		@Override
+		public int size() {
+			return array.length;
+		}
+
+		@Override
+		public int get(int index) {
+			return array[index];
+		}
+
+		@Override
+		public void set(int index, int value) {
+			array[index] = value;
+		}
+
+		@Override
+		public void copyFrom(int[] array, int arrayIndex, int index, int length) {
+			System.arraycopy(array, arrayIndex, this.array, index, length);
+		}
+
+		@Override
+		public void move(int from, int to, int length) {
+			System.arraycopy(array, from, array, to, length);
+		}
+
+		@Override
+		public void grow(int newSize) {
+			array = Arrays.copyOf(array, newSize);
+		}
+
+		@Override
+		public void close() {
+			// the array is reclaimed by the GC of the JVM
+		}
+	}
+
+	// the segment is allocated by a confined arena, so the heap can only be used by the thread that runs the execution,
+	// if the heap is mapped, the file is mapped again when the heap grows, otherwise the content is copied to a new segment
+	final class SegmentHeap implements Heap {
+		private final FileChannel channel;  // or null
+		private Arena arena;
+		private MemorySegment segment;
+		private int size;
+
+		private SegmentHeap(int size, Path path) {
+			try {
+				channel = (path == null) ? null : FileChannel.open(path, CREATE, READ, WRITE);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			allocate(size);
+		}
+
+		private void allocate(int size) {
+			var arena = Arena.ofConfined();
+			var bytes = (long) size * Integer.BYTES;
+			MemorySegment segment;
+			try {
+				segment = (channel == null) ? arena.allocate(bytes, Integer.BYTES) : map(channel, bytes, arena);
+			} catch (RuntimeException e) {
+				arena.close();
+				throw e;
+			}
+			// a mapped file already contains the old content
+			if (this.segment != null && channel == null) {
+				MemorySegment.copy(this.segment, 0, segment, 0, Math.min(this.segment.byteSize(), bytes));
+			}
+			if (this.arena != null) {
+				this.arena.close();
+			}
+			this.arena = arena;
+			this.segment = segment;
+			this.size = size;
+		}
+
+		private static MemorySegment map(FileChannel channel, long bytes, Arena arena) {
+			try {
+				return channel.map(MapMode.READ_WRITE, 0, bytes, arena);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public int get(int index) {
+			return segment.getAtIndex(JAVA_INT, index);
+		}
+
+		@Override
+		public void set(int index, int value) {
+			segment.setAtIndex(JAVA_INT, index, value);
+		}
+
+		@Override
+		public void copyFrom(int[] array, int arrayIndex, int index, int length) {
+			MemorySegment.copy(array, arrayIndex, segment, JAVA_INT, (long) index * Integer.BYTES, length);
+		}
+
+		@Override
+		public void move(int from, int to, int length) {
+			MemorySegment.copy(segment, (long) from * Integer.BYTES, segment, (long) to * Integer.BYTES, (long) length * Integer.BYTES);
+		}
+
+		@Override
+		public void grow(int newSize) {
+			allocate(newSize);
+		}
+
+		@Override
+		public void close() {
+			arena.close();
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+}
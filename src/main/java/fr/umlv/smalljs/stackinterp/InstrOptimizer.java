@@ -0,0 +1,263 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.Instructions.*;
+
+import java.util.Arrays;
+
+// optimizations of the instructions generated by the InstrRewriter
+final class InstrOptimizer {
+	private InstrOptimizer() {
+		throw new AssertionError();
+	}
+
+	// find all the instructions that are the target of a jump
+	private static boolean[] jumpTargets(int[] instrs) {
+		var targets = new boolean[instrs.length + 1];
+		for (var pc = 0; pc < instrs.length; pc += size(instrs[pc])) {
+			if (isJump(instrs[pc])) {
+				targets[instrs[pc + 1]] = true;
+			}
+		}
+		return targets;
+	}
+
+	// find the instruction after the instruction at pc, -1 if there is none or if it is the target of a jump
+	private static int next(int[] instrs, boolean[] targets, int pc) {
+		var next = pc + size(instrs[pc]);
+		if (next >= instrs.length || targets[next]) {
+			return -1;
+		}
+		return next;
+	}
+
+	// optimize the instructions, run the peephole optimizations and the dead code elimination until nothing changes,
+	// then create the superinstructions and verify the result
+	static int[] optimize(int[] instrs) {
+		for (;;) {
+			var newInstrs = deadCode(peephole(instrs));
+			if (Arrays.equals(newInstrs, instrs)) {
+				break;
+			}
+			instrs = newInstrs;
+		}
+		instrs = superinstructions(instrs);
+		verify(instrs);
+		return instrs;
+	}
+
+	// simplify the sequences of instructions that do nothing or that can be done with less instructions,
+	// a sequence is never simplified if one of its instructions, apart from the first one, is the target of a jump
+	static int[] peephole(int[] instrs) {
+		var targets = jumpTargets(instrs);
+		var newInstrs = new int[instrs.length];
+		var newPcs = new int[instrs.length + 1]; // the new index of each instruction
+		var newPc = 0;
+		for (var pc = 0; pc < instrs.length;) {
+			newPcs[pc] = newPc;
+			var instr = instrs[pc];
+			var next = next(instrs, targets, pc);
+			var nextInstr = next == -1 ? -1 : instrs[next];
+			switch (instr) {
+				case DUP -> {
+					// DUP; POP -> nothing
+					if (nextInstr == POP) {
+						pc = next + 1;
+						continue;
+					}
+					// DUP; REGISTER name; POP -> REGISTER name
+					if (nextInstr == REGISTER) {
+						var last = next(instrs, targets, next);
+						if (last != -1 && instrs[last] == POP) {
+							newInstrs[newPc++] = REGISTER;
+							newInstrs[newPc++] = instrs[next + 1];
+							pc = last + 1;
+							continue;
+						}
+					}
+				}
+				case CONST, LOAD -> {
+					// CONST k; POP or LOAD n; POP -> nothing
+					if (nextInstr == POP) {
+						pc = next + 1;
+						continue;
+					}
+				}
+				case STORE -> {
+					// STORE n; LOAD n -> DUP; STORE n
+					if (nextInstr == LOAD && instrs[next + 1] == instrs[pc + 1]) {
+						newInstrs[newPc++] = DUP;
+						newInstrs[newPc++] = STORE;
+						newInstrs[newPc++] = instrs[pc + 1];
+						pc = next + 2;
+						continue;
+					}
+				}
+				case GOTO -> {
+					// jump to the next instruction -> nothing
+					if (instrs[pc + 1] == pc + 2) {
+						pc += 2;
+						continue;
+					}
+				}
+				case JUMP_IF_FALSE -> {
+					// conditional jump to the next instruction -> POP
+					if (instrs[pc + 1] == pc + 2) {
+						newInstrs[newPc++] = POP;
+						pc += 2;
+						continue;
+					}
+				}
+				default -> {
+					// no simplification
+				}
+			}
+			// copy the instruction
+			var size = size(instr);
+			System.arraycopy(instrs, pc, newInstrs, newPc, size);
+			pc += size;
+			newPc += size;
+		}
+		newPcs[instrs.length] = newPc;
+		return relocate(Arrays.copyOf(newInstrs, newPc), newPcs);
+	}
+
+	// remove the instructions that can not be reached from the first instruction
+	static int[] deadCode(int[] instrs) {
+		var reachables = new boolean[instrs.length];
+		var worklist = new int[instrs.length];
+		var worklistSize = 0;
+		reachables[0] = true;
+		worklist[worklistSize++] = 0;
+		while (worklistSize != 0) {
+			var pc = worklist[--worklistSize];
+			var instr = instrs[pc];
+			var next = fallsThrough(instr) ? pc + size(instr) : -1;
+			var target = isJump(instr) ? instrs[pc + 1] : -1;
+			for (var successor : new int[] { next, target }) {
+				if (successor != -1 && successor < instrs.length && !reachables[successor]) {
+					reachables[successor] = true;
+					worklist[worklistSize++] = successor;
+				}
+			}
+		}
+
+		var newInstrs = new int[instrs.length];
+		var newPcs = new int[instrs.length + 1]; // the new index of each instruction
+		var newPc = 0;
+		for (var pc = 0; pc < instrs.length;) {
+			newPcs[pc] = newPc;
+			var size = size(instrs[pc]);
+			if (reachables[pc]) {
+				System.arraycopy(instrs, pc, newInstrs, newPc, size);
+				newPc += size;
+			}
+			pc += size;
+		}
+		newPcs[instrs.length] = newPc;
+		return relocate(Arrays.copyOf(newInstrs, newPc), newPcs);
+	}
+
+	// check that the instructions are well formed, all the jumps go to the start of an instruction
+	// and the execution never goes beyond the last instruction
+	static void verify(int[] instrs) {
+		var starts = new boolean[instrs.length];
+		var last = -1;
+		for (var pc = 0; pc < instrs.length; pc += size(instrs[pc])) {
+			if (pc + size(instrs[pc]) > instrs.length) {
+				throw new IllegalStateException("truncated instruction at " + pc);
+			}
+			starts[pc] = true;
+			last = pc;
+		}
+		if (last == -1 || fallsThrough(instrs[last])) {
+			throw new IllegalStateException("the execution goes beyond the last instruction");
+		}
+		for (var pc = 0; pc < instrs.length; pc += size(instrs[pc])) {
+			if (isJump(instrs[pc])) {
+				var target = instrs[pc + 1];
+				if (target < 0 || target >= instrs.length || !starts[target]) {
+					throw new IllegalStateException("invalid jump target " + target + " at " + pc);
+				}
+			}
+		}
+	}
+
+	// replace the frequent sequences of instructions by superinstructions,
+	// a sequence is never fused if one of its instructions, apart from the first one, is the target of a jump
+	static int[] superinstructions(int[] instrs) {
+		var targets = jumpTargets(instrs);
+		var newInstrs = new int[instrs.length];
+		var newPcs = new int[instrs.length + 1]; // the new index of each instruction
+		var newPc = 0;
+		for (var pc = 0; pc < instrs.length;) {
+			newPcs[pc] = newPc;
+			var instr = instrs[pc];
+			var next = next(instrs, targets, pc);
+			var nextInstr = next == -1 ? -1 : instrs[next];
+			switch (instr) {
+				case LOAD -> {
+					if (nextInstr == LOAD) {
+						newInstrs[newPc++] = LOAD_LOAD;
+						newInstrs[newPc++] = instrs[pc + 1];
+						newInstrs[newPc++] = instrs[next + 1];
+						pc = next + 2;
+						continue;
+					}
+					if (nextInstr == RET) {
+						newInstrs[newPc++] = RETURN_LOCAL;
+						newInstrs[newPc++] = instrs[pc + 1];
+						pc = next + 1;
+						continue;
+					}
+				}
+				case CONST -> {
+					if (nextInstr == RET) {
+						newInstrs[newPc++] = RETURN_CONST;
+						newInstrs[newPc++] = instrs[pc + 1];
+						pc = next + 1;
+						continue;
+					}
+				}
+				case DUP -> {
+					if (nextInstr == GET) {
+						var last = next(instrs, targets, next);
+						if (last != -1 && instrs[last] == SWAP) {
+							newInstrs[newPc++] = GET_METHOD;
+							newInstrs[newPc++] = instrs[next + 1];
+							pc = last + 1;
+							continue;
+						}
+					}
+				}
+				case EQ, NE, LT, LE, GT, GE -> {
+					if (nextInstr == JUMP_IF_FALSE) {
+						newInstrs[newPc++] = instr - EQ + JUMP_IF_NE;
+						newInstrs[newPc++] = instrs[next + 1];
+						pc = next + 2;
+						continue;
+					}
+				}
+				default -> {
+					// no superinstruction
+				}
+			}
+			// copy the instruction
+			var size = size(instr);
+			System.arraycopy(instrs, pc, newInstrs, newPc, size);
+			pc += size;
+			newPc += size;
+		}
+		newPcs[instrs.length] = newPc;
+		return relocate(Arrays.copyOf(newInstrs, newPc), newPcs);
+	}
+
+	// change the target of the jumps using the new index of each instruction
+	static int[] relocate(int[] instrs, int[] newPcs) {
+		for (var pc = 0; pc < instrs.length; pc += size(instrs[pc])) {
+			if (isJump(instrs[pc])) {
+				instrs[pc + 1] = newPcs[instrs[pc + 1]];
+			}
+		}
+		return instrs;
+	}
+}
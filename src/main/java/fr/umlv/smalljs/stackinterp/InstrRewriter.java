@@ -24,6 +24,7 @@ import fr.umlv.smalljs.ast.Expr;
 import fr.umlv.smalljs.ast.Expr.Block;
 import fr.umlv.smalljs.ast.Expr.FieldAccess;
 import fr.umlv.smalljs.ast.Expr.FieldAssignment;
+import fr.umlv.smalljs.ast.Expr.Folded;
 import fr.umlv.smalljs.ast.Expr.Fun;
 import fr.umlv.smalljs.ast.Expr.FunCall;
 import fr.umlv.smalljs.ast.Expr.If;
@@ -59,7 +60,8 @@ public final class InstrRewriter {
 		}
 
 		int placeholder() {
-			return size++;
+			emit(0);
+			return size - 1;
 		}
 
 		void patch(int position, int label) {
@@ -71,7 +73,123 @@ public final class InstrRewriter {
 		}
 	}
 
+	// compute the maximum depth of the operand stack by propagating the stack depth
+	// along all the paths of the control flow
+	static int maxStack(int[] instrs, Dictionary dict) {
+		var depths = new int[instrs.length];
+		Arrays.fill(depths, -1);
+		var worklist = new int[instrs.length];
+		var worklistSize = 0;
+		depths[0] = 0;
+		worklist[worklistSize++] = 0;
+		var maxStack = 0;
+		while (worklistSize != 0) {
+			var pc = worklist[--worklistSize];
+			var instr = instrs[pc];
+			// compute the stack depth after the instruction
+			var depth = depths[pc] + switch (instr) {
+				case CONST, LOOKUP, LOAD, DUP, GET_METHOD -> 1;
+				case REGISTER, STORE, POP, JUMP_IF_FALSE, ADD, SUB, MUL, DIV, REM, EQ, NE, LT, LE, GT, GE -> -1;
+				case SWAP, PRINT, GET, GOTO, RET, JUMP_IF_NOT_BUILTIN -> 0;
+				case PUT, JUMP_IF_NE, JUMP_IF_EQ, JUMP_IF_GE, JUMP_IF_GT, JUMP_IF_LE, JUMP_IF_LT -> -2;
+				case LOAD_LOAD -> 2;
+				// push the return value and return
+				case RETURN_LOCAL, RETURN_CONST -> 1;
+				// pop the qualifier, the receiver and the arguments, push the result
+				case FUNCALL, FUNCALL_CODE, TAILCALL, TAILCALL_CODE -> -instrs[pc + 1] - 1;
+				// pop all the field values, push the reference
+				case NEW -> 1 - ((JSObject) TagValues.decodeDictObject(instrs[pc + 1], dict)).length();
+				default -> throw new IllegalStateException("unknown instr " + instr + " at " + pc);
+			};
+			if (depth < 0 || (instr == RET && depth < 1)) {
+				throw new IllegalStateException("stack underflow at " + pc);
+			}
+			maxStack = Math.max(maxStack, depth);
+
+			// find the successors of the instruction
+			var next = Instructions.fallsThrough(instr) ? pc + Instructions.size(instr) : -1;
+			var target = Instructions.isJump(instr) ? instrs[pc + 1] : -1;
+			for (var successor : new int[] { next, target }) {
+				if (successor == -1) {
+					continue;
+				}
+				if (depths[successor] == -1) {
+					depths[successor] = depth;
+					worklist[worklistSize++] = successor;
+				} else if (depths[successor] != depth) {
+					throw new IllegalStateException("inconsistent stack depth at " + successor);
+				}
+			}
+		}
+		return maxStack;
+	}
+
+	// the body of the function is compiled at the first call (see LazyCode),
+	// so a function that is never called is never compiled, the errors are reported by createMain
 	public static JSObject createFunction(Optional<String> name, List<String> parameters, Block body, Dictionary dict) {
+		var source = new LazyCode.Source(parameters, body);
+		return LazyCode.newFunction(name.orElse("lambda"), new LazyCode(source, () -> compile(parameters, body, dict)));
+	}
+
+	// the main function of a script, the errors of the compilation of the functions of the script
+	// are reported before the execution, even for a function that is never called (see check)
+	public static JSObject createMain(Block body, Dictionary dict) {
+		check(List.of(), body);
+		return createFunction(Optional.of("main"), List.of(), body, dict);
+	}
+
+	// report the errors of compile without compiling, for a function and the functions it declares
+	static void check(List<String> parameters, Block body) {
+		var env = JSObject.newEnv(null);
+		env.register("this", 0);
+		for (var parameter : parameters) {
+			env.register(parameter, env.length());
+		}
+		visitVariable(body, env);
+		check(body, env);
+	}
+
+	private static void check(Expr expression, JSObject env) {
+		switch (expression) {
+			case Block(List<Expr> instrs, int lineNumber) -> instrs.forEach(instr -> check(instr, env));
+			case Literal<?> literal -> {
+				// do nothing
+			}
+			case Folded(Object value, FunCall call, Map<String, Object> operators, int lineNumber) -> check(call, env);
+			case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
+				check(qualifier, env);
+				args.forEach(arg -> check(arg, env));
+			}
+			case LocalVarAccess localVarAccess -> {
+				// do nothing
+			}
+			case LocalVarAssignment(String name, Expr expr, boolean declaration, int lineNumber) -> {
+				check(expr, env);
+				if (env.lookup(name) == UNDEFINED) {
+					throw new Failure("unknown local variable " + name);
+				}
+			}
+			case Fun(Optional<String> optName, List<String> parameters, Block body, int lineNumber) -> check(parameters, body);
+			case Return(Expr expr, int lineNumber) -> check(expr, env);
+			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) -> {
+				check(condition, env);
+				check(trueBlock, env);
+				check(falseBlock, env);
+			}
+			case New(Map<String, Expr> initMap, int lineNumber) -> initMap.values().forEach(expr -> check(expr, env));
+			case FieldAccess(Expr receiver, String name, int lineNumber) -> check(receiver, env);
+			case FieldAssignment(Expr receiver, String name, Expr expr, int lineNumber) -> {
+				check(receiver, env);
+				check(expr, env);
+			}
+			case MethodCall(Expr receiver, String name, List<Expr> args, int lineNumber) -> {
+				check(receiver, env);
+				args.forEach(arg -> check(arg, env));
+			}
+		}
+	}
+
+	static Code compile(List<String> parameters, Block body, Dictionary dict) {
 		var env = JSObject.newEnv(null);
 
 		env.register("this", 0);
@@ -85,15 +203,12 @@ public final class InstrRewriter {
 		buffer.emit(CONST).emit(encodeDictObject(UNDEFINED, dict));
 		buffer.emit(RET); // always add return undefined at the end, in case of missing return
 
-		var instrs = buffer.toInstrs();
-		Instructions.dump(instrs, dict);
+		var instrs = InstrOptimizer.optimize(buffer.toInstrs());
+		if (Tracer.ENABLED) {
+			Instructions.dump(instrs, dict);
+		}
 
-		var code = new Code(instrs, parameters.size() + 1 /* this */, env.length());
-		var function = JSObject.newFunction(name.orElse("lambda"), (receiver, args) -> {
-			throw new Failure("native call not supported");
-		});
-		function.register("__code__", code);
-		return function;
+		return new Code(instrs, parameters.size() + 1 /* this */, env.length(), maxStack(instrs, dict));
 	}
 
 	private static void visitVariable(Expr expression, JSObject env) {
@@ -106,6 +221,9 @@ public final class InstrRewriter {
 			case Literal<?>(Object value, int lineNumber) -> {
 				// do nothing
 			}
+			case Folded(Object value, FunCall call, Map<String, Object> operators, int lineNumber) -> {
+				// do nothing
+			}
 			case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
 				// do nothing
 			}
@@ -113,7 +231,8 @@ public final class InstrRewriter {
 				// do nothing
 			}
 			case LocalVarAssignment(String name, Expr expr, boolean declaration, int lineNumber) -> {
-				if (declaration) {
+				// a variable can be declared twice, e.g. in both branches of an if
+				if (declaration && env.lookup(name) == UNDEFINED) {
 					env.register(name, env.length());
 				}
 			}
@@ -142,6 +261,14 @@ public final class InstrRewriter {
 		};
 	}
 
+	// the index of the operator in OPERATOR_NAMES if the call is a call to a global operator, -1 otherwise
+	private static int operatorIndex(Expr qualifier, List<Expr> args, JSObject env) {
+		if (qualifier instanceof LocalVarAccess(String name, int _) && args.size() == 2 && env.lookup(name) == UNDEFINED) {
+			return OPERATOR_NAMES.indexOf(name);
+		}
+		return -1;
+	}
+
 	private static void visit(Expr expression, JSObject env, InstrBuffer buffer, Dictionary dict) {
 		switch (expression) {
 			case Block(List<Expr> instrs, int lineNumber) -> {
@@ -157,8 +284,8 @@ public final class InstrRewriter {
 				}
 			}
 			case Literal<?>(Object literalValue, int lineNumber) -> {
-				// test if the literal value is a positive integers
-				if (literalValue instanceof Integer value && value >= 0) {
+				// test if the literal value is an integer that fits in 31 bits
+				if (literalValue instanceof Integer value && TagValues.fitsSmallInt(value)) {
 					// emit a small int
 					buffer.emit(CONST).emit(encodeSmallInt(value));
 				} else {
@@ -166,7 +293,37 @@ public final class InstrRewriter {
 					buffer.emit(CONST).emit(encodeDictObject(literalValue, dict));
 				}
 			}
+			case Folded(Object value, FunCall call, Map<String, Object> operators, int lineNumber) -> {
+				// the folded value is computed by the builtin operators, otherwise only the call is emitted
+				if (!operators.entrySet().stream().allMatch(e -> StackInterpreter.isBuiltinOperator(e.getKey(), e.getValue()))) {
+					visit(call, env, buffer, dict);
+					return;
+				}
+				// emit a JUMP_IF_NOT_BUILTIN to the call and a placeholder
+				var callPlaceHolder = buffer.emit(JUMP_IF_NOT_BUILTIN).placeholder();
+				// only the operators used to compute the folded value are checked
+				buffer.emit(GlobalGuards.operators(operators.keySet()));
+				// emit the folded value
+				visit(new Literal<>(value, lineNumber), env, buffer, dict);
+				// emit a goto with another placeholder
+				var endPlaceHolder = buffer.emit(GOTO).placeholder();
+				// patch the first placeholder and visit the call
+				buffer.patch(callPlaceHolder, buffer.label());
+				visit(call, env, buffer, dict);
+				// patch the second placeholder
+				buffer.patch(endPlaceHolder, buffer.label());
+			}
 			case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
+				// a call to a global operator with two arguments is an operator instruction
+				var operatorIndex = operatorIndex(qualifier, args, env);
+				if (operatorIndex != -1) {
+					// visit the two arguments
+					visit(args.get(0), env, buffer, dict);
+					visit(args.get(1), env, buffer, dict);
+					// emit the operator
+					buffer.emit(ADD + operatorIndex);
+					return;
+				}
 				// visit the qualifier
 				visit(qualifier, env, buffer, dict);
 				// emit undefined
@@ -214,6 +371,11 @@ public final class InstrRewriter {
 			case Return(Expr expr, int lineNumber) -> {
 				// emit a visit of the expression
 				visit(expr, env, buffer, dict);
+				// a call in tail position reuses the frame, the FUNCALL is the last instruction emitted
+				if ((expr instanceof FunCall(Expr qualifier, List<Expr> args, int _) && operatorIndex(qualifier, args, env) == -1)
+						|| expr instanceof MethodCall) {
+					buffer.patch(buffer.label() - 2, TAILCALL);
+				}
 				// emit a RET
 				buffer.emit(RET);
 			}
@@ -277,8 +439,8 @@ public final class InstrRewriter {
 				for (var arg : args) {
 				  visit(arg, env, buffer, dict);
 				}
-				// emit the funcall
-				buffer.emit(FUNCALL).emit(1/*=this*/ + args.size());
+				// emit the funcall, the receiver is not counted as an argument
+				buffer.emit(FUNCALL).emit(args.size());
 			}
 		}
 	}
@@ -1,5 +1,7 @@
 package fr.umlv.smalljs.stackinterp;
 
+import java.util.List;
+
 public interface Instructions {
 	int CONST = 1; // CONST tag_value (smallint or dictionary_index)
 	int LOOKUP = 2; // LOOKUP dictionary_index (String global_name)
@@ -19,29 +21,114 @@ public interface Instructions {
 
 	int PRINT = 20;
 
+	// operators on two values, executed inline on small ints,
+	// otherwise the function of the global environment is called
+	int ADD = 21; // +
+	int SUB = 22; // -
+	int MUL = 23; // *
+	int DIV = 24; // /
+	int REM = 25; // %
+	int EQ = 26; // ==
+	int NE = 27; // !=
+	int LT = 28; // <
+	int LE = 29; // <=
+	int GT = 30; // >
+	int GE = 31; // >=
+
+	// superinstructions, created by InstrOptimizer from frequent sequences of instructions
+	int LOAD_LOAD = 32; // LOAD_LOAD slot_index slot_index, LOAD + LOAD
+	int GET_METHOD = 33; // GET_METHOD dictionary_index (String field_name), DUP + GET + SWAP
+	int RETURN_LOCAL = 34; // RETURN_LOCAL slot_index, LOAD + RET
+	int RETURN_CONST = 35; // RETURN_CONST tag_value, CONST + RET
+	// comparison + JUMP_IF_FALSE, jump if the comparison is false,
+	// the comparison is instr - JUMP_IF_NE + EQ
+	int JUMP_IF_NE = 36; // JUMP_IF_NE instr_index, EQ + JUMP_IF_FALSE
+	int JUMP_IF_EQ = 37; // JUMP_IF_EQ instr_index, NE + JUMP_IF_FALSE
+	int JUMP_IF_GE = 38; // JUMP_IF_GE instr_index, LT + JUMP_IF_FALSE
+	int JUMP_IF_GT = 39; // JUMP_IF_GT instr_index, LE + JUMP_IF_FALSE
+	int JUMP_IF_LE = 40; // JUMP_IF_LE instr_index, GT + JUMP_IF_FALSE
+	int JUMP_IF_LT = 41; // JUMP_IF_LT instr_index, GE + JUMP_IF_FALSE
+
+	// quickened instructions, FUNCALL is rewritten by the interpreter when it calls a function with a code
+	int FUNCALL_CODE = 42; // FUNCALL_CODE argument_count
+
+	// a FUNCALL in tail position (return f(...)), the called function reuses the frame of the current function,
+	// always followed by a RET that returns the result of a native function
+	int TAILCALL = 43; // TAILCALL argument_count
+	int TAILCALL_CODE = 44; // TAILCALL_CODE argument_count, quickened TAILCALL
+
+	// guard of a constant folded by the ConstantFolder, jump to the unfolded code
+	// if an operator of the bitmask (see GlobalGuards.operators) is not the builtin one anymore
+	int JUMP_IF_NOT_BUILTIN = 45; // JUMP_IF_NOT_BUILTIN instr_index operators
+
+	// names of the operators in the global environment, indexed by instr - ADD
+	List<String> OPERATOR_NAMES = List.of("+", "-", "*", "/", "%", "==", "!=", "<", "<=", ">", ">=");
+
+	// number of ints used by an instruction and its operands
+	static int size(int instr) {
+		return switch (instr) {
+			case DUP, POP, SWAP, RET, PRINT, ADD, SUB, MUL, DIV, REM, EQ, NE, LT, LE, GT, GE -> 1;
+			case CONST, LOOKUP, REGISTER, LOAD, STORE, FUNCALL, GOTO, JUMP_IF_FALSE, NEW, GET, PUT,
+					GET_METHOD, RETURN_LOCAL, RETURN_CONST,
+					JUMP_IF_NE, JUMP_IF_EQ, JUMP_IF_GE, JUMP_IF_GT, JUMP_IF_LE, JUMP_IF_LT, FUNCALL_CODE,
+					TAILCALL, TAILCALL_CODE -> 2;
+			case LOAD_LOAD, JUMP_IF_NOT_BUILTIN -> 3;
+			default -> throw new IllegalStateException("unknown instr " + instr);
+		};
+	}
+
+	// true if the operand of the instruction is an instr_index
+	static boolean isJump(int instr) {
+		return switch (instr) {
+			case GOTO, JUMP_IF_FALSE, JUMP_IF_NE, JUMP_IF_EQ, JUMP_IF_GE, JUMP_IF_GT, JUMP_IF_LE, JUMP_IF_LT,
+					JUMP_IF_NOT_BUILTIN -> true;
+			default -> false;
+		};
+	}
+
+	// true if the execution may continue with the next instruction
+	static boolean fallsThrough(int instr) {
+		return switch (instr) {
+			case GOTO, RET, RETURN_LOCAL, RETURN_CONST -> false;
+			default -> true;
+		};
+	}
+
 	static void dump(int[] instrs, Dictionary dict) {
 		var strings = new String[] { null, "CONST", "LOOKUP", "REGISTER", "LOAD", "STORE", "DUP", "POP", "SWAP",
-				"FUNCALL", "RET", "GOTO", "JUMP_IF_FALSE", "NEW", "GET", "PUT", null, null, null, null, "PRINT" };
+				"FUNCALL", "RET", "GOTO", "JUMP_IF_FALSE", "NEW", "GET", "PUT", null, null, null, null, "PRINT",
+				"ADD", "SUB", "MUL", "DIV", "REM", "EQ", "NE", "LT", "LE", "GT", "GE",
+				"LOAD_LOAD", "GET_METHOD", "RETURN_LOCAL", "RETURN_CONST",
+				"JUMP_IF_NE", "JUMP_IF_EQ", "JUMP_IF_GE", "JUMP_IF_GT", "JUMP_IF_LE", "JUMP_IF_LT", "FUNCALL_CODE",
+				"TAILCALL", "TAILCALL_CODE", "JUMP_IF_NOT_BUILTIN" };
 		for (var pc = 0; pc < instrs.length;) {
 			System.err.print(pc + " ");
 			var instr = instrs[pc++];
 			switch (instr) {
 				// no-arg instr
-				case DUP, POP, SWAP, RET, PRINT -> {
+				case DUP, POP, SWAP, RET, PRINT, ADD, SUB, MUL, DIV, REM, EQ, NE, LT, LE, GT, GE -> {
 					System.err.println(strings[instr]);
 				}
 				// int arg instr
-				case LOAD, STORE, GOTO, JUMP_IF_FALSE, FUNCALL -> {
+				case LOAD, STORE, GOTO, JUMP_IF_FALSE, FUNCALL, RETURN_LOCAL,
+						JUMP_IF_NE, JUMP_IF_EQ, JUMP_IF_GE, JUMP_IF_GT, JUMP_IF_LE, JUMP_IF_LT, FUNCALL_CODE,
+						TAILCALL, TAILCALL_CODE -> {
 					var operand = instrs[pc++];
 					System.err.println(strings[instr] + " " + operand);
 				}
+				// two int args instr
+				case LOAD_LOAD, JUMP_IF_NOT_BUILTIN -> {
+					var operand1 = instrs[pc++];
+					var operand2 = instrs[pc++];
+					System.err.println(strings[instr] + " " + operand1 + " " + operand2);
+				}
 				// dictionary constant arg instr
-				case LOOKUP, REGISTER, NEW, GET, PUT -> {
+				case LOOKUP, REGISTER, NEW, GET, PUT, GET_METHOD -> {
 					var operand = instrs[pc++];
 					System.err.println(strings[instr] + " " + TagValues.decodeDictObject(operand, dict));
 				}
 				// int or dictionary arg instr
-				case CONST -> {
+				case CONST, RETURN_CONST -> {
 					var operand = instrs[pc++];
 					if (TagValues.isSmallInt(operand)) {
 						System.err.println(strings[instr] + " " + TagValues.decodeSmallInt(operand));
@@ -54,4 +141,4 @@ public interface Instructions {
 		}
 		System.err.println();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,81 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.TagValues.*;
+
+import java.util.Arrays;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// helpers shared by the StackInterpreter, the ThreadedInterpreter and the RegInterpreter,
+// an operator is identified by its index in Instructions.OPERATOR_NAMES (ADD is 0, SUB is 1, etc),
+// so the stack instructions and the register instructions use the same numbering
+public final class Interpreters {
+	private Interpreters() {
+		throw new AssertionError();
+	}
+
+	// only an int that needs more than 31 bits is boxed in the dictionary, like encodeAnyValue does,
+	// the dictionary never removes a constant, so each distinct wide result makes it grow
+	private static int encodeInt(int value, Dictionary dict) {
+		if (fitsSmallInt(value)) {
+			return encodeSmallInt(value);
+		}
+		return encodeDictObject(value, dict);
+	}
+
+	// execute an operator on two small ints, same semantics as the builtin operators,
+	// the result of + and - on two small ints always fits in an int, a * that overflows calls the builtin
+	public static int operator(int operatorIndex, int left, int right, JSObject globalEnv, Dictionary dict, Heap heap) {
+		return switch (Instructions.ADD + operatorIndex) {
+			case Instructions.ADD -> encodeInt(left + right, dict);
+			case Instructions.SUB -> encodeInt(left - right, dict);
+			case Instructions.MUL -> {
+				try {
+					yield encodeInt(Math.multiplyExact(left, right), dict);
+				} catch (ArithmeticException e) {
+					// the product does not fit in an int, the builtin operator decides
+					yield callOperator(operatorIndex, encodeSmallInt(left), encodeSmallInt(right), globalEnv, dict, heap);
+				}
+			}
+			case Instructions.DIV -> encodeInt(left / right, dict);
+			case Instructions.REM -> encodeInt(left % right, dict);
+			case Instructions.EQ -> (left == right) ? TRUE : FALSE;
+			case Instructions.NE -> (left != right) ? TRUE : FALSE;
+			case Instructions.LT -> (left < right) ? TRUE : FALSE;
+			case Instructions.LE -> (left <= right) ? TRUE : FALSE;
+			case Instructions.GT -> (left > right) ? TRUE : FALSE;
+			case Instructions.GE -> (left >= right) ? TRUE : FALSE;
+			default -> throw new AssertionError("unknown operator " + operatorIndex);
+		};
+	}
+
+	// call the operator of the global environment
+	public static int callOperator(int operatorIndex, int left, int right, JSObject globalEnv, Dictionary dict, Heap heap) {
+		var operator = (JSObject) globalEnv.lookup(Instructions.OPERATOR_NAMES.get(operatorIndex));
+		var args = new Object[] { decodeAnyValue(left, dict, heap), decodeAnyValue(right, dict, heap) };
+		return encodeAnyValue(operator.invoke(UNDEFINED, args), dict);
+	}
+
+	// find the index of a field from the class of an object, -1 if the field does not exist
+	public static int fieldIndex(int vClass, int vFieldName, Dictionary dict) {
+		var clazz = (JSObject) decodeDictObject(vClass, dict);
+		var slotOrUndefined = clazz.lookup((String) decodeDictObject(vFieldName, dict));
+		if (slotOrUndefined == UNDEFINED) {
+			return -1;
+		}
+		return (int) slotOrUndefined;
+	}
+
+	// grow the stack (or the registers) so it contains at least needed ints
+	public static int[] growStack(int[] stack, int needed, Options options) {
+		if (needed <= stack.length) {
+			return stack;
+		}
+		if (needed > options.maxStackSize()) {
+			throw new Failure("stack overflow");
+		}
+		return Arrays.copyOf(stack, Options.grow(stack.length, needed, options.maxStackSize(), options.growthFactor()));
+	}
+}
@@ -0,0 +1,86 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import fr.umlv.smalljs.ast.Expr.Block;
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// the code of a function created at its first call, either compiled by the InstrRewriter
+// or read from a snapshot (see Snapshot.restore), it is registered as "__code__" of the function,
+// so the interpreters get the code of a function with lookupCode.
+// A function can be called by several threads, the code is loaded only once
+// because compiling a function adds its constants to the dictionary
+final class LazyCode {
+	// the parameters and the body of a function compiled by the InstrRewriter,
+	// a snapshot saves the source of a function that has never been called (see Snapshot.save)
+	record Source(List<String> parameters, Block body) {
+		Source {
+			requireNonNull(parameters);
+			requireNonNull(body);
+		}
+	}
+
+	private Source source;  // null once the code is loaded or if the code is read from a snapshot
+	private Supplier<? extends Code> supplier;  // null once the code is loaded
+	private volatile Code code;  // published after supplier
+
+	LazyCode(Supplier<? extends Code> supplier) {
+		this(null, supplier);
+	}
+
+	LazyCode(Source source, Supplier<? extends Code> supplier) {
+		this.source = source;
+		this.supplier = requireNonNull(supplier);
+	}
+
+	Code load() {
+		var code = this.code;
+		if (code != null) {
+			return code;
+		}
+		synchronized (this) {
+			code = this.code;
+			if (code == null) {
+				code = supplier.get();
+				supplier = null;  // the supplier may keep the AST of the function alive
+				source = null;
+				this.code = code;
+			}
+			return code;
+		}
+	}
+
+	boolean isLoaded() {
+		return code != null;
+	}
+
+	// the source if the function has never been compiled, otherwise the code (read from the snapshot if needed),
+	// so saving a snapshot does not compile the functions that have never been called
+	synchronized Object codeOrSource() {
+		if (code == null && source != null) {
+			return source;
+		}
+		return load();
+	}
+
+	// the code of a function, UNDEFINED if the function is a native function
+	static Object lookupCode(JSObject function) {
+		var maybeCode = function.lookup("__code__");
+		if (maybeCode instanceof LazyCode lazyCode) {
+			return lazyCode.load();
+		}
+		return maybeCode;
+	}
+
+	static JSObject newFunction(String name, LazyCode lazyCode) {
+		var function = JSObject.newFunction(name, (receiver, args) -> {
+			throw new Failure("native call not supported");
+		});
+		function.register("__code__", lazyCode);
+		return function;
+	}
+}
@@ -0,0 +1,85 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.util.Objects.requireNonNull;
+
+// sizing policy of the stack and the heap of the StackInterpreter,
+// the stack grows when a function call needs more room, the heap grows after a GC
+// if the collection has reclaimed less than minReclaimRatio of the heap,
+// both never grow beyond their maximum size.
+// If nurserySize is not zero, the heap of the StackInterpreter is generational, the first nurserySize ints
+// of the heap are the nursery (see Generations).
+// The heap is created by the heapFactory, either on the Java heap (Heap::onHeap) or outside (Heap::offHeap, Heap.mapped(path)).
+// If tailCalls is true, a call in tail position reuses the frame of the caller instead of pushing a new one,
+// otherwise it is executed as a call followed by a return, so the stack trace (and the stack overflow) is the same
+// as without the tail call instructions.
+// The tracer is only called if the tracing is enabled (see Tracer.ENABLED)
+public record Options(int initialStackSize, int maxStackSize,
+                      int initialHeapSize, int maxHeapSize,
+                      double growthFactor, double minReclaimRatio,
+                      int nurserySize,
+                      Heap.Factory heapFactory,
+                      boolean tailCalls,
+                      Tracer tracer) {
+	public static final Options DEFAULT = new Options(
+			4096, 1 << 20,
+			4096, 1 << 24,
+			2.0, 0.25,
+			0,
+			Heap::onHeap,
+			false,
+			Tracer.STDERR);
+
+	public Options {
+		// bp and pc are saved on the stack as small ints
+		if (initialStackSize < 1 || initialStackSize > maxStackSize || maxStackSize > TagValues.MAX_SMALL_INT) {
+			throw new IllegalArgumentException("invalid stack sizes");
+		}
+		// the objects are indexed by 30-bit references
+		if (initialHeapSize < 0 || initialHeapSize > maxHeapSize || maxHeapSize > TagValues.MAX_HEAP_SIZE) {
+			throw new IllegalArgumentException("invalid heap sizes");
+		}
+		if (!(growthFactor > 1.0)) {
+			throw new IllegalArgumentException("invalid growth factor");
+		}
+		if (!(minReclaimRatio >= 0.0 && minReclaimRatio <= 1.0)) {
+			throw new IllegalArgumentException("invalid reclaim ratio");
+		}
+		if (nurserySize < 0 || nurserySize > initialHeapSize) {
+			throw new IllegalArgumentException("invalid nursery size");
+		}
+		requireNonNull(heapFactory);
+		requireNonNull(tracer);
+	}
+
+	public Options withStackSize(int initialStackSize, int maxStackSize) {
+		return new Options(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, growthFactor, minReclaimRatio, nurserySize, heapFactory, tailCalls, tracer);
+	}
+
+	public Options withHeapSize(int initialHeapSize, int maxHeapSize) {
+		return new Options(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, growthFactor, minReclaimRatio, nurserySize, heapFactory, tailCalls, tracer);
+	}
+
+	public Options withGrowth(double growthFactor, double minReclaimRatio) {
+		return new Options(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, growthFactor, minReclaimRatio, nurserySize, heapFactory, tailCalls, tracer);
+	}
+
+	public Options withNurserySize(int nurserySize) {
+		return new Options(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, growthFactor, minReclaimRatio, nurserySize, heapFactory, tailCalls, tracer);
+	}
+
+	public Options withHeap(Heap.Factory heapFactory) {
+		return new Options(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, growthFactor, minReclaimRatio, nurserySize, heapFactory, tailCalls, tracer);
+	}
+
+	public Options withTailCalls(boolean tailCalls) {
+		return new Options(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, growthFactor, minReclaimRatio, nurserySize, heapFactory, tailCalls, tracer);
+	}
+
+	public Options withTracer(Tracer tracer) {
+		return new Options(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, growthFactor, minReclaimRatio, nurserySize, heapFactory, tailCalls, tracer);
+	}
+
+	static int grow(int size, int minSize, int maxSize, double growthFactor) {
+		return (int) Math.min(maxSize, Math.max(minSize, size * growthFactor));
+	}
+}
@@ -0,0 +1,636 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT_UNALIGNED;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import fr.umlv.smalljs.ast.Expr;
+import fr.umlv.smalljs.ast.Expr.Block;
+import fr.umlv.smalljs.ast.Expr.FieldAccess;
+import fr.umlv.smalljs.ast.Expr.FieldAssignment;
+import fr.umlv.smalljs.ast.Expr.Folded;
+import fr.umlv.smalljs.ast.Expr.Fun;
+import fr.umlv.smalljs.ast.Expr.FunCall;
+import fr.umlv.smalljs.ast.Expr.If;
+import fr.umlv.smalljs.ast.Expr.Literal;
+import fr.umlv.smalljs.ast.Expr.LocalVarAccess;
+import fr.umlv.smalljs.ast.Expr.LocalVarAssignment;
+import fr.umlv.smalljs.ast.Expr.MethodCall;
+import fr.umlv.smalljs.ast.Expr.New;
+import fr.umlv.smalljs.ast.Expr.Return;
+import fr.umlv.smalljs.rt.JSObject;
+
+// a snapshot of the state of the StackInterpreter between two executions: the constants of the dictionary
+// (with the instructions of the codes), the functions of the global environment and the main function,
+// so a new process can run the script without parsing and compiling it.
+// Compiling a function adds its constants to the dictionary, so save only compiles main
+// (it is always executed), a function that has never been called is saved as its AST (see LazyCode.Source)
+// and compiled at its first call after restore.
+// The heap is not part of the snapshot, between two executions no object is alive
+// (the values of the global environment are functions). The inline caches are not saved.
+//
+// The file is written with a DataOutputStream (big endian) and read back by mapping it in memory,
+// the instructions of a function are only read at its first call (see LazyCode), possibly by another thread,
+// so the mapping uses an automatic arena and not a confined one: the file stays mapped
+// (and can not be deleted or replaced on Windows) until the restored functions are unreachable
+// and the garbage collector reclaims the mapping:
+//   magic version
+//   codeCount (parameterCount slotCount maxStack instrCount instrs...)*
+//   constantCount (tag payload)*, the payload of a SOURCE_FUNCTION is (name parameterCount parameters... block)
+//   where an expression is (tag lineNumber fields...)
+//   bindingCount (name constantIndex)*
+//   main function (name codeIndex)
+//   length checksum
+// The trailer is the number of bytes before it and their CRC32, the whole file is checked
+// before being mapped by the automatic arena, so a truncated or corrupted file is rejected by restore
+// and never fails later when the instructions of a function are read.
+public final class Snapshot {
+	private Snapshot() {
+		throw new AssertionError();
+	}
+
+	// a state of the interpreter, execute main with StackInterpreter.execute(main, dict, globalEnv)
+	public record State(Dictionary dict, JSObject globalEnv, JSObject main) {
+		public State {
+			requireNonNull(dict);
+			requireNonNull(globalEnv);
+			requireNonNull(main);
+		}
+	}
+
+	private static final int MAGIC = 0x534A5353;  // SJSS
+	private static final int VERSION = 6;  // 2: TAILCALL, 3: JUMP_IF_NOT_BUILTIN, 4: length and checksum, 5: SOURCE_FUNCTION, 6: operators of JUMP_IF_NOT_BUILTIN
+
+	// tags of the constants
+	private static final int STRING = 0;
+	private static final int INTEGER = 1;
+	private static final int UNDEFINED_TAG = 2;
+	private static final int CODE = 3;
+	private static final int CLASS = 4;
+	private static final int FUNCTION = 5;
+	private static final int GLOBAL = 6;  // a value of the global environment that is not a function of the script
+	private static final int SOURCE_FUNCTION = 7;  // a function that has never been called
+
+	// tags of the expressions
+	private static final int BLOCK = 0;
+	private static final int FIELD_ACCESS = 1;
+	private static final int FIELD_ASSIGNMENT = 2;
+	private static final int FUN = 3;
+	private static final int FUNCALL = 4;
+	private static final int FOLDED = 5;
+	private static final int IF = 6;
+	private static final int INTEGER_LITERAL = 7;
+	private static final int STRING_LITERAL = 8;
+	private static final int LOCAL_VAR_ACCESS = 9;
+	private static final int LOCAL_VAR_ASSIGNMENT = 10;
+	private static final int METHOD_CALL = 11;
+	private static final int NEW = 12;
+	private static final int RETURN = 13;
+
+	private static final ValueLayout.OfInt INT = JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	// the name of a function created by JSObject.newFunction
+	private static String functionName(JSObject function) {
+		return function.getName().substring("function ".length());
+	}
+
+	private static boolean isClass(JSObject object) {
+		var isClass = new boolean[] { object.getName().equals("object") };
+		object.forEach((key, value) -> isClass[0] &= value instanceof Integer);
+		return isClass[0];
+	}
+
+	private static void writeString(DataOutputStream output, String string) throws IOException {
+		var bytes = string.getBytes(UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static void writeStrings(DataOutputStream output, List<String> strings) throws IOException {
+		output.writeInt(strings.size());
+		for (var string : strings) {
+			writeString(output, string);
+		}
+	}
+
+	private static void writeExprs(DataOutputStream output, List<Expr> exprs) throws IOException {
+		output.writeInt(exprs.size());
+		for (var expr : exprs) {
+			writeExpr(output, expr);
+		}
+	}
+
+	private static void writeExpr(DataOutputStream output, Expr expr) throws IOException {
+		switch (expr) {
+			case Block(List<Expr> instrs, int lineNumber) -> {
+				output.writeByte(BLOCK);
+				output.writeInt(lineNumber);
+				writeExprs(output, instrs);
+			}
+			case FieldAccess(Expr receiver, String name, int lineNumber) -> {
+				output.writeByte(FIELD_ACCESS);
+				output.writeInt(lineNumber);
+				writeExpr(output, receiver);
+				writeString(output, name);
+			}
+			case FieldAssignment(Expr receiver, String name, Expr value, int lineNumber) -> {
+				output.writeByte(FIELD_ASSIGNMENT);
+				output.writeInt(lineNumber);
+				writeExpr(output, receiver);
+				writeString(output, name);
+				writeExpr(output, value);
+			}
+			case Fun(Optional<String> optName, List<String> parameters, Block body, int lineNumber) -> {
+				output.writeByte(FUN);
+				output.writeInt(lineNumber);
+				output.writeBoolean(optName.isPresent());
+				if (optName.isPresent()) {
+					writeString(output, optName.orElseThrow());
+				}
+				writeStrings(output, parameters);
+				writeExpr(output, body);
+			}
+			case FunCall(Expr qualifier, List<Expr> args, int lineNumber) -> {
+				output.writeByte(FUNCALL);
+				output.writeInt(lineNumber);
+				writeExpr(output, qualifier);
+				writeExprs(output, args);
+			}
+			case Folded(Object value, FunCall call, Map<String, Object> operators, int lineNumber) -> {
+				// the operators are the builtin ones of the restored global environment,
+				// if an operator has been redefined, the value is never used so only the call is saved
+				if (!operators.entrySet().stream().allMatch(e -> StackInterpreter.isBuiltinOperator(e.getKey(), e.getValue()))) {
+					writeExpr(output, call);
+					return;
+				}
+				output.writeByte(FOLDED);
+				output.writeInt(lineNumber);
+				writeExpr(output, new Literal<>(value, lineNumber));
+				writeExpr(output, call);
+				writeStrings(output, List.copyOf(operators.keySet()));
+			}
+			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) -> {
+				output.writeByte(IF);
+				output.writeInt(lineNumber);
+				writeExpr(output, condition);
+				writeExpr(output, trueBlock);
+				writeExpr(output, falseBlock);
+			}
+			case Literal<?>(Integer value, int lineNumber) -> {
+				output.writeByte(INTEGER_LITERAL);
+				output.writeInt(lineNumber);
+				output.writeInt(value);
+			}
+			case Literal<?>(String value, int lineNumber) -> {
+				output.writeByte(STRING_LITERAL);
+				output.writeInt(lineNumber);
+				writeString(output, value);
+			}
+			case Literal<?> literal -> throw new IllegalArgumentException("can not save the literal " + literal + " in a snapshot");
+			case LocalVarAccess(String name, int lineNumber) -> {
+				output.writeByte(LOCAL_VAR_ACCESS);
+				output.writeInt(lineNumber);
+				writeString(output, name);
+			}
+			case LocalVarAssignment(String name, Expr value, boolean declaration, int lineNumber) -> {
+				output.writeByte(LOCAL_VAR_ASSIGNMENT);
+				output.writeInt(lineNumber);
+				writeString(output, name);
+				writeExpr(output, value);
+				output.writeBoolean(declaration);
+			}
+			case MethodCall(Expr receiver, String name, List<Expr> args, int lineNumber) -> {
+				output.writeByte(METHOD_CALL);
+				output.writeInt(lineNumber);
+				writeExpr(output, receiver);
+				writeString(output, name);
+				writeExprs(output, args);
+			}
+			case New(Map<String, Expr> initMap, int lineNumber) -> {
+				output.writeByte(NEW);
+				output.writeInt(lineNumber);
+				output.writeInt(initMap.size());
+				for (var entry : initMap.entrySet()) {
+					writeString(output, entry.getKey());
+					writeExpr(output, entry.getValue());
+				}
+			}
+			case Return(Expr value, int lineNumber) -> {
+				output.writeByte(RETURN);
+				output.writeInt(lineNumber);
+				writeExpr(output, value);
+			}
+		}
+	}
+
+	private static void writeCode(DataOutputStream output, Code code) throws IOException {
+		output.writeInt(code.parameterCount());
+		output.writeInt(code.slotCount());
+		output.writeInt(code.maxStack());
+		var instrs = code.instrs();
+		output.writeInt(instrs.length);
+		for (var pc = 0; pc < instrs.length;) {
+			// the inline caches are not saved, so the quickened instructions are saved unquickened
+			var instr = switch (instrs[pc]) {
+				case Instructions.FUNCALL_CODE -> Instructions.FUNCALL;
+				case Instructions.TAILCALL_CODE -> Instructions.TAILCALL;
+				default -> instrs[pc];
+			};
+			output.writeInt(instr);
+			var size = Instructions.size(instr);
+			for (var i = 1; i < size; i++) {
+				output.writeInt(instrs[pc + i]);
+			}
+			pc += size;
+		}
+	}
+
+	public static void save(Path path, State state) throws IOException {
+		requireNonNull(path);
+		requireNonNull(state);
+		var dict = state.dict();
+		var globalEnv = state.globalEnv();
+
+		// the name of the values of the global environment
+		var globalNames = new IdentityHashMap<Object, String>();
+		globalEnv.forEach((name, value) -> globalNames.putIfAbsent(value, name));
+
+		// only main is compiled, compiling a code adds its constants to the dictionary,
+		// so the main code is compiled first and the dictionary is scanned after
+		var mainCode = (Code) LazyCode.lookupCode(state.main());
+
+		// find all the codes, a code is shared by a function and the CODE constants
+		var codes = new IdentityHashMap<Code, Integer>();
+		var constantIndexes = new IdentityHashMap<Object, Integer>();
+		for (var i = 0; i < dict.size(); i++) {
+			var constant = dict.getConst(i);
+			constantIndexes.put(constant, i);
+			var code = (constant instanceof JSObject object && object.lookup("__code__") instanceof LazyCode lazyCode)
+					? lazyCode.codeOrSource()
+					: constant;
+			if (code instanceof Code c) {
+				codes.putIfAbsent(c, codes.size());
+			}
+		}
+		codes.putIfAbsent(mainCode, codes.size());
+
+		var checksum = new CRC32();
+		try (var output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(path)), checksum))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+
+			output.writeInt(codes.size());
+			var codeArray = new Code[codes.size()];
+			codes.forEach((code, index) -> codeArray[index] = code);
+			for (var code : codeArray) {
+				writeCode(output, code);
+			}
+
+			output.writeInt(dict.size());
+			for (var i = 0; i < dict.size(); i++) {
+				switch (dict.getConst(i)) {
+					case String string -> {
+						output.writeByte(STRING);
+						writeString(output, string);
+					}
+					case Integer value -> {
+						output.writeByte(INTEGER);
+						output.writeInt(value);
+					}
+					case Code code -> {
+						output.writeByte(CODE);
+						output.writeInt(codes.get(code));
+					}
+					case JSObject function when function.lookup("__code__") instanceof LazyCode lazyCode -> {
+						switch (lazyCode.codeOrSource()) {
+							case Code code -> {
+								output.writeByte(FUNCTION);
+								writeString(output, functionName(function));
+								output.writeInt(codes.get(code));
+							}
+							case LazyCode.Source(List<String> parameters, Block body) -> {
+								output.writeByte(SOURCE_FUNCTION);
+								writeString(output, functionName(function));
+								writeStrings(output, parameters);
+								writeExpr(output, body);
+							}
+							default -> throw new AssertionError();
+						}
+					}
+					case JSObject object when globalNames.containsKey(object) -> {
+						output.writeByte(GLOBAL);
+						writeString(output, globalNames.get(object));
+					}
+					case JSObject clazz when isClass(clazz) -> {
+						output.writeByte(CLASS);
+						output.writeInt(clazz.length());
+						var fieldNames = new String[clazz.length()];
+						clazz.forEach((fieldName, fieldIndex) -> fieldNames[(int) fieldIndex] = fieldName);
+						for (var fieldName : fieldNames) {
+							writeString(output, fieldName);
+						}
+					}
+					case Object constant when constant == UNDEFINED -> output.writeByte(UNDEFINED_TAG);
+					case Object constant -> throw new IllegalArgumentException("can not save the constant " + constant + " in a snapshot");
+				}
+			}
+
+			// the functions of the script registered in the global environment
+			var bindings = new LinkedHashMap<String, Integer>();
+			globalEnv.forEach((name, value) -> {
+				if (value instanceof JSObject function && function.lookup("__code__") instanceof LazyCode) {
+					var index = constantIndexes.get(function);
+					if (index == null) {
+						throw new IllegalArgumentException("the function " + name + " is not a constant of the dictionary");
+					}
+					bindings.put(name, index);
+				}
+			});
+			output.writeInt(bindings.size());
+			for (var binding : bindings.entrySet()) {
+				writeString(output, binding.getKey());
+				output.writeInt(binding.getValue());
+			}
+
+			writeString(output, functionName(state.main()));
+			output.writeInt(codes.get(mainCode));
+
+			var length = output.size();
+			var value = (int) checksum.getValue();
+			output.writeInt(length);
+			output.writeInt(value);
+		}
+	}
+
+	// read the file mapped in memory, the mapping stays alive as long as a LazyCode references the reader
+	private static final class Reader {
+		private final MemorySegment segment;
+		private long offset;
+		private long[] codeOffsets;
+		private Code[] codes;
+
+		private Reader(MemorySegment segment) {
+			this.segment = segment;
+		}
+
+		// only read the size of the codes
+		void skipCodes() throws IOException {
+			codeOffsets = new long[readInt()];
+			codes = new Code[codeOffsets.length];
+			for (var i = 0; i < codeOffsets.length; i++) {
+				codeOffsets[i] = offset;
+				offset += 3 * Integer.BYTES;
+				var instrCount = readInt();
+				if (instrCount < 0 || offset + (long) instrCount * Integer.BYTES > segment.byteSize()) {
+					throw new IOException("invalid snapshot code " + i);
+				}
+				offset += (long) instrCount * Integer.BYTES;
+			}
+		}
+
+		// called by LazyCode.load, possibly by several threads
+		synchronized Code code(int codeIndex) {
+			var code = codes[codeIndex];
+			if (code == null) {
+				var offset = this.offset;
+				this.offset = codeOffsets[codeIndex];
+				codes[codeIndex] = code = readCode();
+				this.offset = offset;
+			}
+			return code;
+		}
+
+		int readInt() {
+			var value = segment.get(INT, offset);
+			offset += Integer.BYTES;
+			return value;
+		}
+
+		int readByte() {
+			return segment.get(JAVA_BYTE, offset++);
+		}
+
+		String readString() {
+			var length = readInt();
+			var string = new String(segment.asSlice(offset, length).toArray(JAVA_BYTE), UTF_8);
+			offset += length;
+			return string;
+		}
+
+		boolean readBoolean() {
+			return readByte() != 0;
+		}
+
+		List<String> readStrings() {
+			var strings = new String[readInt()];
+			for (var i = 0; i < strings.length; i++) {
+				strings[i] = readString();
+			}
+			return List.of(strings);
+		}
+
+		List<Expr> readExprs(JSObject globalEnv) throws IOException {
+			var exprs = new Expr[readInt()];
+			for (var i = 0; i < exprs.length; i++) {
+				exprs[i] = readExpr(globalEnv);
+			}
+			return List.of(exprs);
+		}
+
+		Block readBlock(JSObject globalEnv) throws IOException {
+			return (Block) readExpr(globalEnv);
+		}
+
+		// the operators of a folded expression are the ones of the restored global environment
+		Expr readExpr(JSObject globalEnv) throws IOException {
+			var tag = readByte();
+			var lineNumber = readInt();
+			return switch (tag) {
+				case BLOCK -> new Block(readExprs(globalEnv), lineNumber);
+				case FIELD_ACCESS -> new FieldAccess(readExpr(globalEnv), readString(), lineNumber);
+				case FIELD_ASSIGNMENT -> new FieldAssignment(readExpr(globalEnv), readString(), readExpr(globalEnv), lineNumber);
+				case FUN -> {
+					var optName = readBoolean() ? Optional.of(readString()) : Optional.<String>empty();
+					yield new Fun(optName, readStrings(), readBlock(globalEnv), lineNumber);
+				}
+				case FUNCALL -> new FunCall(readExpr(globalEnv), readExprs(globalEnv), lineNumber);
+				case FOLDED -> {
+					var value = ((Literal<?>) readExpr(globalEnv)).value();
+					var call = (FunCall) readExpr(globalEnv);
+					var operators = new HashMap<String, Object>();
+					for (var name : readStrings()) {
+						operators.put(name, globalEnv.lookup(name));
+					}
+					yield new Folded(value, call, operators, lineNumber);
+				}
+				case IF -> new If(readExpr(globalEnv), readBlock(globalEnv), readBlock(globalEnv), lineNumber);
+				case INTEGER_LITERAL -> new Literal<>(readInt(), lineNumber);
+				case STRING_LITERAL -> new Literal<>(readString(), lineNumber);
+				case LOCAL_VAR_ACCESS -> new LocalVarAccess(readString(), lineNumber);
+				case LOCAL_VAR_ASSIGNMENT -> new LocalVarAssignment(readString(), readExpr(globalEnv), readBoolean(), lineNumber);
+				case METHOD_CALL -> new MethodCall(readExpr(globalEnv), readString(), readExprs(globalEnv), lineNumber);
+				case NEW -> {
+					var initMap = new LinkedHashMap<String, Expr>();
+					var fieldCount = readInt();
+					for (var i = 0; i < fieldCount; i++) {
+						initMap.put(readString(), readExpr(globalEnv));
+					}
+					yield new New(initMap, lineNumber);
+				}
+				case RETURN -> new Return(readExpr(globalEnv), lineNumber);
+				default -> throw new IOException("invalid snapshot expression tag");
+			};
+		}
+
+		Code readCode() {
+			var parameterCount = readInt();
+			var slotCount = readInt();
+			var maxStack = readInt();
+			var instrs = new int[readInt()];
+			MemorySegment.copy(segment, INT, offset, instrs, 0, instrs.length);
+			offset += (long) instrs.length * Integer.BYTES;
+			return new Code(instrs, parameterCount, slotCount, maxStack);
+		}
+	}
+
+	// restore a state, the global environment is a new one (see StackInterpreter.createGlobalEnv)
+	public static State restore(Path path, PrintStream outStream) throws IOException {
+		requireNonNull(path);
+		requireNonNull(outStream);
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			var length = checkIntegrity(channel);
+			// the file is unmapped by the GC when the restored functions are not reachable anymore,
+			// not when restore returns
+			var reader = new Reader(channel.map(MapMode.READ_ONLY, 0, length, Arena.ofAuto()));
+			try {
+				return restore(reader, outStream);
+			} catch (IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException |
+			         ClassCastException | BufferUnderflowException e) {
+				throw new IOException("invalid snapshot " + path, e);
+			}
+		}
+	}
+
+	// check the length and the checksum of the trailer, the file is mapped by a confined arena
+	// so a rejected file is unmapped (and can be deleted) when restore returns,
+	// return the length of the file without the trailer
+	private static long checkIntegrity(FileChannel channel) throws IOException {
+		var size = channel.size();
+		if (size < 4 * Integer.BYTES || size - 2 * Integer.BYTES > Integer.MAX_VALUE) {
+			throw new IOException("invalid snapshot size " + size);
+		}
+		var length = size - 2 * Integer.BYTES;
+		try (var arena = Arena.ofConfined()) {
+			var segment = channel.map(MapMode.READ_ONLY, 0, size, arena);
+			if (segment.get(INT, length) != length) {
+				throw new IOException("invalid snapshot length");
+			}
+			var checksum = new CRC32();
+			checksum.update(segment.asSlice(0, length).asByteBuffer());
+			if (segment.get(INT, length + Integer.BYTES) != (int) checksum.getValue()) {
+				throw new IOException("invalid snapshot checksum");
+			}
+		}
+		return length;
+	}
+
+	private static State restore(Reader reader, PrintStream outStream) throws IOException {
+		if (reader.readInt() != MAGIC || reader.readInt() != VERSION) {
+			throw new IOException("invalid snapshot header");
+		}
+
+		reader.skipCodes();
+
+		// the functions capture the dictionary, so it is created first and filled at the end,
+		// the values of the global environment are resolved once the bindings are registered
+		var dict = new Dictionary();
+		var globalEnv = StackInterpreter.createGlobalEnv(outStream);
+		var constants = new Object[reader.readInt()];
+		var globalNames = new ArrayList<Integer>();
+		for (var i = 0; i < constants.length; i++) {
+			constants[i] = switch (reader.readByte()) {
+				case STRING -> reader.readString();
+				case INTEGER -> reader.readInt();
+				case UNDEFINED_TAG -> UNDEFINED;
+				// the codes are only constants of the dictionary after an execution (see StackInterpreter.run)
+				case CODE -> reader.code(reader.readInt());
+				case FUNCTION -> {
+					var name = reader.readString();
+					var codeIndex = reader.readInt();
+					yield LazyCode.newFunction(name, new LazyCode(() -> reader.code(codeIndex)));
+				}
+				// compiled at its first call, like a function of a script (see InstrRewriter.createFunction)
+				case SOURCE_FUNCTION -> {
+					var name = reader.readString();
+					var parameters = reader.readStrings();
+					var body = reader.readBlock(globalEnv);
+					yield InstrRewriter.createFunction(Optional.of(name), parameters, body, dict);
+				}
+				case CLASS -> {
+					var clazz = JSObject.newObject(null);
+					var fieldCount = reader.readInt();
+					for (var fieldIndex = 0; fieldIndex < fieldCount; fieldIndex++) {
+						clazz.register(reader.readString(), fieldIndex);
+					}
+					yield clazz;
+				}
+				case GLOBAL -> {
+					globalNames.add(i);
+					yield reader.readString();
+				}
+				default -> throw new IOException("invalid snapshot constant tag");
+			};
+		}
+
+		var bindingCount = reader.readInt();
+		for (var i = 0; i < bindingCount; i++) {
+			var name = reader.readString();
+			globalEnv.register(name, constants[reader.readInt()]);
+		}
+		for (var index : globalNames) {
+			var name = (String) constants[index];
+			var value = globalEnv.lookup(name);
+			if (value == UNDEFINED) {
+				throw new IOException("unknown global " + name);
+			}
+			constants[index] = value;
+		}
+
+		for (var i = 0; i < constants.length; i++) {
+			if (dict.index(constants[i]) != i) {
+				throw new IOException("duplicate snapshot constant " + constants[i]);
+			}
+		}
+
+		var mainName = reader.readString();
+		var mainCodeIndex = reader.readInt();
+		var main = LazyCode.newFunction(mainName, new LazyCode(() -> reader.code(mainCodeIndex)));
+		return new State(dict, globalEnv, main);
+	}
+}
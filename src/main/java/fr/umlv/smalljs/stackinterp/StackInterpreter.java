@@ -1,14 +1,16 @@
 package fr.umlv.smalljs.stackinterp;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.Interpreters.*;
 import static fr.umlv.smalljs.stackinterp.TagValues.*;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
+import fr.umlv.smalljs.ast.ConstantFolder;
 import fr.umlv.smalljs.ast.Expr;
 import fr.umlv.smalljs.ast.Script;
 import fr.umlv.smalljs.rt.Failure;
@@ -35,54 +37,235 @@ public final class StackInterpreter {
 		return stack[bp + offset];
 	}
 
-	private static void dumpStack(String message, int[] stack, int sp, int bp, Dictionary dict, int[] heap) {
-		System.err.println(message);
+	private static void dumpStack(Tracer tracer, String message, int[] stack, int sp, int bp, Dictionary dict, Heap heap) {
+		var lines = new ArrayList<String>();
 		for (var i = sp - 1; i >= 0; i = i - 1) {
 			var value = stack[i];
 			try {
-				System.err.println(((i == bp) ? "->" : "  ") + value + " " + decodeAnyValue(value, dict, heap));
+				lines.add(((i == bp) ? "->" : "  ") + value + " " + decodeAnyValue(value, dict, heap));
 			} catch (IndexOutOfBoundsException | ClassCastException e) {
-				System.err.println(((i == bp) ? "->" : "  ") + value + " (can't decode)");
+				lines.add(((i == bp) ? "->" : "  ") + value + " (can't decode)");
 			}
 		}
-		System.err.println();
+		tracer.dump(message, lines);
 	}
 
-	private static void dumpHeap(String message, int[] heap, int hp, Dictionary dict) {
-		System.err.println(message);
+	private static void dumpHeap(Tracer tracer, String message, Heap heap, int hp, Dictionary dict) {
+		var lines = new ArrayList<String>();
 		for (var i = 0; i < hp; i++) {
-			var value = heap[i];
+			var value = heap.get(i);
 			try {
-				System.err.println(i + ": " + value + " " + decodeAnyValue(value, dict, heap));
+				lines.add(i + ": " + value + " " + decodeAnyValue(value, dict, heap));
 			} catch (IndexOutOfBoundsException | ClassCastException e) {
-				System.err.println(i + ": " + value + " (can't decode)");
+				lines.add(i + ": " + value + " (can't decode)");
 			}
 		}
-		System.err.println();
+		tracer.dump(message, lines);
 	}
 
+	static Object[] decodeArguments(int[] stack, int baseArg, int argumentCount, Dictionary dict, Heap heap) {
+		var args = new Object[argumentCount];
+		for (var i = 0; i < argumentCount; i++) {
+			args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
+		}
+		return args;
+	}
+
+
+	// the object layout and the GC are shared with the RegInterpreter
+	public static final int GC_OFFSET = 1;
+	static final int GC_MARK = -1;
+	public static final int GC_EMPTY = -2;
+
+	static final int BP_OFFSET = 0;
+	static final int PC_OFFSET = 1;
+	static final int CODE_OFFSET = 2;
+	static final int ACTIVATION_SIZE = 3;
+
+	static final int RECEIVER_BASE_ARG_OFFSET = -1;
+	static final int QUALIFIER_BASE_ARG_OFFSET = -2;
+	static final int FUNCALL_PREFIX = 2;
+
+	static int objectSize(Heap heap, int ref, Dictionary dict) {
+		var clazz = (JSObject) decodeDictObject(heap.get(ref), dict);
+		return OBJECT_HEADER_SIZE + clazz.length();
+	}
+
+	static void mark(Heap heap, int root, Dictionary dict) {
+		// use an explicit worklist, a long linked list would blow the Java stack
+		var worklist = new int[16];
+		var size = 0;
+		worklist[size++] = root;
+		while (size != 0) {
+			var ref = worklist[--size];
+			if (heap.get(ref + GC_OFFSET) == GC_MARK) {
+				continue;
+			}
+			heap.set(ref + GC_OFFSET, GC_MARK);
+			var end = ref + objectSize(heap, ref, dict);
+			for (var i = ref + OBJECT_HEADER_SIZE; i < end; i++) {
+				var value = heap.get(i);
+				if (isReference(value)) {
+					if (size == worklist.length) {
+						worklist = Arrays.copyOf(worklist, size << 1);
+					}
+					worklist[size++] = decodeReference(value);
+				}
+			}
+		}
+	}
 
-	private static final int GC_OFFSET = 1;
-	private static final int GC_MARK = -1;
-	private static final int GC_EMPTY = -2;
+	// the roots are the values of the stack below sp, return the new heap pointer
+	public static int gc(int[] stack, int sp, Heap heap, int hp, Dictionary dict) {
+		// 1. scan the stack and recursively mark all reachable objects
+		for (var i = 0; i < sp; i++) {
+			var value = stack[i];
+			if (isReference(value)) {
+				mark(heap, decodeReference(value), dict);
+			}
+		}
 
-	private static final int BP_OFFSET = 0;
-	private static final int PC_OFFSET = 1;
-	private static final int FUN_OFFSET = 2;
-	private static final int ACTIVATION_SIZE = 3;
+		// 2. scan the heap and store the new address of all live objects in their GC slot
+		var newHp = 0;
+		for (var ref = 0; ref < hp;) {
+			var size = objectSize(heap, ref, dict);
+			if (heap.get(ref + GC_OFFSET) == GC_MARK) {
+				heap.set(ref + GC_OFFSET, newHp);
+				newHp += size;
+			}
+			ref += size;
+		}
 
-	private static final int RECEIVER_BASE_ARG_OFFSET = -1;
-	private static final int QUALIFIER_BASE_ARG_OFFSET = -2;
-	private static final int FUNCALL_PREFIX = 2;
+		// 3. check if memory can be freed
+		if (newHp == hp) {
+			// all objects are alive and already at their new addresses, just clean the GC slots
+			for (var ref = 0; ref < hp; ref += objectSize(heap, ref, dict)) {
+				heap.set(ref + GC_OFFSET, GC_EMPTY);
+			}
+			return hp;
+		}
+
+		// 4. scan the heap and rewrite the field references of the live objects
+		for (var ref = 0; ref < hp;) {
+			var size = objectSize(heap, ref, dict);
+			if (heap.get(ref + GC_OFFSET) != GC_EMPTY) {
+				for (var i = ref + OBJECT_HEADER_SIZE; i < ref + size; i++) {
+					var value = heap.get(i);
+					if (isReference(value)) {
+						heap.set(i, encodeReference(heap.get(decodeReference(value) + GC_OFFSET)));
+					}
+				}
+			}
+			ref += size;
+		}
+
+		// 5. scan the stack and rewrite the references
+		for (var i = 0; i < sp; i++) {
+			var value = stack[i];
+			if (isReference(value)) {
+				stack[i] = encodeReference(heap.get(decodeReference(value) + GC_OFFSET));
+			}
+		}
+
+		// 6. scan the heap and move the live objects to their new addresses
+		for (var ref = 0; ref < hp;) {
+			var size = objectSize(heap, ref, dict);
+			var newRef = heap.get(ref + GC_OFFSET);
+			if (newRef != GC_EMPTY) {
+				heap.move(ref, newRef, size);
+				heap.set(newRef + GC_OFFSET, GC_EMPTY);
+			}
+			ref += size;
+		}
+		return newHp;
+	}
+
+	// allocate size ints at the heap pointer hp, if the heap is full, run the GC (the roots are the values
+	// of the stack below sp) and grow the heap if the GC has not reclaimed enough memory,
+	// return the new heap pointer, the allocated ints start at the new heap pointer - size
+	public static int allocate(int size, int[] stack, int sp, Heap heap, int hp, Dictionary dict, Options options) {
+		var needed = hp + size;
+		if (needed <= heap.size()) {
+			return needed;
+		}
+		var tracer = options.tracer();
+		if (Tracer.ENABLED) {
+			dumpHeap(tracer, "before GC ", heap, hp, dict);
+		}
+
+		var oldHp = hp;
+		hp = gc(stack, sp, heap, hp, dict);
+		needed = hp + size;
+
+		if (Tracer.ENABLED) {
+			tracer.gc(oldHp, hp, heap.size());
+			dumpHeap(tracer, "after GC ", heap, hp, dict);
+		}
+
+		// grow the heap if the GC has not reclaimed enough memory
+		if (needed > heap.size() || oldHp - hp < options.minReclaimRatio() * heap.size()) {
+			if (needed > options.maxHeapSize()) {
+				throw new Failure("out of memory");
+			}
+			heap.grow(Options.grow(heap.size(), needed, options.maxHeapSize(), options.growthFactor()));
+		}
+		return needed;
+	}
+
+	// the builtin operators, shared by all the global environments,
+	// the operator instructions are executed inline only if the global environment contains them
+	private static final List<JSObject> BUILTIN_OPERATORS = createBuiltinOperators();
+
+	@SuppressWarnings("unchecked")
+	private static List<JSObject> createBuiltinOperators() {
+		return List.of(
+				JSObject.newFunction("+", (ignored, args) -> (Integer) args[0] + (Integer) args[1]),
+				JSObject.newFunction("-", (ignored, args) -> (Integer) args[0] - (Integer) args[1]),
+				JSObject.newFunction("*", (ignored, args) -> (Integer) args[0] * (Integer) args[1]),
+				JSObject.newFunction("/", (ignored, args) -> (Integer) args[0] / (Integer) args[1]),
+				JSObject.newFunction("%", (ignored, args) -> (Integer) args[0] % (Integer) args[1]),
+				JSObject.newFunction("==", (ignored, args) -> args[0].equals(args[1]) ? 1 : 0),
+				JSObject.newFunction("!=", (ignored, args) -> !args[0].equals(args[1]) ? 1 : 0),
+				JSObject.newFunction("<", (ignored, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) < 0) ? 1 : 0),
+				JSObject.newFunction("<=", (ignored, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) <= 0) ? 1 : 0),
+				JSObject.newFunction(">", (ignored, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) > 0) ? 1 : 0),
+				JSObject.newFunction(">=", (ignored, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) >= 0) ? 1 : 0));
+	}
+
+	// true if the function is the builtin operator with that name
+	public static boolean isBuiltinOperator(String name, Object function) {
+		var index = Instructions.OPERATOR_NAMES.indexOf(name);
+		return index != -1 && BUILTIN_OPERATORS.get(index) == function;
+	}
 
 	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv) {
-		var stack = new int[96 /* 4096 */];
-		var heap = new int[96 /* 4096 */];
-		var code = (Code) function.lookup("__code__");
+		return execute(function, dict, globalEnv, Options.DEFAULT);
+	}
+
+	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, Options options) {
+		try (var heap = options.heapFactory().create(options.initialHeapSize())) {
+			return run(function, dict, globalEnv, options, heap);
+		}
+	}
+
+	private static Object run(JSObject function, Dictionary dict, JSObject globalEnv, Options options, Heap heap) {
+		var stack = new int[options.initialStackSize()];
+		var tracer = options.tracer();
+		var code = (Code) LazyCode.lookupCode(function);
 		var instrs = code.instrs();
+		var caches = code.caches();
+
+		// check once that the whole frame fits, so pushing on the operand stack never needs a check
+		stack = growStack(stack, code.slotCount() + ACTIVATION_SIZE + code.maxStack(), options);
 
 		var undefined = encodeDictObject(UNDEFINED, dict);
 
+		// the LOOKUP caches and the builtin operators are only checked again when their global changes
+		var guards = new GlobalGuards(globalEnv, dict);
+
+		// null if the heap is not generational
+		var generations = (options.nurserySize() == 0) ? null : new Generations(heap, options, dict);
+
 		var hp = 0; // heap pointer
 		var pc = 0; // instruction pointer
 		var bp = 0; // base pointer
@@ -92,8 +275,18 @@ public final class StackInterpreter {
 		for (var i = 0; i < code.slotCount(); i++) {
 			stack[i] = undefined;
 		}
-
+		// initialize the activation zone of main, bp and pc are stored as small ints so the GC
+		// never mistakes them for references
+		stack[code.slotCount() + BP_OFFSET] = encodeSmallInt(0);
+		stack[code.slotCount() + PC_OFFSET] = encodeSmallInt(0);
+		var vCode = encodeDictObject(code, dict);
+		stack[code.slotCount() + CODE_OFFSET] = vCode;
+
+		var dispatches = 0L;
 		for (;;) {
+			if (Tracer.ENABLED) {
+				dispatches++;
+			}
 			switch (instrs[pc++]) {
 				case Instructions.CONST -> {
 					// get the constant from the instruction to the stack
@@ -102,15 +295,29 @@ public final class StackInterpreter {
 					push(stack, sp++, value);
 				}
 				case Instructions.LOOKUP -> {
+					// the inline cache of the instruction
+					var cache = pc - 1;
 					// find the current instruction
 					int indexTagValue = instrs[pc++];
-					// decode the name from the instruction
-					String name = (String) decodeDictObject(indexTagValue, dict);
-					// lookup the name and push as any anyValue
-					var result = globalEnv.lookup(name);
-					push(stack, sp++, encodeDictObject(result, dict));
+					// REGISTER or a native function may have changed the global
+					var epoch = guards.epoch(indexTagValue);
+					// the cache contains the value and the epoch of the global when the value was cached
+					var hit = caches[cache + 1] == epoch;
+					if (!hit) {
+						// decode the name from the instruction
+						String name = (String) decodeDictObject(indexTagValue, dict);
+						// lookup the name and cache it as any anyValue
+						var result = globalEnv.lookup(name);
+						caches[cache] = encodeDictObject(result, dict);
+						caches[cache + 1] = epoch;
+					}
+					push(stack, sp++, caches[cache]);
 
-					dumpStack("in lookup", stack, sp, bp, dict, heap);
+					if (Tracer.ENABLED) {
+						var name = (String) decodeDictObject(indexTagValue, dict);
+						tracer.inlineCache("lookup", name, hit);
+						tracer.lookup(name, decodeDictObject(caches[cache], dict));
+					}
 				}
 				case Instructions.REGISTER -> {
 					// find the current instruction
@@ -158,10 +365,14 @@ public final class StackInterpreter {
 					// push the second value on top of the stack
 					push(stack, sp++, value2);
 				}
-				case Instructions.FUNCALL -> {
-					// DEBUG
-					dumpStack(">start funcall dump", stack, sp, bp, dict, heap);
+				case Instructions.FUNCALL, Instructions.FUNCALL_CODE, Instructions.TAILCALL, Instructions.TAILCALL_CODE -> {
+					if (Tracer.ENABLED) {
+						dumpStack(tracer, ">start funcall dump", stack, sp, bp, dict, heap);
+					}
 
+					// the inline cache of the instruction
+					var cache = pc - 1;
+					var tailCall = instrs[cache] == Instructions.TAILCALL || instrs[cache] == Instructions.TAILCALL_CODE;
 					// find argument count
 					var argumentCount = instrs[pc++];
 					// find baseArg
@@ -169,63 +380,98 @@ public final class StackInterpreter {
 					// stack[baseArg] is the first argument
 					// stack[baseArg + RECEIVER_BASE_ARG_OFFSET] is the receiver
 					// stack[baseArg + QUALIFIER_BASE_ARG_OFFSET] is the qualifier (aka the function)
+					var vQualifier = stack[baseArg + QUALIFIER_BASE_ARG_OFFSET];
 
-					// decode qualifier
-					var newFunction = (JSObject) decodeAnyValue(stack[baseArg + QUALIFIER_BASE_ARG_OFFSET], dict, heap);
-					{ // DEBUG
+					if (Tracer.ENABLED) {
+						var qualifier = (JSObject) decodeAnyValue(vQualifier, dict, heap);
 						var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
-						var args = new Object[argumentCount];
-						for (var i = 0; i < argumentCount; i++) {
-							args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
-						}
-						System.err.println("funcall " + newFunction.getName() + " with " + receiver + " " + Arrays.toString(args));
+						tracer.funcall(qualifier, receiver, decodeArguments(stack, baseArg, argumentCount, dict, heap));
 					}
 
-					// check if the function contains a code attribute
-					var maybeCode = newFunction.lookup("__code__");
-					if (maybeCode == UNDEFINED) { // native call !
-					// decode receiver
-					var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
+					int vNewCode;
+					if ((instrs[cache] == Instructions.FUNCALL_CODE || instrs[cache] == Instructions.TAILCALL_CODE) && caches[cache] == vQualifier) {
+						// quickened call, the code of the function and the number of arguments have already been checked
+						vNewCode = caches[cache + 1];
+					} else {
+						// decode qualifier
+						var newFunction = (JSObject) decodeAnyValue(vQualifier, dict, heap);
+
+						// check if the function contains a code attribute
+						var maybeCode = LazyCode.lookupCode(newFunction);
+						if (maybeCode == UNDEFINED) { // native call !
+							// de-quicken, the site calls a native function
+							instrs[cache] = tailCall ? Instructions.TAILCALL : Instructions.FUNCALL;
 
-					  // decode arguments
-					  var args = new Object[argumentCount];
-					  for (var i = 0; i < argumentCount; i++) {
-					  	args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
-					  }
+							// decode receiver
+							var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
 
-					   System.err.println("call native " + newFunction.getName() + " with " +
-					   receiver + " " + java.util.Arrays.toString(args));
+							// decode arguments
+							var args = decodeArguments(stack, baseArg, argumentCount, dict, heap);
 
-					  // call native function
-					  var result = encodeAnyValue(newFunction.invoke(receiver, args), dict);
+							// call native function
+							var result = encodeAnyValue(newFunction.invoke(receiver, args), dict);
 
-					  // fixup sp (receiver and function must be dropped)
-					  sp = baseArg - FUNCALL_PREFIX;
+							// fixup sp (receiver and function must be dropped)
+							sp = baseArg - FUNCALL_PREFIX;
 
-					  // push return value
-					  push(stack, sp++, result);
-					  continue;
+							// push return value, in tail position the next instruction is a RET
+							push(stack, sp++, result);
+							continue;
+						}
+
+						// check number of arguments
+						var newCode = (Code) maybeCode;
+						if (newCode.parameterCount() != argumentCount + 1/* this */) {
+							throw new Failure("wrong number of arguments for " + newFunction.getName() + " expected "
+									+ (newCode.parameterCount() - 1) + " but was " + argumentCount);
+						}
+
+						// quicken, the next call with the same function will not have to find the code
+						vNewCode = encodeDictObject(newCode, dict);
+						instrs[cache] = tailCall ? Instructions.TAILCALL_CODE : Instructions.FUNCALL_CODE;
+						caches[cache] = vQualifier;
+						caches[cache + 1] = vNewCode;
 					}
 
 					// initialize new code
-					code = (Code) maybeCode;
-
-					// check number of arguments
-					if (code.parameterCount() != argumentCount + 1/* this */) {
-						throw new Failure("wrong number of arguments for " + newFunction.getName() + " expected "
-								+ (code.parameterCount() - 1) + " but was " + argumentCount);
+					var newCode = (Code) decodeDictObject(vNewCode, dict);
+
+					// if enabled (see Options.tailCalls), a call in tail position reuses the frame of the current function
+					// (main has no frame to reuse),
+					// the qualifier, the receiver and the arguments are moved at the start of the current frame
+					// and the activation zone of the current function becomes the one of the new function
+					int savedBp, savedPc, savedCode;
+					if (tailCall && options.tailCalls() && bp != 0) {
+						var currentActivation = bp + code.slotCount();
+						savedBp = stack[currentActivation + BP_OFFSET];
+						savedPc = stack[currentActivation + PC_OFFSET];
+						savedCode = stack[currentActivation + CODE_OFFSET];
+						for (var i = 0; i < FUNCALL_PREFIX + argumentCount; i++) {
+							stack[bp - 1 + i] = stack[baseArg + QUALIFIER_BASE_ARG_OFFSET + i];
+						}
+						// the qualifier slot is below the current frame
+						if (generations != null) {
+							generations.returnTo(bp - 1);
+						}
+					} else {
+						savedBp = encodeSmallInt(bp);
+						savedPc = encodeSmallInt(pc);
+						savedCode = vCode;
+						bp = baseArg - 1;
 					}
+					code = newCode;
 
 					// save bp/pc/code in activation zone
-					// stack[activation + offset] = ??
-					var activation = sp + code.slotCount() - code.parameterCount();
-					stack[activation + BP_OFFSET] = bp;
-					stack[activation + PC_OFFSET] = pc;
-					stack[activation + FUN_OFFSET] = encodeDictObject(function, dict);
+					var activation = bp + code.slotCount();
 
-					// initialize pc, bp and sp
+					// grow the stack if the new frame (locals + activation + operand stack) does not fit
+					stack = growStack(stack, activation + ACTIVATION_SIZE + code.maxStack(), options);
+					stack[activation + BP_OFFSET] = savedBp;
+					stack[activation + PC_OFFSET] = savedPc;
+					stack[activation + CODE_OFFSET] = savedCode;
+
+					// initialize pc and sp
 					pc = 0;
-					bp = baseArg - 1;
 					sp = activation + ACTIVATION_SIZE;
 
 					// initialize all locals that are not parameters
@@ -233,43 +479,61 @@ public final class StackInterpreter {
 						stack[i] = undefined;
 					}
 
-					// initialize function and instrs of the new function
-					function = newFunction;
+					// initialize instrs and caches of the new function
+					vCode = vNewCode;
 					instrs = code.instrs();
+					caches = code.caches();
 
-					// DEBUG
-					dumpStack(">end funcall dump", stack, sp, bp, dict, heap);
+					if (Tracer.ENABLED) {
+						dumpStack(tracer, ">end funcall dump", stack, sp, bp, dict, heap);
+					}
 				}
-				case Instructions.RET -> {
-					// DEBUG
-					dumpStack("> start ret dump", stack, sp, bp, dict, heap);
+				case Instructions.RET, Instructions.RETURN_LOCAL, Instructions.RETURN_CONST -> {
+					if (Tracer.ENABLED) {
+						dumpStack(tracer, "> start ret dump", stack, sp, bp, dict, heap);
+					}
 
-					// get the return value from the top of the stack
-					int result = pop(stack, --sp);
+					// get the return value from the top of the stack, a local slot or the instructions
+					int result = switch (instrs[pc - 1]) {
+						case Instructions.RETURN_LOCAL -> load(stack, bp, instrs[pc]);
+						case Instructions.RETURN_CONST -> instrs[pc];
+						default -> pop(stack, --sp);
+					};
 
-					System.err.println("ret " + decodeAnyValue(result, dict, heap));
+					if (Tracer.ENABLED) {
+						tracer.ret(decodeAnyValue(result, dict, heap));
+					}
 
 					// find activation and restore pc
 					int activation = bp + code.slotCount();
-					pc = stack[activation + PC_OFFSET];
+					pc = decodeSmallInt(stack[activation + PC_OFFSET]);
 					if (pc == 0) {
+						if (Tracer.ENABLED) {
+							tracer.dispatches(dispatches);
+						}
 						return decodeAnyValue(result, dict, heap);
 					}
 
-					// restore sp, function and bp
+					// restore sp, code and bp
 					sp = bp - 1;
-					function = (JSObject) decodeDictObject(stack[activation + FUN_OFFSET], dict);
-					bp = stack[activation + BP_OFFSET];
+					vCode = stack[activation + CODE_OFFSET];
+					bp = decodeSmallInt(stack[activation + BP_OFFSET]);
+					// the frame of the caller can now be modified
+					if (generations != null) {
+						generations.returnTo(bp);
+					}
 
-					// restore code and instrs
-					code = (Code) function.lookup("__code__");
+					// restore code, instrs and caches
+					code = (Code) decodeDictObject(vCode, dict);
 					instrs = code.instrs();
+					caches = code.caches();
 
 					// push return value
 					push(stack, sp++, result);
 
-					// DEBUG
-					dumpStack("> end ret dump", stack, sp, bp, dict, heap);
+					if (Tracer.ENABLED) {
+						dumpStack(tracer, "> end ret dump", stack, sp, bp, dict, heap);
+					}
 				}
 				case Instructions.GOTO -> {
 					// get the label
@@ -277,6 +541,33 @@ public final class StackInterpreter {
 					// change the program counter to the label
 					pc = label;
 				}
+				case Instructions.JUMP_IF_NE, Instructions.JUMP_IF_EQ, Instructions.JUMP_IF_GE,
+						Instructions.JUMP_IF_GT, Instructions.JUMP_IF_LE, Instructions.JUMP_IF_LT -> {
+					// the comparison fused with the JUMP_IF_FALSE
+					var comparison = instrs[pc - 1] - Instructions.JUMP_IF_NE + Instructions.EQ;
+					// get the label
+					var label = instrs[pc++];
+					// pop the two operands
+					var right = pop(stack, --sp);
+					var left = pop(stack, --sp);
+					int condition;
+					if (isSmallInt(left) && isSmallInt(right)) {
+						condition = guards.builtinOperator(comparison - Instructions.ADD)
+								? operator(comparison - Instructions.ADD, decodeSmallInt(left), decodeSmallInt(right), globalEnv, dict, heap)
+								: callOperator(comparison - Instructions.ADD, left, right, globalEnv, dict, heap);
+					} else {
+						condition = callOperator(comparison - Instructions.ADD, left, right, globalEnv, dict, heap);
+					}
+					// if condition is false change the program counter to the label
+					if (condition == TagValues.FALSE) {
+						pc = label;
+					}
+				}
+				case Instructions.LOAD_LOAD -> {
+					// load the two local slots and push them on top of the stack
+					push(stack, sp++, load(stack, bp, instrs[pc++]));
+					push(stack, sp++, load(stack, bp, instrs[pc++]));
+				}
 				case Instructions.JUMP_IF_FALSE -> {
 					// get the label
 					var label = instrs[pc++];
@@ -287,85 +578,118 @@ public final class StackInterpreter {
 						pc = label;
 					}
 				}
+				case Instructions.JUMP_IF_NOT_BUILTIN -> {
+					// get the label and the operators used by the folded constant
+					var label = instrs[pc++];
+					var operators = instrs[pc++];
+					// an operator has been redefined, the folded constant is not valid anymore
+					if (!guards.builtinOperators(operators)) {
+						pc = label;
+					}
+				}
 				case Instructions.NEW -> {
 					// get the class from the instructions
 					var vClass = instrs[pc++];
 					var clazz = (JSObject) decodeDictObject(vClass, dict);
 
-					// out of memory ?
-					if (hp + OBJECT_HEADER_SIZE + clazz.length() >= heap.length) {
-						dumpHeap("before GC ", heap, hp, dict);
-
-						throw new UnsupportedOperationException("TODO !!! GC !!!");
-
-						//dumpHeap("after GC ", heap, hp, dict);
+					// allocate the object, either by the generational heap or at the heap pointer
+					var size = OBJECT_HEADER_SIZE + clazz.length();
+					int ref;
+					if (generations != null) {
+						ref = generations.allocate(size, stack, sp, bp);
+					} else {
+						hp = allocate(size, stack, sp, heap, hp, dict, options);
+						ref = hp - size;
 					}
 
-					var ref = hp;
-
 					// write the class on heap
-					heap[ref] = vClass;
+					heap.set(ref, vClass);
 					// write the empty GC mark
-					heap[ref + GC_OFFSET] = GC_EMPTY;
+					heap.set(ref + GC_OFFSET, GC_EMPTY);
 					// get all fields values from the stack and write them on heap
 					var baseArg = sp - clazz.length();
-					for (var i = 0; i < clazz.length(); i++) {
-						heap[ref + OBJECT_HEADER_SIZE + i] = stack[baseArg + i];
-					}
-					// adjust stack pointer and heap pointer
+					heap.copyFrom(stack, baseArg, ref + OBJECT_HEADER_SIZE, clazz.length());
+					// adjust stack pointer
 					sp = baseArg;
-					hp += OBJECT_HEADER_SIZE + clazz.length();
 
 					// push the reference on top of the stack
 					push(stack, sp++, encodeReference(ref));
 				}
-				case Instructions.GET -> {
+				case Instructions.GET, Instructions.GET_METHOD -> {
+					// the inline cache of the instruction
+					var cache = pc - 1;
 					// get field name from the instructions
-					var fieldName = (String) decodeDictObject(instrs[pc++], dict);
+					var vFieldName = instrs[pc++];
 
 					// get reference from the top of the stack
 					int value = pop(stack, --sp);
 					int ref = decodeReference(value);
 					// get class on heap from the reference
-					int vClass = heap[ref];
-					// get JSObject from class
-					var clazz = (JSObject) decodeDictObject(vClass, dict);
-					// get field slot from JSObject
-					Object slot = clazz.lookup(fieldName);
-					if (slot == UNDEFINED) {
-						// no slot, push undefined
-						push(stack, sp++, undefined);
-						continue;
+					int vClass = heap.get(ref);
+					// find the field index, either in the inline cache or from the class
+					var hit = caches[cache] == vClass;
+					if (!hit) {
+						caches[cache] = vClass;
+						caches[cache + 1] = fieldIndex(vClass, vFieldName, dict);
 					}
-
-					// get the field index
-					int fieldIndex = (int) slot;
-					// get field value
-					int fieldValue = heap[ref + OBJECT_HEADER_SIZE + fieldIndex];
+					if (Tracer.ENABLED) {
+						tracer.inlineCache("get", (String) decodeDictObject(vFieldName, dict), hit);
+					}
+					int fieldIndex = caches[cache + 1];
+					// get field value, undefined if there is no slot
+					int fieldValue = (fieldIndex == -1) ? undefined : heap.get(ref + OBJECT_HEADER_SIZE + fieldIndex);
 					// push field value on top of the stack
 					push(stack, sp++, fieldValue);
+					// GET_METHOD pushes the receiver back, above the method
+					if (instrs[cache] == Instructions.GET_METHOD) {
+						push(stack, sp++, value);
+					}
 				}
 				case Instructions.PUT -> {
+					// the inline cache of the instruction
+					var cache = pc - 1;
 					// get field name from the instructions
-					var fieldName = (String) decodeDictObject(instrs[pc++], dict);
+					var vFieldName = instrs[pc++];
 					// get new value from the top of the stack
 					var value = pop(stack, --sp);
 					// get reference from the top of the stack
-					 var ref = decodeReference(pop(stack, --sp));
+					var ref = decodeReference(pop(stack, --sp));
 					// get class on heap from the reference
-					var vClass = heap[ref];
-					// get JSObject from class
-					var clazz = (JSObject) decodeDictObject(vClass, dict);
-					// get field slot from JSObject
-					var slotOrUndefined = clazz.lookup(fieldName);
-					if (slotOrUndefined == UNDEFINED) {
-						throw new Failure("invalid field " + fieldName);
+					var vClass = heap.get(ref);
+					// find the field index, either in the inline cache or from the class
+					var hit = caches[cache] == vClass;
+					if (!hit) {
+						caches[cache] = vClass;
+						caches[cache + 1] = fieldIndex(vClass, vFieldName, dict);
+					}
+					if (Tracer.ENABLED) {
+						tracer.inlineCache("put", (String) decodeDictObject(vFieldName, dict), hit);
+					}
+					var fieldIndex = caches[cache + 1];
+					if (fieldIndex == -1) {
+						throw new Failure("invalid field " + decodeDictObject(vFieldName, dict));
 					}
 
-					// get the field index
-					var fieldIndex = (int) slotOrUndefined;
 					// store field value from the top of the stack on heap
-					heap[ref + OBJECT_HEADER_SIZE + fieldIndex] = value;
+					heap.set(ref + OBJECT_HEADER_SIZE + fieldIndex, value);
+					// write barrier, an old object may now reference a young object
+					if (generations != null) {
+						generations.recordWrite(ref + OBJECT_HEADER_SIZE + fieldIndex);
+					}
+				}
+				case Instructions.ADD, Instructions.SUB, Instructions.MUL, Instructions.DIV, Instructions.REM,
+						Instructions.EQ, Instructions.NE, Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE -> {
+					var instr = instrs[pc - 1];
+					// pop the two operands
+					var right = pop(stack, --sp);
+					var left = pop(stack, --sp);
+					// fast path, both operands are small ints and the operator is the builtin one
+					if (isSmallInt(left) && isSmallInt(right) && guards.builtinOperator(instr - Instructions.ADD)) {
+						push(stack, sp++, operator(instr - Instructions.ADD, decodeSmallInt(left), decodeSmallInt(right), globalEnv, dict, heap));
+						continue;
+					}
+					// slow path, call the operator of the global environment
+					push(stack, sp++, callOperator(instr - Instructions.ADD, left, right, globalEnv, dict, heap));
 				}
 				case Instructions.PRINT -> {
 					// pop the value on top of the stack
@@ -385,34 +709,37 @@ public final class StackInterpreter {
 	}
 
 
-	@SuppressWarnings("unchecked")
 	public static JSObject createGlobalEnv(PrintStream outStream) {
 		JSObject globalEnv = JSObject.newEnv(null);
 		globalEnv.register("global", globalEnv);
 		globalEnv.register("print", JSObject.newFunction("print", (ignored, args) -> {
-			System.err.println("print called with " + Arrays.toString(args));
+			if (Tracer.ENABLED) {
+				System.err.println("print called with " + Arrays.toString(args));
+			}
 			outStream.println(Arrays.stream(args).map(Object::toString).collect(Collectors.joining(" ")));
 			return UNDEFINED;
 		}));
-		globalEnv.register("+", JSObject.newFunction("+", (ignored, args) -> (Integer) args[0] + (Integer) args[1]));
-		globalEnv.register("-", JSObject.newFunction("-", (ignored, args) -> (Integer) args[0] - (Integer) args[1]));
-		globalEnv.register("/", JSObject.newFunction("/", (ignored, args) -> (Integer) args[0] / (Integer) args[1]));
-		globalEnv.register("*", JSObject.newFunction("*", (ignored, args) -> (Integer) args[0] * (Integer) args[1]));
-		globalEnv.register("%", JSObject.newFunction("%", (ignored, args) -> (Integer) args[0] % (Integer) args[1]));
-		globalEnv.register("==", JSObject.newFunction("==", (ignored, args) -> args[0].equals(args[1]) ? 1 : 0));
-		globalEnv.register("!=", JSObject.newFunction("!=", (ignored, args) -> !args[0].equals(args[1]) ? 1 : 0));
-		globalEnv.register("<", JSObject.newFunction("<", (ignored, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) < 0) ? 1 : 0));
-		globalEnv.register("<=", JSObject.newFunction("<=", (ignored, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) <= 0) ? 1 : 0));
-		globalEnv.register(">", JSObject.newFunction(">", (ignored, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) > 0) ? 1 : 0));
-		globalEnv.register(">=", JSObject.newFunction(">=", (_ignored, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) >= 0) ? 1 : 0));
+		for (var i = 0; i < BUILTIN_OPERATORS.size(); i++) {
+			globalEnv.register(Instructions.OPERATOR_NAMES.get(i), BUILTIN_OPERATORS.get(i));
+		}
 		return globalEnv;
 	}
 
 	public static void interpret(Script script, PrintStream outStream) {
+		interpret(script, outStream, Options.DEFAULT);
+	}
+
+	public static void interpret(Script script, PrintStream outStream, Options options) {
+		var state = compile(script, outStream);
+		StackInterpreter.execute(state.main(), state.dict(), state.globalEnv(), options);
+	}
+
+	// the state before the execution of the script, can be saved as a Snapshot
+	public static Snapshot.State compile(Script script, PrintStream outStream) {
 		JSObject globalEnv = createGlobalEnv(outStream);
-		Expr.Block body = script.body();
+		Expr.Block body = ConstantFolder.fold(script.body(), globalEnv);
 		Dictionary dictionary = new Dictionary();
-		JSObject function = InstrRewriter.createFunction(Optional.of("main"), List.of(), body, dictionary);
-		StackInterpreter.execute(function, dictionary, globalEnv);
+		JSObject function = InstrRewriter.createMain(body, dictionary);
+		return new Snapshot.State(dictionary, globalEnv, function);
 	}
 }
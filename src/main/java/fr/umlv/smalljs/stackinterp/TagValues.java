@@ -5,19 +5,30 @@ import fr.umlv.smalljs.rt.JSObject;
 public interface TagValues {
 	// every value are stored as 32 bits integer, boolean, small ints, constant (dictionary object) and reference
 	// the suffix indicates the kind of value
-	//    1 -> small integers (SmallInt) or boolean (TRUE/FALSE)
+	//    1 -> small integers (SmallInt, signed 31 bits) or boolean (TRUE/FALSE)
 	//   10 -> dictionary index
 	//   00 -> reference 
 	
+  int MIN_SMALL_INT = -(1 << 30);
+  int MAX_SMALL_INT = (1 << 30) - 1;
+  // a reference is an index in the heap on 30 bits, so a heap has at most 2^30 ints (4 GB),
+  // even if the heap is outside the Java heap (see Heap.offHeap)
+  int MAX_HEAP_SIZE = 1 << 30;
+
   static boolean isSmallInt(int value) {
     return (value & 0b1) == 0b1;
   }
 
+  // true if the value can be encoded as a small int without losing its sign bit
+  static boolean fitsSmallInt(int value) {
+    return (value << 1) >> 1 == value;
+  }
+
   static int encodeSmallInt(int value) {
     return value << 1 | 0b1;
   }
   static int decodeSmallInt(int value) {
-    return value >>> 1;
+    return value >> 1;
   }
 
   static int encodeDictObject(Object object, Dictionary dict) {
@@ -38,20 +49,20 @@ public interface TagValues {
     return value >>> 2;
   }
 
-  static Object decodeAnyValue(int tagValue, Dictionary dict, int[] heap) {
+  static Object decodeAnyValue(int tagValue, Dictionary dict, Heap heap) {
     if (isSmallInt(tagValue)) {
       return decodeSmallInt(tagValue);
     }
     if (isReference(tagValue)) {
       var ref = decodeReference(tagValue);
-      var clazz = (JSObject) decodeDictObject(heap[ref], dict);
-      return clazz.mirror(offset -> decodeAnyValue(heap[ref + OBJECT_HEADER_SIZE + (int)offset], dict, heap));
+      var clazz = (JSObject) decodeDictObject(heap.get(ref), dict);
+      return clazz.mirror(offset -> decodeAnyValue(heap.get(ref + OBJECT_HEADER_SIZE + (int)offset), dict, heap));
     }
     return decodeDictObject(tagValue, dict);
   }
   static int encodeAnyValue(Object object, Dictionary dict) {
-  	if (object instanceof Integer smallInt && smallInt >= 0) {
-      return encodeSmallInt(smallInt);
+  	if (object instanceof Integer value && fitsSmallInt(value)) {
+      return encodeSmallInt(value);
     }
     return encodeDictObject(object, dict);
   }
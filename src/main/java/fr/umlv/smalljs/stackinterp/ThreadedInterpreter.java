@@ -0,0 +1,537 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.Interpreters.*;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.*;
+import static fr.umlv.smalljs.stackinterp.TagValues.*;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.function.ToIntFunction;
+
+import fr.umlv.smalljs.ast.ConstantFolder;
+import fr.umlv.smalljs.ast.Expr;
+import fr.umlv.smalljs.ast.Script;
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// another execution engine for the instructions of the InstrRewriter,
+// instead of a switch on each instruction, the instructions of a code are decoded once
+// into an array of handlers (closure compilation), the interpreter loop just calls the handlers one after the other.
+// The frames, the objects and the GC are the same as the StackInterpreter,
+// but the inline caches are stored in the handlers, not in the Code.
+// The handlers of the codes called by an execution are stored in a table of the Machine,
+// the activation zone of a frame saves the index of the handlers of the caller as a small int
+// (the StackInterpreter saves the Code encoded in the dictionary), so the handlers are never added
+// to the dictionary shared by the executions
+public final class ThreadedInterpreter {
+	private ThreadedInterpreter() {
+		throw new AssertionError();
+	}
+
+	// the index of the next instruction returned by RET when main returns
+	private static final int STOP = -1;
+
+	// a decoded instruction
+	@FunctionalInterface
+	private interface Handler {
+		// execute the instruction and return the index of the next instruction
+		int execute(Machine machine);
+	}
+
+	// the state of an execution, the registers of the StackInterpreter are fields
+	private static final class Machine {
+		private final Dictionary dict;
+		private final JSObject globalEnv;
+		private final Options options;
+		private final Tracer tracer;
+		private final int undefined;
+		private final IdentityHashMap<Code, Integer> handlersIndexes = new IdentityHashMap<>();
+		private final ArrayList<Handler[]> handlersTable = new ArrayList<>();
+
+		private int[] stack;
+		private int sp; // stack pointer
+		private int bp; // base pointer
+		private final Heap heap;
+		private final Generations generations; // null if the heap is not generational
+		private int hp; // heap pointer
+		private Handler[] handlers; // handlers of the current code
+		private int vHandlers; // index of the handlers of the current code in handlersTable encoded as a small int
+		private Object result;
+
+		// the LOOKUP caches and the builtin operators are only checked again when their global changes
+		private final GlobalGuards guards;
+
+		private Machine(Dictionary dict, JSObject globalEnv, Options options, Heap heap) {
+			this.dict = dict;
+			this.globalEnv = globalEnv;
+			this.guards = new GlobalGuards(globalEnv, dict);
+			this.options = options;
+			this.tracer = options.tracer();
+			this.undefined = encodeDictObject(UNDEFINED, dict);
+			this.stack = new int[options.initialStackSize()];
+			this.heap = heap;
+			this.generations = (options.nurserySize() == 0) ? null : new Generations(heap, options, dict);
+		}
+
+		// the index of the handlers of a code in handlersTable, the code is decoded at its first call
+		private int handlersIndex(Code code) {
+			return handlersIndexes.computeIfAbsent(code, c -> {
+				handlersTable.add(decode(c, dict));
+				return handlersTable.size() - 1;
+			});
+		}
+
+		// set the current handlers from their index encoded as a small int
+		private void setHandlers(int vHandlers) {
+			this.vHandlers = vHandlers;
+			this.handlers = handlersTable.get(decodeSmallInt(vHandlers));
+		}
+
+		private int binaryOperator(int instr, int left, int right) {
+			// fast path, both operands are small ints and the operator is the builtin one
+			if (isSmallInt(left) && isSmallInt(right) && guards.builtinOperator(instr - Instructions.ADD)) {
+				return operator(instr - Instructions.ADD, decodeSmallInt(left), decodeSmallInt(right), globalEnv, dict, heap);
+			}
+			// slow path, call the operator of the global environment
+			return callOperator(instr - Instructions.ADD, left, right, globalEnv, dict, heap);
+		}
+
+		// allocate an object, either by the generational heap or at the heap pointer
+		private int allocate(int size) {
+			if (generations != null) {
+				return generations.allocate(size, stack, sp, bp);
+			}
+			hp = StackInterpreter.allocate(size, stack, sp, heap, hp, dict, options);
+			return hp - size;
+		}
+	}
+
+	// decode all the instructions of a code, the handler of an instruction is at the index of the instruction
+	private static Handler[] decode(Code code, Dictionary dict) {
+		var instrs = code.instrs();
+		var handlers = new Handler[instrs.length];
+		for (var pc = 0; pc < instrs.length; pc += Instructions.size(instrs[pc])) {
+			handlers[pc] = decode(code, pc, dict);
+		}
+		return handlers;
+	}
+
+	private static Handler decode(Code code, int pc, Dictionary dict) {
+		var instrs = code.instrs();
+		var instr = instrs[pc];
+		var next = pc + Instructions.size(instr);
+		return switch (instr) {
+			case Instructions.CONST -> {
+				var value = instrs[pc + 1];
+				yield m -> {
+					m.stack[m.sp++] = value;
+					return next;
+				};
+			}
+			case Instructions.LOOKUP -> new Lookup(instrs[pc + 1], (String) decodeDictObject(instrs[pc + 1], dict), next);
+			case Instructions.REGISTER -> {
+				var name = (String) decodeDictObject(instrs[pc + 1], dict);
+				yield m -> {
+					m.globalEnv.register(name, decodeAnyValue(m.stack[--m.sp], m.dict, m.heap));
+					return next;
+				};
+			}
+			case Instructions.LOAD -> {
+				var offset = instrs[pc + 1];
+				yield m -> {
+					m.stack[m.sp++] = m.stack[m.bp + offset];
+					return next;
+				};
+			}
+			case Instructions.STORE -> {
+				var offset = instrs[pc + 1];
+				yield m -> {
+					m.stack[m.bp + offset] = m.stack[--m.sp];
+					return next;
+				};
+			}
+			case Instructions.LOAD_LOAD -> {
+				var offset1 = instrs[pc + 1];
+				var offset2 = instrs[pc + 2];
+				yield m -> {
+					m.stack[m.sp++] = m.stack[m.bp + offset1];
+					m.stack[m.sp++] = m.stack[m.bp + offset2];
+					return next;
+				};
+			}
+			case Instructions.DUP -> m -> {
+				m.stack[m.sp] = m.stack[m.sp - 1];
+				m.sp++;
+				return next;
+			};
+			case Instructions.POP -> m -> {
+				m.sp--;
+				return next;
+			};
+			case Instructions.SWAP -> m -> {
+				var value = m.stack[m.sp - 1];
+				m.stack[m.sp - 1] = m.stack[m.sp - 2];
+				m.stack[m.sp - 2] = value;
+				return next;
+			};
+			case Instructions.FUNCALL, Instructions.FUNCALL_CODE -> new FunCall(instrs[pc + 1], next, false, code.slotCount());
+			case Instructions.TAILCALL, Instructions.TAILCALL_CODE -> new FunCall(instrs[pc + 1], next, true, code.slotCount());
+			case Instructions.RET -> new Ret(code.slotCount(), m -> m.stack[--m.sp]);
+			case Instructions.RETURN_LOCAL -> {
+				var offset = instrs[pc + 1];
+				yield new Ret(code.slotCount(), m -> m.stack[m.bp + offset]);
+			}
+			case Instructions.RETURN_CONST -> {
+				var value = instrs[pc + 1];
+				yield new Ret(code.slotCount(), m -> value);
+			}
+			case Instructions.GOTO -> {
+				var label = instrs[pc + 1];
+				yield m -> label;
+			}
+			case Instructions.JUMP_IF_FALSE -> {
+				var label = instrs[pc + 1];
+				yield m -> (m.stack[--m.sp] == FALSE) ? label : next;
+			}
+			case Instructions.JUMP_IF_NOT_BUILTIN -> {
+				var label = instrs[pc + 1];
+				var operators = instrs[pc + 2];
+				yield m -> m.guards.builtinOperators(operators) ? next : label;
+			}
+			case Instructions.JUMP_IF_NE, Instructions.JUMP_IF_EQ, Instructions.JUMP_IF_GE,
+					Instructions.JUMP_IF_GT, Instructions.JUMP_IF_LE, Instructions.JUMP_IF_LT -> {
+				// the comparison fused with the JUMP_IF_FALSE
+				var comparison = instr - Instructions.JUMP_IF_NE + Instructions.EQ;
+				var label = instrs[pc + 1];
+				yield m -> {
+					var right = m.stack[--m.sp];
+					var left = m.stack[--m.sp];
+					return (m.binaryOperator(comparison, left, right) == FALSE) ? label : next;
+				};
+			}
+			case Instructions.ADD, Instructions.SUB, Instructions.MUL, Instructions.DIV, Instructions.REM,
+					Instructions.EQ, Instructions.NE, Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE -> m -> {
+				var right = m.stack[--m.sp];
+				var left = m.stack[--m.sp];
+				m.stack[m.sp++] = m.binaryOperator(instr, left, right);
+				return next;
+			};
+			case Instructions.NEW -> {
+				var vClass = instrs[pc + 1];
+				var length = ((JSObject) decodeDictObject(vClass, dict)).length();
+				yield m -> {
+					var ref = m.allocate(OBJECT_HEADER_SIZE + length);
+					var heap = m.heap;
+					// write the class and the empty GC mark
+					heap.set(ref, vClass);
+					heap.set(ref + GC_OFFSET, GC_EMPTY);
+					// get all fields values from the stack and write them on heap
+					var baseArg = m.sp - length;
+					heap.copyFrom(m.stack, baseArg, ref + OBJECT_HEADER_SIZE, length);
+					m.sp = baseArg;
+					m.stack[m.sp++] = encodeReference(ref);
+					return next;
+				};
+			}
+			case Instructions.GET, Instructions.GET_METHOD ->
+					new Get(instrs[pc + 1], instr == Instructions.GET_METHOD, next);
+			case Instructions.PUT -> new Put(instrs[pc + 1], next);
+			case Instructions.PRINT -> m -> {
+				var value = decodeAnyValue(m.stack[--m.sp], m.dict, m.heap);
+				var print = (JSObject) m.globalEnv.lookup("print");
+				print.invoke(UNDEFINED, new Object[] { value });
+				m.stack[m.sp++] = m.undefined;
+				return next;
+			};
+			default -> throw new AssertionError("unknown instruction " + instr);
+		};
+	}
+
+	// LOOKUP, the cache contains the value and the epoch of the global when the value was cached
+	private static final class Lookup implements Handler {
+		private final int vName;
+		private final String name;
+		private final int next;
+		private int epoch;
+		private int value;
+
+		private Lookup(int vName, String name, int next) {
+			this.vName = vName;
+			this.name = name;
+			this.next = next;
+		}
+
+		@Override
+		public int execute(Machine m) {
+			// REGISTER or a native function may have changed the global
+			var epoch = m.guards.epoch(vName);
+			var hit = this.epoch == epoch;
+			if (!hit) {
+				this.epoch = epoch;
+				value = encodeDictObject(m.globalEnv.lookup(name), m.dict);
+			}
+			if (Tracer.ENABLED) {
+				m.tracer.inlineCache("lookup", name, hit);
+				m.tracer.lookup(name, decodeDictObject(value, m.dict));
+			}
+			m.stack[m.sp++] = value;
+			return next;
+		}
+	}
+
+	// FUNCALL and TAILCALL, the cache contains the last function called and its handlers,
+	// slotCount is the number of slots of the code that contains the instruction
+	private static final class FunCall implements Handler {
+		private final int argumentCount;
+		private final int next;
+		private final boolean tailCall;
+		private final int slotCount;
+		private int vQualifier;
+		private Code code;  // null if there is no function in the cache
+		private int vHandlers;  // index of the handlers of the code encoded as a small int
+
+		private FunCall(int argumentCount, int next, boolean tailCall, int slotCount) {
+			this.argumentCount = argumentCount;
+			this.next = next;
+			this.tailCall = tailCall;
+			this.slotCount = slotCount;
+		}
+
+		@Override
+		public int execute(Machine m) {
+			var baseArg = m.sp - argumentCount;
+			var vQualifier = m.stack[baseArg + QUALIFIER_BASE_ARG_OFFSET];
+
+			if (Tracer.ENABLED) {
+				var qualifier = (JSObject) decodeAnyValue(vQualifier, m.dict, m.heap);
+				var receiver = decodeAnyValue(m.stack[baseArg + RECEIVER_BASE_ARG_OFFSET], m.dict, m.heap);
+				m.tracer.funcall(qualifier, receiver, decodeArguments(m.stack, baseArg, argumentCount, m.dict, m.heap));
+			}
+
+			if (code == null || this.vQualifier != vQualifier) {
+				var function = (JSObject) decodeAnyValue(vQualifier, m.dict, m.heap);
+				var maybeCode = LazyCode.lookupCode(function);
+				if (maybeCode == UNDEFINED) { // native call !
+					code = null;
+					var receiver = decodeAnyValue(m.stack[baseArg + RECEIVER_BASE_ARG_OFFSET], m.dict, m.heap);
+					var args = decodeArguments(m.stack, baseArg, argumentCount, m.dict, m.heap);
+					var result = encodeAnyValue(function.invoke(receiver, args), m.dict);
+					// drop the arguments, the receiver and the function, push the return value
+					m.sp = baseArg - FUNCALL_PREFIX;
+					m.stack[m.sp++] = result;
+					return next;
+				}
+				var newCode = (Code) maybeCode;
+				if (newCode.parameterCount() != argumentCount + 1/* this */) {
+					throw new Failure("wrong number of arguments for " + function.getName() + " expected "
+							+ (newCode.parameterCount() - 1) + " but was " + argumentCount);
+				}
+				this.vQualifier = vQualifier;
+				code = newCode;
+				vHandlers = encodeSmallInt(m.handlersIndex(newCode));
+			}
+			var code = this.code;
+
+			// if enabled (see Options.tailCalls), a call in tail position reuses the frame of the current function
+			// (main has no frame to reuse),
+			// the qualifier, the receiver and the arguments are moved at the start of the current frame
+			// and the activation zone of the current function becomes the one of the new function
+			int savedBp, savedPc, savedHandlers;
+			if (tailCall && m.options.tailCalls() && m.bp != 0) {
+				var currentActivation = m.bp + slotCount;
+				savedBp = m.stack[currentActivation + BP_OFFSET];
+				savedPc = m.stack[currentActivation + PC_OFFSET];
+				savedHandlers = m.stack[currentActivation + CODE_OFFSET];
+				for (var i = 0; i < FUNCALL_PREFIX + argumentCount; i++) {
+					m.stack[m.bp - 1 + i] = m.stack[baseArg + QUALIFIER_BASE_ARG_OFFSET + i];
+				}
+				// the qualifier slot is below the current frame
+				if (m.generations != null) {
+					m.generations.returnTo(m.bp - 1);
+				}
+			} else {
+				savedBp = encodeSmallInt(m.bp);
+				savedPc = encodeSmallInt(next);
+				savedHandlers = m.vHandlers;
+				m.bp = baseArg - 1;
+			}
+
+			// grow the stack if the new frame (locals + activation + operand stack) does not fit
+			var activation = m.bp + code.slotCount();
+			var stack = m.stack = growStack(m.stack, activation + ACTIVATION_SIZE + code.maxStack(), m.options);
+
+			// save bp/pc/handlers in activation zone
+			stack[activation + BP_OFFSET] = savedBp;
+			stack[activation + PC_OFFSET] = savedPc;
+			stack[activation + CODE_OFFSET] = savedHandlers;
+
+			// initialize sp and all locals that are not parameters
+			m.sp = activation + ACTIVATION_SIZE;
+			Arrays.fill(stack, m.bp + code.parameterCount(), m.bp + code.slotCount(), m.undefined);
+
+			m.setHandlers(vHandlers);
+			return 0;
+		}
+	}
+
+	// RET, RETURN_LOCAL and RETURN_CONST, only differ by the way they get the return value
+	private record Ret(int slotCount, ToIntFunction<Machine> result) implements Handler {
+		@Override
+		public int execute(Machine m) {
+			var result = this.result.applyAsInt(m);
+
+			if (Tracer.ENABLED) {
+				m.tracer.ret(decodeAnyValue(result, m.dict, m.heap));
+			}
+
+			// find activation and restore pc
+			var activation = m.bp + slotCount;
+			var pc = decodeSmallInt(m.stack[activation + PC_OFFSET]);
+			if (pc == 0) {
+				m.result = decodeAnyValue(result, m.dict, m.heap);
+				return STOP;
+			}
+
+			// restore sp, handlers and bp
+			m.sp = m.bp - 1;
+			m.setHandlers(m.stack[activation + CODE_OFFSET]);
+			m.bp = decodeSmallInt(m.stack[activation + BP_OFFSET]);
+			// the frame of the caller can now be modified
+			if (m.generations != null) {
+				m.generations.returnTo(m.bp);
+			}
+
+			// push return value
+			m.stack[m.sp++] = result;
+			return pc;
+		}
+	}
+
+	// GET and GET_METHOD, the cache contains the class of the last object and the index of the field
+	private static final class Get implements Handler {
+		private final int vFieldName;
+		private final boolean method;
+		private final int next;
+		private int vClass;
+		private int fieldIndex;
+
+		private Get(int vFieldName, boolean method, int next) {
+			this.vFieldName = vFieldName;
+			this.method = method;
+			this.next = next;
+		}
+
+		@Override
+		public int execute(Machine m) {
+			var value = m.stack[--m.sp];
+			var ref = decodeReference(value);
+			var vClass = m.heap.get(ref);
+			var hit = this.vClass == vClass;
+			if (!hit) {
+				this.vClass = vClass;
+				fieldIndex = fieldIndex(vClass, vFieldName, m.dict);
+			}
+			if (Tracer.ENABLED) {
+				m.tracer.inlineCache("get", (String) decodeDictObject(vFieldName, m.dict), hit);
+			}
+			// get field value, undefined if there is no slot
+			m.stack[m.sp++] = (fieldIndex == -1) ? m.undefined : m.heap.get(ref + OBJECT_HEADER_SIZE + fieldIndex);
+			// GET_METHOD pushes the receiver back, above the method
+			if (method) {
+				m.stack[m.sp++] = value;
+			}
+			return next;
+		}
+	}
+
+	// PUT, the cache contains the class of the last object and the index of the field
+	private static final class Put implements Handler {
+		private final int vFieldName;
+		private final int next;
+		private int vClass;
+		private int fieldIndex;
+
+		private Put(int vFieldName, int next) {
+			this.vFieldName = vFieldName;
+			this.next = next;
+		}
+
+		@Override
+		public int execute(Machine m) {
+			var value = m.stack[--m.sp];
+			var ref = decodeReference(m.stack[--m.sp]);
+			var vClass = m.heap.get(ref);
+			var hit = this.vClass == vClass;
+			if (!hit) {
+				this.vClass = vClass;
+				fieldIndex = fieldIndex(vClass, vFieldName, m.dict);
+			}
+			if (Tracer.ENABLED) {
+				m.tracer.inlineCache("put", (String) decodeDictObject(vFieldName, m.dict), hit);
+			}
+			if (fieldIndex == -1) {
+				throw new Failure("invalid field " + decodeDictObject(vFieldName, m.dict));
+			}
+			m.heap.set(ref + OBJECT_HEADER_SIZE + fieldIndex, value);
+			// write barrier, an old object may now reference a young object
+			if (m.generations != null) {
+				m.generations.recordWrite(ref + OBJECT_HEADER_SIZE + fieldIndex);
+			}
+			return next;
+		}
+	}
+
+	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv) {
+		return execute(function, dict, globalEnv, Options.DEFAULT);
+	}
+
+	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, Options options) {
+		try (var heap = options.heapFactory().create(options.initialHeapSize())) {
+			return run((Code) LazyCode.lookupCode(function), dict, globalEnv, options, heap);
+		}
+	}
+
+	private static Object run(Code code, Dictionary dict, JSObject globalEnv, Options options, Heap heap) {
+		var m = new Machine(dict, globalEnv, options, heap);
+
+		// check once that the whole frame fits, so pushing on the operand stack never needs a check
+		m.stack = growStack(m.stack, code.slotCount() + ACTIVATION_SIZE + code.maxStack(), options);
+
+		// initialize all local variables and the activation zone of main
+		Arrays.fill(m.stack, 0, code.slotCount(), m.undefined);
+		m.setHandlers(encodeSmallInt(m.handlersIndex(code)));
+		m.stack[code.slotCount() + BP_OFFSET] = encodeSmallInt(0);
+		m.stack[code.slotCount() + PC_OFFSET] = encodeSmallInt(0);
+		m.stack[code.slotCount() + CODE_OFFSET] = m.vHandlers;
+		m.sp = code.slotCount() + ACTIVATION_SIZE;
+
+		// the interpreter loop
+		var pc = 0;
+		var dispatches = 0L;
+		while (pc != STOP) {
+			if (Tracer.ENABLED) {
+				dispatches++;
+			}
+			pc = m.handlers[pc].execute(m);
+		}
+		if (Tracer.ENABLED) {
+			m.tracer.dispatches(dispatches);
+		}
+		return m.result;
+	}
+
+	public static void interpret(Script script, PrintStream outStream) {
+		interpret(script, outStream, Options.DEFAULT);
+	}
+
+	public static void interpret(Script script, PrintStream outStream, Options options) {
+		JSObject globalEnv = StackInterpreter.createGlobalEnv(outStream);
+		Expr.Block body = ConstantFolder.fold(script.body(), globalEnv);
+		Dictionary dictionary = new Dictionary();
+		JSObject function = InstrRewriter.createMain(body, dictionary);
+		execute(function, dictionary, globalEnv, options);
+	}
+}
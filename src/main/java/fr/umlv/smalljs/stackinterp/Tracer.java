@@ -0,0 +1,62 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.util.Arrays;
+import java.util.List;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// structured view of what the StackInterpreter does, used for debugging
+public interface Tracer {
+	// read once, so when the tracing is disabled the JIT removes all the tracing code
+	// of the interpreter loop, enable it with -Dsmalljs.trace=true
+	boolean ENABLED = Boolean.getBoolean("smalljs.trace");
+
+	void lookup(String name, Object value);
+	void funcall(JSObject function, Object receiver, Object[] args);
+	void ret(Object result);
+	void gc(int heapPointerBefore, int heapPointerAfter, int heapSize);
+	void inlineCache(String kind, String name, boolean hit);
+	void dump(String message, List<String> lines);
+	// number of instructions dispatched by the interpreter loop during an execution
+	void dispatches(long count);
+
+	// print the trace on the standard error
+	Tracer STDERR = new Tracer() {
+		@Override
+		public void lookup(String name, Object value) {
+			System.err.println("lookup " + name + " " + value);
+		}
+
+		@Override
+		public void funcall(JSObject function, Object receiver, Object[] args) {
+			System.err.println("funcall " + function.getName() + " with " + receiver + " " + Arrays.toString(args));
+		}
+
+		@Override
+		public void ret(Object result) {
+			System.err.println("ret " + result);
+		}
+
+		@Override
+		public void gc(int heapPointerBefore, int heapPointerAfter, int heapSize) {
+			System.err.println("gc " + heapPointerBefore + " -> " + heapPointerAfter + " (heap size " + heapSize + ")");
+		}
+
+		@Override
+		public void inlineCache(String kind, String name, boolean hit) {
+			System.err.println(kind + " " + name + " cache " + (hit ? "hit" : "miss"));
+		}
+
+		@Override
+		public void dump(String message, List<String> lines) {
+			System.err.println(message);
+			lines.forEach(System.err::println);
+			System.err.println();
+		}
+
+		@Override
+		public void dispatches(long count) {
+			System.err.println("dispatches " + count);
+		}
+	};
+}
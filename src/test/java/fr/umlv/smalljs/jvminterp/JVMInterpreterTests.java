@@ -1,19 +1,30 @@
 package fr.umlv.smalljs.jvminterp;
 
 import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+import static java.lang.invoke.MethodType.methodType;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
+import java.lang.invoke.MethodHandles;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
+import fr.umlv.smalljs.ast.ConstantFolder;
 import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.stackinterp.Dictionary;
+import fr.umlv.smalljs.stackinterp.GlobalGuards;
+import fr.umlv.smalljs.stackinterp.Instructions;
+import fr.umlv.smalljs.stackinterp.StackInterpreter;
+import fr.umlv.smalljs.stackinterp.TagValues;
 
 @SuppressWarnings("static-method")
 public class JVMInterpreterTests {
@@ -412,4 +423,277 @@ public class JVMInterpreterTests {
                 """));
   }
 
+  @Tag("Q36") @Test
+  public void fieldAccessPolymorphicAndMegamorphic() {
+    assertEquals(
+        "1\n2\n3\n4\n5\n6\nundefined\n1\n",
+        execute("""
+                function f(o) { return o.x; }
+                print(f({ x: 1 }));
+                print(f({ a: 0, x: 2 }));
+                print(f({ a: 0, b: 0, x: 3 }));
+                print(f({ a: 0, b: 0, c: 0, x: 4 }));
+                print(f({ a: 0, b: 0, c: 0, d: 0, x: 5 }));
+                print(f({ x: 6, y: 0 }));
+                print(f({ y: 0 }));
+                print(f({ x: 1 }));
+                """));
+  }
+  @Tag("Q36") @Test
+  public void fieldAssignmentOfANewField() {
+    assertEquals("""
+            { // object
+              x: 1
+              y: 3
+              proto: null
+            }
+            { // object
+              x: 2
+              y: 4
+              proto: null
+            }
+            """,
+        execute("""
+                function init(o, v) { o.y = v; }
+                var o1 = { x: 1 };
+                var o2 = { x: 2 };
+                init(o1, 0);
+                init(o2, 4);
+                init(o1, 3);
+                print(o1);
+                print(o2);
+                """));
+  }
+  @Tag("Q36") @Test
+  public void fieldAccessOnANonObject() {
+    assertThrows(Failure.class, () -> execute("""
+            function f(o) { return o.x; }
+            print(f(3));
+            """));
+  }
+  @Tag("Q36") @Test
+  public void fieldAccessThroughTheProtoChain() throws Throwable {
+    var proto = JSObject.newObject(null);
+    proto.register("x", 1);
+    var object = JSObject.newObject(proto);
+    object.register("y", 2);
+    var get = RT.bsm_get(MethodHandles.lookup(), "get", methodType(Object.class, Object.class), "x").dynamicInvoker();
+    assertEquals(1, get.invoke(object));
+    proto.register("x", 10);
+    assertEquals(10, get.invoke(object));
+    object.register("x", 20);
+    assertEquals(20, get.invoke(object));
+    var noProto = JSObject.newObject(null);
+    noProto.register("y", 2);
+    assertEquals(JSObject.UNDEFINED, get.invoke(noProto));
+  }
+
+  @Tag("Q37") @Test
+  public void methodCallPolymorphicAndMegamorphic() {
+    assertEquals(
+        "1\n2\n3\n4\n5\n6\n",
+        execute("""
+                function call(o) { return o.get(); }
+                var get = function() { return this.x; };
+                print(call({ x: 1, get: get }));
+                print(call({ a: 0, x: 2, get: get }));
+                print(call({ a: 0, b: 0, x: 3, get: get }));
+                print(call({ a: 0, b: 0, c: 0, x: 4, get: get }));
+                print(call({ a: 0, b: 0, c: 0, d: 0, x: 5, get: get }));
+                print(call({ x: 6, get: get }));
+                """));
+  }
+  @Tag("Q37") @Test
+  public void methodCallAfterTheMethodChanged() {
+    assertEquals(
+        "foo\nbar\n",
+        execute("""
+                function call(o) { return o.m(); }
+                var object = { m: function() { return "foo"; } };
+                print(call(object));
+                object.m = function() { return "bar"; };
+                print(call(object));
+                """));
+  }
+  @Tag("Q37") @Test
+  public void methodCallWithTheWrongNumberOfArguments() {
+    assertThrows(Failure.class, () -> execute("""
+            var object = { m: function(a, b) { return a; } };
+            object.m(1);
+            """));
+  }
+  @Tag("Q37") @Test
+  public void methodCallOfANonFunction() {
+    assertThrows(Failure.class, () -> execute("""
+            var object = { m: 3 };
+            object.m();
+            """));
+  }
+  @Tag("Q37") @Test
+  public void methodCallThroughTheProtoChain() throws Throwable {
+    var proto = JSObject.newObject(null);
+    proto.register("m", JSObject.newFunction("m", (receiver, _) -> ((JSObject) receiver).lookup("x")));
+    var object = JSObject.newObject(proto);
+    object.register("x", 1);
+    var call = RT.bsm_methodcall(MethodHandles.lookup(), "m", methodType(Object.class, Object.class)).dynamicInvoker();
+    assertEquals(1, call.invoke(object));
+    var object2 = JSObject.newObject(proto);
+    object2.register("x", 2);
+    assertEquals(2, call.invoke(object2));
+    proto.register("m", JSObject.newFunction("m", (_, _) -> "changed"));
+    assertEquals("changed", call.invoke(object));
+  }
+
+  @Tag("Q38") @Test
+  public void globalRedefinedAfterTheFirstLookup() {
+    assertEquals(
+        "1\n2\n",
+        execute("""
+                function f() { return 1; }
+                function g() { return f(); }
+                print(g());
+                function f() { return 2; }
+                print(g());
+                """));
+  }
+  @Tag("Q38") @Test
+  public void globalRedefinedManyTimes() {
+    assertEquals(
+        "even\nodd\n".repeat(6),
+        execute("""
+                function call() { return current(); }
+                function loop(n) {
+                  if (n == 0) {
+                    return 0;
+                  } else {
+                    if (n % 2 == 0) {
+                      function current() { return "even"; }
+                    } else {
+                      function current() { return "odd"; }
+                    }
+                    print(call());
+                    return loop(n - 1);
+                  }
+                }
+                loop(12);
+                """));
+  }
+
+  @Tag("Q39") @Test
+  public void unrelatedKeyKeepsTheSwitchPointAndTheInterpreterCaches() {
+    var env = StackInterpreter.createGlobalEnv(System.out);
+    env.register("a", 1);
+    var switchPoint = env.getSwitchPoint("a");
+    // the guards of the LOOKUP and operator caches of the stack, threaded and register interpreters
+    var dict = new Dictionary();
+    var guards = new GlobalGuards(env, dict);
+    var vName = TagValues.encodeDictObject("a", dict);
+    var epoch = guards.epoch(vName);
+    var plus = Instructions.OPERATOR_NAMES.indexOf("+");
+    var allOperators = GlobalGuards.operators(Instructions.OPERATOR_NAMES);
+    assertTrue(guards.builtinOperators(allOperators));
+
+    env.register("b", 2);
+    assertFalse(switchPoint.hasBeenInvalidated());
+    assertEquals(epoch, guards.epoch(vName));
+    assertTrue(guards.builtinOperator(plus));
+
+    env.register("a", 3);
+    assertTrue(switchPoint.hasBeenInvalidated());
+    assertFalse(epoch == guards.epoch(vName));
+
+    env.register("+", JSObject.newFunction("+", (receiver, args) -> 0));
+    assertFalse(guards.builtinOperator(plus));
+    assertFalse(guards.builtinOperators(allOperators));
+    assertTrue(guards.builtinOperator(Instructions.OPERATOR_NAMES.indexOf("-")));
+    // a folded constant that does not use + is still valid
+    assertTrue(guards.builtinOperators(GlobalGuards.operators(List.of("-", "*"))));
+  }
+  @Tag("Q39") @Test
+  public void freshGlobalsAndARedefinedGlobal() {
+    assertEquals(
+        "1\n1\n2\n",
+        execute("""
+                function f() { return 1; }
+                function loop(n) {
+                  if (n == 0) {
+                    return f();
+                  } else {
+                    function fresh() { return 0; }
+                    f();
+                    return loop(n - 1);
+                  }
+                }
+                print(loop(20));
+                print(f());
+                function f() { return 2; }
+                print(loop(20));
+                """));
+  }
+
+  @Tag("Q40") @Test
+  public void operatorOverflowUsesTheGenericOperator() {
+    assertEquals(
+        "3\n-2147483648\n0\n",
+        execute("""
+                function add(a, b) { return a + b; }
+                function mul(a, b) { return a * b; }
+                print(add(1, 2));
+                print(add(2147483647, 1));
+                print(mul(65536, 65536));
+                """));
+  }
+  @Tag("Q40") @Test
+  public void operatorOnNonInts() {
+    assertEquals(
+        "true\nfalse\ntrue\ntrue\n",
+        execute("""
+                function eq(a, b) { return a == b; }
+                function lt(a, b) { return a < b; }
+                print(eq(1, 1));
+                print(eq("a", 1));
+                print(eq("a", "a"));
+                print(lt("a", "b"));
+                """));
+  }
+  @Tag("Q40") @Test
+  public void operatorDivisionByZero() {
+    assertThrows(ArithmeticException.class, () -> execute("""
+            function div(a, b) { return a / b; }
+            print(div(1, 0));
+            """));
+  }
+  @Tag("Q40") @Test
+  public void operatorRedefinedAfterTheFirstCall() {
+    var builder = new StringBuilder();
+    var globalEnv = JSObject.newEnv(null);
+    globalEnv.register("print", JSObject.newFunction("print", (_, args) -> builder.append(args[0]).append('\n')));
+    globalEnv.register("+", RT.newOperator("+"));
+    var script = createScript(new StringReader("""
+        function add(a, b) { return a + b; }
+        print(add(1, 2));
+        """));
+    var main = ByteCodeRewriter.createFunction("main", List.of(), script.body(), globalEnv);
+    main.invoke(JSObject.UNDEFINED, new Object[0]);
+    globalEnv.register("+", JSObject.newFunction("+", (_, args) -> "redefined"));
+    main.invoke(JSObject.UNDEFINED, new Object[0]);
+    assertEquals("3\nredefined\n", builder.toString());
+  }
+  @Tag("Q26") @Test
+  public void constantFoldingRedefineAFoldedOperator() {
+    var builder = new StringBuilder();
+    var globalEnv = JSObject.newEnv(null);
+    globalEnv.register("print", JSObject.newFunction("print", (_, args) -> builder.append(args[0]).append('\n')));
+    globalEnv.register("+", RT.newOperator("+"));
+    globalEnv.register("*", RT.newOperator("*"));
+    var script = ConstantFolder.fold(createScript(new StringReader("""
+        function f() { return 1 + 2 * 3; }
+        print(f());
+        """)), globalEnv);
+    var main = ByteCodeRewriter.createFunction("main", List.of(), script.body(), globalEnv);
+    main.invoke(JSObject.UNDEFINED, new Object[0]);
+    globalEnv.register("*", JSObject.newFunction("*", (_, args) -> 0));
+    main.invoke(JSObject.UNDEFINED, new Object[0]);
+    assertEquals("7\n1\n", builder.toString());
+  }
 }
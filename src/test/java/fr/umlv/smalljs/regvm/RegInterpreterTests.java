@@ -0,0 +1,252 @@
+package fr.umlv.smalljs.regvm;
+
+import fr.umlv.smalljs.ast.ConstantFolder;
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.stackinterp.Dictionary;
+import fr.umlv.smalljs.stackinterp.Options;
+import fr.umlv.smalljs.stackinterp.StackInterpreter;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Optional;
+
+import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+import static fr.umlv.smalljs.regvm.RegInstructions.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SuppressWarnings("static-method")
+public class RegInterpreterTests {
+  private static String execute(String code) {
+    return execute(code, Options.DEFAULT);
+  }
+  private static String execute(String code, Options options) {
+    var script = createScript(new StringReader(code));
+    var outStream = new ByteArrayOutputStream(8192);
+    RegInterpreter.interpret(script, new PrintStream(outStream, false, UTF_8), options);
+    return outStream.toString(UTF_8).replace("\r\n", "\n");
+  }
+
+  @Tag("Q29") @Test
+  public void printAndLocalVariables() {
+    assertEquals("3 hello\n", execute("""
+            var a = 3;
+            var b = "hello";
+            print(a, b);
+            """));
+  }
+
+  @Tag("Q29") @Test
+  public void operators() {
+    assertEquals("7 -1 12 0 3 1 0 1\n", execute("""
+            var a = 3;
+            var b = 4;
+            print(a + b, a - b, a * b, a / b, a % b, a < b, a == b, a != b);
+            """));
+  }
+
+  @Tag("Q29") @Test
+  public void mulOverflowCallsTheBuiltin() {
+    assertEquals((1073741823 * 1073741823) + " " + (100000 * 100000) + "\n", execute("""
+            var a = 1073741823;
+            var b = 100000;
+            print(a * a, b * b);
+            """));
+  }
+
+  @Tag("Q29") @Test
+  public void ifElse() {
+    assertEquals("small\nbig\n", execute("""
+            function size(n) {
+              if (n < 10) {
+                return "small";
+              } else {
+                return "big";
+              }
+            }
+            print(size(1));
+            print(size(100));
+            """));
+  }
+
+  @Tag("Q29") @Test
+  public void recursiveCall() {
+    assertEquals("89\n", execute("""
+            function fibo(n) {
+              if (n < 2) {
+                return 1;
+              } else {
+                return fibo(n - 1) + fibo(n - 2);
+              }
+            }
+            print(fibo(10));
+            """));
+  }
+
+  @Tag("Q29") @Test
+  public void nestedCallsKeepTheTemporaries() {
+    assertEquals("21\n", execute("""
+            function add(a, b) {
+              return a + b;
+            }
+            function mul(a, b) {
+              return a * b;
+            }
+            print(add(mul(2, 3), add(mul(3, 4), 3)));
+            """));
+  }
+
+  @Tag("Q29") @Test
+  public void callWrongNumberOfArguments() {
+    assertThrows(Failure.class, () -> execute("""
+            function f(a) {
+              return a;
+            }
+            f(1, 2);
+            """));
+  }
+
+  @Tag("Q29") @Test
+  public void objectsAndMethodCalls() {
+    assertEquals("1 2\n3\nundefined\n", execute("""
+            var o = {
+              x: 1,
+              y: 2,
+              print: function () {
+                print(this.x, this.y);
+              }
+            };
+            o.print();
+            o.x = 3;
+            print(o.x);
+            print(o.z);
+            """));
+  }
+
+  @Tag("Q29") @Test
+  public void garbageCollectionAndRegistersGrowth() {
+    assertEquals("5050\n", execute("""
+            function sum(n) {
+              if (n == 0) {
+                return 0;
+              } else {
+                var o = { value: n };
+                return o.value + sum(n - 1);
+              }
+            }
+            print(sum(100));
+            """, Options.DEFAULT.withStackSize(16, 1 << 16).withHeapSize(16, 1 << 16)));
+  }
+
+  @Tag("Q29") @Test
+  public void stackOverflow() {
+    var failure = assertThrows(Failure.class, () -> execute("""
+            function f(n) {
+              return f(n);
+            }
+            f(0);
+            """, Options.DEFAULT.withStackSize(16, 1024)));
+    assertEquals("stack overflow", failure.getMessage());
+  }
+
+  @Tag("Q29") @Test
+  public void generationalHeapIsRejected() {
+    assertThrows(IllegalArgumentException.class, () -> execute("""
+            print(1);
+            """, Options.DEFAULT.withNurserySize(64)));
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallOfAMillionCalls() {
+    assertEquals("done\n", execute("""
+            function down(n) {
+              if (n == 0) {
+                return "done";
+              } else {
+                return down(n - 1);
+              }
+            }
+            print(down(1000000));
+            """, Options.DEFAULT.withStackSize(16, 1024).withTailCalls(true)));
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallToAMethodAndToANativeFunction() {
+    assertEquals("done\nundefined\n", execute("""
+            var counter = {
+              count: function (n) {
+                if (n == 0) {
+                  return print("done");
+                } else {
+                  return this.count(n - 1);
+                }
+              }
+            };
+            print(counter.count(10000));
+            """, Options.DEFAULT.withStackSize(16, 1024).withTailCalls(true)));
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallInstruction() {
+    var script = createScript(new StringReader("""
+            return f(n);
+            """));
+    var dict = new Dictionary();
+    var function = RegRewriter.createFunction(Optional.empty(), List.of("n"), script.body(), dict);
+    var code = (RegCode) function.lookup("__code__");
+    // r0: this, r1: n, r2: f, r3: receiver, r4: argument
+    assertArrayEquals(new int[] {
+        LOOKUP, 2, code.instrs()[2],  // f
+        CONST, 3, code.instrs()[5],  // undefined
+        MOVE, 4, 1,
+        TAILCALL, 2, 3, 1,
+        RET, 3,
+        CONST, 2, code.instrs()[5],  // undefined
+        RET, 2
+    }, code.instrs());
+  }
+
+  @Tag("Q29") @Test
+  public void threeAddressCode() {
+    var script = createScript(new StringReader("""
+            return n - 1;
+            """));
+    var dict = new Dictionary();
+    var function = RegRewriter.createFunction(Optional.empty(), List.of("n"), script.body(), dict);
+    var code = (RegCode) function.lookup("__code__");
+    // r0: this, r1: n, r2 and r3: temporaries
+    assertEquals(4, code.registerCount());
+    assertArrayEquals(new int[] {
+        CONST, 3, 3,  // 1
+        SUB, 2, 1, 3,
+        RET, 2,
+        CONST, 2, code.instrs()[11],  // undefined
+        RET, 2
+    }, code.instrs());
+  }
+
+  @Tag("Q26") @Test
+  public void constantFoldingRedefineAFoldedOperator() {
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
+    var script = ConstantFolder.fold(createScript(new StringReader("""
+            function f() {
+              return 1 + 2 * 3;
+            }
+            print(f());
+            """)), globalEnv);
+    var dict = new Dictionary();
+    var main = RegRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict);
+    RegInterpreter.execute(main, dict, globalEnv);
+    globalEnv.register("*", JSObject.newFunction("*", (receiver, args) -> 0));
+    RegInterpreter.execute(main, dict, globalEnv);
+    assertEquals("7\n1\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+  }
+}
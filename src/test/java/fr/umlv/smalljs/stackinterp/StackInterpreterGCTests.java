@@ -6,8 +6,12 @@ import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.IntStream;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
 import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
@@ -27,6 +31,7 @@ import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @SuppressWarnings("static-method")
 public class StackInterpreterGCTests {
@@ -38,174 +43,322 @@ public class StackInterpreterGCTests {
     return fun;
   }
   private static String execute(Code mainCode, Dictionary dict) {
+    // a small heap that never grows, so the GC has to do its job
+    return execute(mainCode, dict, Options.DEFAULT.withHeapSize(96, 96));
+  }
+  private static String execute(Code mainCode, Dictionary dict, Options options) {
     var outStream = new ByteArrayOutputStream(8192);
     var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
     var mainFun = newMainFunction(mainCode);
     globalEnv.register("main", mainFun);
-    StackInterpreter.execute(mainFun, dict, globalEnv);
+    StackInterpreter.execute(mainFun, dict, globalEnv, options);
     return outStream.toString(UTF_8).replace("\r\n", "\n");
   }
 
-//  @Tag("Q2") @Test
-//  public void gcTest() {
-//  	var dict = new Dictionary();
-//  	var pointClass = JSObject.newObject(null);
-//  	pointClass.register("x", 0);
-//  	pointClass.register("y", 1);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(100),
-//  	  /* 2:*/ STORE, 1,
-//
-//  	  /* 4:*/ LOAD, 1,
-//  	  /* 6:*/ JUMP_IF_FALSE, 29,
-//
-//  	  /* 8:*/ CONST, encodeSmallInt(1),
-//  	  /*10:*/ CONST, encodeSmallInt(2),
-//  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
-//  	  /*14:*/ POP,
-//
-//  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*19:*/ LOAD, 1,
-//  	  /*21:*/ CONST, encodeSmallInt(1),
-//  	  /*23:*/ FUNCALL, 2,
-//  	  /*25:*/ STORE, 1,
-//
-//  	  /*27:*/ GOTO, 4,
-//
-//  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*31:*/ RET
-//  	};
-//    execute(new Code(instrs, 1, 2), dict);
-//  }
-//
-//  @Tag("Q3") @Test
-//  public void gcTestRewriteField() {
-//  	var dict = new Dictionary();
-//  	var clazz = JSObject.newObject(null);
-//  	clazz.register("field", 0);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(21),
-//    	/* 2:*/ NEW, encodeDictObject(clazz, dict),
-//    	/* 4:*/ POP,  // should be GCed
-//
-//    	/* 5:*/ CONST, encodeSmallInt(42),
-//    	/* 7:*/ NEW, encodeDictObject(clazz, dict),
-//    	/* 9:*/ STORE, 2, // should not be GCed
-//
-//    	/*11:*/ LOAD, 2,
-//    	/*13:*/ CONST, encodeSmallInt(84),
-//    	/*15:*/ NEW, encodeDictObject(clazz, dict),
-//    	/*17:*/ PUT, encodeDictObject("field", dict), // modification after creation
-//
-//  		/*19:*/ CONST, encodeSmallInt(100),
-//  	  /*21:*/ STORE, 1,
-//
-//  	  /*23:*/ LOAD, 1,
-//  	  /*25:*/ JUMP_IF_FALSE, 46,
-//
-//  	  /*27:*/ LOAD, 2,
-//  	  /*29:*/ NEW, encodeDictObject(clazz, dict),
-//  	  /*31:*/ POP,  // should be GCed
-//
-//  	  /*32:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*34:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*36:*/ LOAD, 1,
-//  	  /*38:*/ CONST, encodeSmallInt(1),
-//  	  /*40:*/ FUNCALL, 2,
-//  	  /*42:*/ STORE, 1,
-//
-//  	  /*44:*/ GOTO, 23,
-//
-//  	  /*46:*/ LOAD, 2,
-//  	  /*48:*/ GET, encodeDictObject("field", dict),
-//  	  /*50:*/ GET, encodeDictObject("field", dict),
-//  	  /*52:*/ PRINT,
-//
-//  	  /*53:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*31:*/ RET
-//  	};
-//    assertEquals("84\n", execute(new Code(instrs, 1, 3), dict));
-//  }
-//
-//  @Tag("Q4") @Test
-//  public void gcTestWithFields() {
-//  	var dict = new Dictionary();
-//  	var pointClass = JSObject.newObject(null);
-//  	pointClass.register("x", 0);
-//  	pointClass.register("y", 1);
-//  	var emptyClass = JSObject.newObject(null);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(100),
-//  	  /* 2:*/ STORE, 1,
-//
-//  	  /* 4:*/ LOAD, 1,
-//  	  /* 6:*/ JUMP_IF_FALSE, 29,
-//
-//  	  /* 8:*/ NEW, encodeDictObject(emptyClass, dict),
-//  	  /*10:*/ NEW, encodeDictObject(emptyClass, dict),
-//  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
-//
-//  	  /*14:*/ POP,
-//
-//  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*19:*/ LOAD, 1,
-//  	  /*21:*/ CONST, encodeSmallInt(1),
-//  	  /*23:*/ FUNCALL, 2,
-//  	  /*25:*/ STORE, 1,
-//
-//  	  /*27:*/ GOTO, 4,
-//
-//  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*31:*/ RET
-//  	};
-//    execute(new Code(instrs, 1, 2), dict);
-//  }
-//
-//  @Tag("Q5") @Test
-//  public void gcTestLikedList() {
-//  	var dict = new Dictionary();
-//  	var linkClass = JSObject.newObject(null);
-//  	linkClass.register("value", 0);
-//  	linkClass.register("next", 1);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(100),
-//  	  /* 2:*/ STORE, 1,
-//  	  /* 4:*/ LOAD, 1,
-//  	  /* 6:*/ JUMP_IF_FALSE, 60,
-//  	  /* 8:*/ CONST, encodeSmallInt(10),
-//  	  /*10:*/ STORE, 2,
-//  	  /*12:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*14:*/ STORE, 3,
-//  	  /*16:*/ LOAD, 2,
-//  	  /*18:*/ JUMP_IF_FALSE, 42,
-//  	  /*20:*/ LOAD, 3,
-//  	  /*22:*/ LOAD, 2,
-//  	  /*24:*/ NEW, encodeDictObject(linkClass, dict),
-//  	  /*26:*/ STORE, 3,
-//
-//  	  /*28:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*30:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*32:*/ LOAD, 2,
-//  	  /*34:*/ CONST, encodeSmallInt(1),
-//  	  /*36:*/ FUNCALL, 2,
-//  	  /*38:*/ STORE, 2,
-//
-//  	  /*40:*/ GOTO, 16,
-//  	  /*42:*/ CONST, encodeDictObject(UNDEFINED, dict),  // free
-//  	  /*44:*/ STORE, 3,
-//
-//  	  /*46:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*48:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*50:*/ LOAD, 1,
-//  	  /*52:*/ CONST, encodeSmallInt(1),
-//  	  /*54:*/ FUNCALL, 2,
-//  	  /*56:*/ STORE, 1,
-//  	  /*58:*/ GOTO, 4,
-//  	  /*60:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*62:*/ RET
-//  	};
-//    execute(new Code(instrs, 1, 4), dict);
-//  }
+  @Tag("Q2") @Test
+  public void gcTest() {
+  	var dict = new Dictionary();
+  	var pointClass = JSObject.newObject(null);
+  	pointClass.register("x", 0);
+  	pointClass.register("y", 1);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(100),
+  	  /* 2:*/ STORE, 1,
+
+  	  /* 4:*/ LOAD, 1,
+  	  /* 6:*/ JUMP_IF_FALSE, 29,
+
+  	  /* 8:*/ CONST, encodeSmallInt(1),
+  	  /*10:*/ CONST, encodeSmallInt(2),
+  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
+  	  /*14:*/ POP,
+
+  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*19:*/ LOAD, 1,
+  	  /*21:*/ CONST, encodeSmallInt(1),
+  	  /*23:*/ FUNCALL, 2,
+  	  /*25:*/ STORE, 1,
+
+  	  /*27:*/ GOTO, 4,
+
+  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*31:*/ RET
+  	};
+    execute(new Code(instrs, 1, 2), dict);
+  }
+
+  @Tag("Q3") @Test
+  public void gcTestRewriteField() {
+  	var dict = new Dictionary();
+  	var clazz = JSObject.newObject(null);
+  	clazz.register("field", 0);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(21),
+    	/* 2:*/ NEW, encodeDictObject(clazz, dict),
+    	/* 4:*/ POP,  // should be GCed
+
+    	/* 5:*/ CONST, encodeSmallInt(42),
+    	/* 7:*/ NEW, encodeDictObject(clazz, dict),
+    	/* 9:*/ STORE, 2, // should not be GCed
+
+    	/*11:*/ LOAD, 2,
+    	/*13:*/ CONST, encodeSmallInt(84),
+    	/*15:*/ NEW, encodeDictObject(clazz, dict),
+    	/*17:*/ PUT, encodeDictObject("field", dict), // modification after creation
+
+  		/*19:*/ CONST, encodeSmallInt(100),
+  	  /*21:*/ STORE, 1,
+
+  	  /*23:*/ LOAD, 1,
+  	  /*25:*/ JUMP_IF_FALSE, 46,
+
+  	  /*27:*/ LOAD, 2,
+  	  /*29:*/ NEW, encodeDictObject(clazz, dict),
+  	  /*31:*/ POP,  // should be GCed
+
+  	  /*32:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*34:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*36:*/ LOAD, 1,
+  	  /*38:*/ CONST, encodeSmallInt(1),
+  	  /*40:*/ FUNCALL, 2,
+  	  /*42:*/ STORE, 1,
+
+  	  /*44:*/ GOTO, 23,
+
+  	  /*46:*/ LOAD, 2,
+  	  /*48:*/ GET, encodeDictObject("field", dict),
+  	  /*50:*/ GET, encodeDictObject("field", dict),
+  	  /*52:*/ PRINT,
+
+  	  /*53:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*31:*/ RET
+  	};
+    assertEquals("84\n", execute(new Code(instrs, 1, 3), dict));
+  }
+
+  @Tag("Q4") @Test
+  public void gcTestWithFields() {
+  	var dict = new Dictionary();
+  	var pointClass = JSObject.newObject(null);
+  	pointClass.register("x", 0);
+  	pointClass.register("y", 1);
+  	var emptyClass = JSObject.newObject(null);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(100),
+  	  /* 2:*/ STORE, 1,
+
+  	  /* 4:*/ LOAD, 1,
+  	  /* 6:*/ JUMP_IF_FALSE, 29,
+
+  	  /* 8:*/ NEW, encodeDictObject(emptyClass, dict),
+  	  /*10:*/ NEW, encodeDictObject(emptyClass, dict),
+  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
+
+  	  /*14:*/ POP,
+
+  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*19:*/ LOAD, 1,
+  	  /*21:*/ CONST, encodeSmallInt(1),
+  	  /*23:*/ FUNCALL, 2,
+  	  /*25:*/ STORE, 1,
+
+  	  /*27:*/ GOTO, 4,
+
+  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*31:*/ RET
+  	};
+    execute(new Code(instrs, 1, 2), dict);
+  }
+
+  @Tag("Q5") @Test
+  public void gcTestLikedList() {
+  	var dict = new Dictionary();
+  	var linkClass = JSObject.newObject(null);
+  	linkClass.register("value", 0);
+  	linkClass.register("next", 1);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(100),
+  	  /* 2:*/ STORE, 1,
+  	  /* 4:*/ LOAD, 1,
+  	  /* 6:*/ JUMP_IF_FALSE, 60,
+  	  /* 8:*/ CONST, encodeSmallInt(10),
+  	  /*10:*/ STORE, 2,
+  	  /*12:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*14:*/ STORE, 3,
+  	  /*16:*/ LOAD, 2,
+  	  /*18:*/ JUMP_IF_FALSE, 42,
+  	  /*20:*/ LOAD, 3,
+  	  /*22:*/ LOAD, 2,
+  	  /*24:*/ NEW, encodeDictObject(linkClass, dict),
+  	  /*26:*/ STORE, 3,
+
+  	  /*28:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*30:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*32:*/ LOAD, 2,
+  	  /*34:*/ CONST, encodeSmallInt(1),
+  	  /*36:*/ FUNCALL, 2,
+  	  /*38:*/ STORE, 2,
+
+  	  /*40:*/ GOTO, 16,
+  	  /*42:*/ CONST, encodeDictObject(UNDEFINED, dict),  // free
+  	  /*44:*/ STORE, 3,
+
+  	  /*46:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*48:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*50:*/ LOAD, 1,
+  	  /*52:*/ CONST, encodeSmallInt(1),
+  	  /*54:*/ FUNCALL, 2,
+  	  /*56:*/ STORE, 1,
+  	  /*58:*/ GOTO, 4,
+  	  /*60:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*62:*/ RET
+  	};
+    execute(new Code(instrs, 1, 4), dict);
+  }
+
+  @Tag("Q6") @Test
+  public void gcStressTest() {
+  	var dict = new Dictionary();
+  	var clazz = JSObject.newObject(null);
+  	clazz.register("field", 0);
+  	var pointClass = JSObject.newObject(null);
+  	pointClass.register("x", 0);
+  	pointClass.register("y", 1);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(42),
+  	  /* 2:*/ NEW, encodeDictObject(clazz, dict),
+  	  /* 4:*/ STORE, 2, // should survive all the GCs
+
+  	  /* 6:*/ CONST, encodeSmallInt(5_000),
+  	  /* 8:*/ STORE, 1,
+
+  	  /*10:*/ LOAD, 1,
+  	  /*12:*/ JUMP_IF_FALSE, 35,
+
+  	  /*14:*/ LOAD, 2,
+  	  /*16:*/ LOAD, 1,
+  	  /*18:*/ NEW, encodeDictObject(pointClass, dict),
+  	  /*20:*/ POP,  // should be GCed
+
+  	  /*21:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*23:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*25:*/ LOAD, 1,
+  	  /*27:*/ CONST, encodeSmallInt(1),
+  	  /*29:*/ FUNCALL, 2,
+  	  /*31:*/ STORE, 1,
+
+  	  /*33:*/ GOTO, 10,
+
+  	  /*35:*/ LOAD, 2,
+  	  /*37:*/ GET, encodeDictObject("field", dict),
+  	  /*39:*/ PRINT,
+
+  	  /*40:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*42:*/ RET
+  	};
+    assertEquals("42\n", execute(new Code(instrs, 1, 3), dict));
+  }
+
+  private static int[] linkedListInstrs(Dictionary dict) {
+  	var linkClass = JSObject.newObject(null);
+  	linkClass.register("value", 0);
+  	linkClass.register("next", 1);
+  	return new int[] {
+  		/* 0:*/ CONST, encodeSmallInt(100),
+  	  /* 2:*/ STORE, 1,
+  	  /* 4:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /* 6:*/ STORE, 2,
+
+  	  /* 8:*/ LOAD, 1,
+  	  /*10:*/ JUMP_IF_FALSE, 34,
+  	  /*12:*/ LOAD, 1,
+  	  /*14:*/ LOAD, 2,
+  	  /*16:*/ NEW, encodeDictObject(linkClass, dict),
+  	  /*18:*/ STORE, 2,  // all the links are alive
+
+  	  /*20:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*22:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*24:*/ LOAD, 1,
+  	  /*26:*/ CONST, encodeSmallInt(1),
+  	  /*28:*/ FUNCALL, 2,
+  	  /*30:*/ STORE, 1,
+  	  /*32:*/ GOTO, 8,
+
+  	  /*34:*/ LOAD, 2,
+  	  /*36:*/ GET, encodeDictObject("next", dict),
+  	  /*38:*/ GET, encodeDictObject("value", dict),
+  	  /*40:*/ PRINT,
+  	  /*41:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*43:*/ RET
+  	};
+  }
+
+  @Tag("Q7") @Test
+  public void gcTestGrowHeap() {
+  	var dict = new Dictionary();
+  	var instrs = linkedListInstrs(dict);
+    assertEquals("2\n", execute(new Code(instrs, 1, 3), dict, Options.DEFAULT.withHeapSize(96, 4096)));
+  }
+
+  @Tag("Q7") @Test
+  public void gcTestOutOfMemory() {
+  	var dict = new Dictionary();
+  	var instrs = linkedListInstrs(dict);
+    assertThrows(Failure.class, () -> execute(new Code(instrs, 1, 3), dict, Options.DEFAULT.withHeapSize(96, 96)));
+  }
+
+  @Tag("Q30") @Test
+  public void gcTestOffHeap() {
+  	var dict = new Dictionary();
+  	var instrs = linkedListInstrs(dict);
+    assertEquals("2\n", execute(new Code(instrs, 1, 3), dict, Options.DEFAULT.withHeapSize(96, 4096).withHeap(Heap::offHeap)));
+  }
+
+  @Tag("Q30") @Test
+  public void gcTestOffHeapOutOfMemory() {
+  	var dict = new Dictionary();
+  	var instrs = linkedListInstrs(dict);
+    assertThrows(Failure.class, () -> execute(new Code(instrs, 1, 3), dict, Options.DEFAULT.withHeapSize(96, 96).withHeap(Heap::offHeap)));
+  }
+
+  @Tag("Q30") @Test
+  public void heapLargerThanTheReferencesIsRejected() {
+    Options.DEFAULT.withHeapSize(96, TagValues.MAX_HEAP_SIZE).withHeap(Heap::offHeap);
+    assertThrows(IllegalArgumentException.class, () -> Options.DEFAULT.withHeapSize(96, TagValues.MAX_HEAP_SIZE + 1).withHeap(Heap::offHeap));
+  }
+
+  @Tag("Q30") @Test
+  public void gcTestMappedHeap() throws IOException {
+  	var path = Files.createTempFile("heap", ".bin");
+  	try {
+  		var dict = new Dictionary();
+  		var instrs = linkedListInstrs(dict);
+  		assertEquals("2\n", execute(new Code(instrs, 1, 3), dict, Options.DEFAULT.withHeapSize(96, 4096).withHeap(Heap.mapped(path))));
+  	} finally {
+  		Files.delete(path);
+  	}
+  }
+
+  @Tag("Q30") @Test
+  public void heapGrowKeepsTheContent() {
+  	for (var factory : List.<Heap.Factory>of(Heap::onHeap, Heap::offHeap)) {
+  		try (var heap = factory.create(4)) {
+  			heap.copyFrom(new int[] { 1, 2, 3, 4 }, 0, 0, 4);
+  			heap.grow(8);
+  			heap.move(0, 2, 4);
+  			heap.set(7, 42);
+  			assertEquals(8, heap.size());
+  			assertEquals(List.of(1, 2, 1, 2, 3, 4, 0, 42), IntStream.range(0, 8).mapToObj(heap::get).toList());
+  		}
+  	}
+  }
+
+  @Tag("Q30") @Test
+  public void offHeapCanNotBeUsedAfterClose() {
+  	var heap = Heap.offHeap(16);
+  	heap.close();
+  	assertThrows(IllegalStateException.class, () -> heap.get(0));
+  }
 }
@@ -10,27 +10,44 @@ import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.Instructions.ADD;
 import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
 import static fr.umlv.smalljs.stackinterp.Instructions.DUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.EQ;
 import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL;
+import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL_CODE;
 import static fr.umlv.smalljs.stackinterp.Instructions.GET;
+import static fr.umlv.smalljs.stackinterp.Instructions.GET_METHOD;
 import static fr.umlv.smalljs.stackinterp.Instructions.GOTO;
 import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_FALSE;
+import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_GE;
+import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_NE;
 import static fr.umlv.smalljs.stackinterp.Instructions.LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_LOAD;
 import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.LT;
+import static fr.umlv.smalljs.stackinterp.Instructions.MUL;
 import static fr.umlv.smalljs.stackinterp.Instructions.NEW;
 import static fr.umlv.smalljs.stackinterp.Instructions.POP;
 import static fr.umlv.smalljs.stackinterp.Instructions.PRINT;
 import static fr.umlv.smalljs.stackinterp.Instructions.PUT;
 import static fr.umlv.smalljs.stackinterp.Instructions.REGISTER;
 import static fr.umlv.smalljs.stackinterp.Instructions.RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.RETURN_CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.RETURN_LOCAL;
 import static fr.umlv.smalljs.stackinterp.Instructions.STORE;
+import static fr.umlv.smalljs.stackinterp.Instructions.SUB;
 import static fr.umlv.smalljs.stackinterp.Instructions.SWAP;
+import static fr.umlv.smalljs.stackinterp.Instructions.TAILCALL;
+import static fr.umlv.smalljs.stackinterp.Instructions.TAILCALL_CODE;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
 import static java.nio.charset.StandardCharsets.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("static-method")
 public class StackInterpreterInstrTests {
@@ -42,11 +59,15 @@ public class StackInterpreterInstrTests {
 		return fun;
 	}
 	private static String execute(Code mainCode, Dictionary dict) {
+		return execute(mainCode, dict, Options.DEFAULT);
+	}
+
+	private static String execute(Code mainCode, Dictionary dict, Options options) {
 		var outStream = new ByteArrayOutputStream(8192);
 		var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
 		var mainFun = newFunction("main", mainCode);
 		globalEnv.register("main", mainFun);
-		StackInterpreter.execute(mainFun, dict, globalEnv);
+		StackInterpreter.execute(mainFun, dict, globalEnv, options);
 		return outStream.toString(UTF_8).replace("\r\n", "\n");
 	}
 
@@ -1217,6 +1238,498 @@ public void integer3() {
         execute(new Code(instrs, 1, 2), dict));
   }
 
+  @Tag("Q19") @Test
+  public void maxStack() {
+    // print(1 + 2)
+    var dict = new Dictionary();
+    int[] instrs = {
+        LOOKUP, encodeDictObject("print", dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        LOOKUP, encodeDictObject("+", dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        CONST, encodeSmallInt(1),
+        CONST, encodeSmallInt(2),
+        FUNCALL, 2,
+        FUNCALL, 1,
+        RET
+    };
+    assertEquals(6, InstrRewriter.maxStack(instrs, dict));
+  }
+  @Tag("Q19") @Test
+  public void maxStackWithALoop() {
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ JUMP_IF_FALSE, 10,
+        /* 4:*/ CONST, encodeSmallInt(0),
+        /* 6:*/ STORE, 1,
+        /* 8:*/ GOTO, 0,
+        /*10:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /*12:*/ RET
+    };
+    assertEquals(1, InstrRewriter.maxStack(instrs, dict));
+  }
+  @Tag("Q19") @Test
+  public void maxStackInconsistentStackDepth() {
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ CONST, encodeSmallInt(1),
+        /* 2:*/ GOTO, 0,
+    };
+    assertThrows(IllegalStateException.class, () -> InstrRewriter.maxStack(instrs, dict));
+  }
+
+  @Tag("Q20") @Test
+  public void operatorInstructions() {
+    // print(1 + 2 * 3 < 10)
+    var dict = new Dictionary();
+    int[] instrs = {
+        CONST, encodeSmallInt(1),
+        CONST, encodeSmallInt(2),
+        CONST, encodeSmallInt(3),
+        MUL,
+        ADD,
+        CONST, encodeSmallInt(10),
+        LT,
+        PRINT,
+        RET
+    };
+    assertEquals("1\n", execute(new Code(instrs, 1, 1), dict));
+  }
+  @Tag("Q20") @Test
+  public void operatorInstructionWithANegativeResult() {
+    // print(1 - 3)
+    var dict = new Dictionary();
+    int[] instrs = {
+        CONST, encodeSmallInt(1),
+        CONST, encodeSmallInt(3),
+        SUB,
+        PRINT,
+        RET
+    };
+    assertEquals("-2\n", execute(new Code(instrs, 1, 1), dict));
+  }
+  @Tag("Q20") @Test
+  public void operatorInstructionNotOnSmallInts() {
+    // print("foo" == "foo")
+    var dict = new Dictionary();
+    int[] instrs = {
+        CONST, encodeDictObject("foo", dict),
+        CONST, encodeDictObject("foo", dict),
+        EQ,
+        PRINT,
+        RET
+    };
+    assertEquals("1\n", execute(new Code(instrs, 1, 1), dict));
+  }
+  @Tag("Q20") @Test
+  public void operatorInstructionRedefinedOperator() {
+    // print(1 + 2) with + redefined as a concatenation
+    var dict = new Dictionary();
+    int[] instrs = {
+        CONST, encodeSmallInt(1),
+        CONST, encodeSmallInt(2),
+        ADD,
+        PRINT,
+        RET
+    };
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
+    globalEnv.register("+", JSObject.newFunction("+", (receiver, args) -> "" + args[0] + args[1]));
+    StackInterpreter.execute(newFunction("main", new Code(instrs, 1, 1)), dict, globalEnv);
+    assertEquals("12\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+  }
+  @Tag("Q20") @Test
+  public void maxStackOperatorInstructions() {
+    // 1 + 2 * 3
+    var dict = new Dictionary();
+    int[] instrs = {
+        CONST, encodeSmallInt(1),
+        CONST, encodeSmallInt(2),
+        CONST, encodeSmallInt(3),
+        MUL,
+        ADD,
+        RET
+    };
+    assertEquals(3, InstrRewriter.maxStack(instrs, dict));
+  }
+
+  @Tag("Q21") @Test
+  public void negativeSmallInt() {
+    // print(-3 * 2 + 1)
+    var dict = new Dictionary();
+    int[] instrs = {
+        CONST, encodeSmallInt(-3),
+        CONST, encodeSmallInt(2),
+        MUL,
+        CONST, encodeSmallInt(1),
+        ADD,
+        PRINT,
+        RET
+    };
+    assertEquals("-5\n", execute(new Code(instrs, 1, 1), dict));
+  }
+  @Tag("Q21") @Test
+  public void smallIntOverflowIsBoxed() {
+    // print(1073741823 + 1 - 1)
+    var dict = new Dictionary();
+    int[] instrs = {
+        CONST, encodeSmallInt(TagValues.MAX_SMALL_INT),
+        CONST, encodeSmallInt(1),
+        ADD,
+        DUP,
+        PRINT,
+        POP,
+        CONST, encodeSmallInt(1),
+        SUB,
+        PRINT,
+        RET
+    };
+    assertEquals("1073741824\n1073741823\n", execute(new Code(instrs, 1, 1), dict));
+  }
+  @Tag("Q21") @Test
+  public void smallIntMulOverflowCallsTheBuiltin() {
+    // print(1073741823 * 1073741823), the product does not fit in an int
+    var dict = new Dictionary();
+    int[] instrs = {
+        CONST, encodeSmallInt(TagValues.MAX_SMALL_INT),
+        CONST, encodeSmallInt(TagValues.MAX_SMALL_INT),
+        MUL,
+        PRINT,
+        RET
+    };
+    assertEquals(TagValues.MAX_SMALL_INT * TagValues.MAX_SMALL_INT + "\n", execute(new Code(instrs, 1, 1), dict));
+  }
+  @Tag("Q21") @Test
+  public void smallIntEncoding() {
+    assertEquals(-1, TagValues.decodeSmallInt(encodeSmallInt(-1)));
+    assertEquals(TagValues.MIN_SMALL_INT, TagValues.decodeSmallInt(encodeSmallInt(TagValues.MIN_SMALL_INT)));
+    assertEquals(TagValues.MAX_SMALL_INT, TagValues.decodeSmallInt(encodeSmallInt(TagValues.MAX_SMALL_INT)));
+    assertTrue(TagValues.isSmallInt(TagValues.encodeAnyValue(-42, new Dictionary())));
+    assertFalse(TagValues.isSmallInt(TagValues.encodeAnyValue(TagValues.MAX_SMALL_INT + 1, new Dictionary())));
+  }
+
+  @Tag("Q22") @Test
+  public void getInlineCache() {
+    // var o = { x: 42 };
+    // print(o.x);
+    var dict = new Dictionary();
+    var clazz = JSObject.newObject(null);
+    clazz.register("x", 0);
+    int[] instrs = {
+        /* 0:*/ CONST, encodeSmallInt(42),
+        /* 2:*/ NEW, encodeDictObject(clazz, dict),
+        /* 4:*/ STORE, 1,
+        /* 6:*/ LOAD, 1,
+        /* 8:*/ GET, encodeDictObject("x", dict),
+        /*10:*/ PRINT,
+        /*11:*/ RET
+    };
+    var code = new Code(instrs, 1, 2);
+    assertEquals("42\n", execute(code, dict));
+    assertEquals(encodeDictObject(clazz, dict), code.caches()[8]);
+    assertEquals(0, code.caches()[9]);
+  }
+
+  @Tag("Q23") @Test
+  public void lookupAGlobalChangedByANativeFunction() {
+    // function g() { return x; }
+    // print(g());
+    // change();
+    // print(g());
+    var dict = new Dictionary();
+    int[] g = {
+        LOOKUP, encodeDictObject("x", dict),
+        RET
+    };
+    var gFunction = newFunction("g", new Code(g, 1, 1));
+    int[] instrs = {
+        CONST, encodeDictObject(gFunction, dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        FUNCALL, 0,
+        PRINT,
+        POP,
+        LOOKUP, encodeDictObject("change", dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        FUNCALL, 0,
+        POP,
+        CONST, encodeDictObject(gFunction, dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        FUNCALL, 0,
+        PRINT,
+        RET
+    };
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
+    globalEnv.register("x", "foo");
+    globalEnv.register("change", JSObject.newFunction("change", (receiver, args) -> {
+      globalEnv.register("x", "bar");
+      return UNDEFINED;
+    }));
+    StackInterpreter.execute(newFunction("main", new Code(instrs, 1, 1)), dict, globalEnv);
+    assertEquals("foo\nbar\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+  }
+
+  @Tag("Q24") @Test
+  public void superinstructions() {
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ LOAD, 2,
+        /* 4:*/ LT,
+        /* 5:*/ JUMP_IF_FALSE, 10,
+        /* 7:*/ LOAD, 1,
+        /* 9:*/ RET,
+        /*10:*/ LOAD, 1,
+        /*12:*/ DUP,
+        /*13:*/ GET, encodeDictObject("foo", dict),
+        /*15:*/ SWAP,
+        /*16:*/ FUNCALL, 0,
+        /*18:*/ POP,
+        /*19:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /*21:*/ RET
+    };
+    int[] expected = {
+        /* 0:*/ LOAD_LOAD, 1, 2,
+        /* 3:*/ JUMP_IF_GE, 7,
+        /* 5:*/ RETURN_LOCAL, 1,
+        /* 7:*/ LOAD, 1,
+        /* 9:*/ GET_METHOD, encodeDictObject("foo", dict),
+        /*11:*/ FUNCALL, 0,
+        /*13:*/ POP,
+        /*14:*/ RETURN_CONST, encodeDictObject(UNDEFINED, dict)
+    };
+    assertArrayEquals(expected, InstrOptimizer.superinstructions(instrs));
+  }
+  @Tag("Q24") @Test
+  public void superinstructionsNotFusedAcrossAJumpTarget() {
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ JUMP_IF_FALSE, 8,
+        /* 4:*/ CONST, encodeSmallInt(1),
+        /* 6:*/ GOTO, 10,
+        /* 8:*/ CONST, encodeSmallInt(2),
+        /*10:*/ RET
+    };
+    assertArrayEquals(instrs, InstrOptimizer.superinstructions(instrs));
+  }
+  @Tag("Q24") @Test
+  public void funcallIsQuickened() {
+    // function f() { return 42; }
+    // print(f());
+    var dict = new Dictionary();
+    int[] f = {
+        RETURN_CONST, encodeSmallInt(42)
+    };
+    var fFunction = newFunction("f", new Code(f, 1, 1));
+    int[] instrs = {
+        CONST, encodeDictObject(fFunction, dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        FUNCALL, 0,
+        PRINT,
+        RET
+    };
+    assertEquals("42\n", execute(new Code(instrs, 1, 1), dict));
+    assertEquals(FUNCALL_CODE, instrs[4]);
+  }
+  @Tag("Q24") @Test
+  public void quickenedFuncallWithAnotherFunction() {
+    // function call(f) { return f(); }
+    // print(call(f1));
+    // print(call(f2));
+    // print(call(print));
+    var dict = new Dictionary();
+    int[] call = {
+        LOAD, 1,
+        CONST, encodeDictObject(UNDEFINED, dict),
+        FUNCALL, 0,
+        RET
+    };
+    var callFunction = newFunction("call", new Code(call, 2, 2));
+    var f1 = newFunction("f1", new Code(new int[] { RETURN_CONST, encodeSmallInt(1) }, 1, 1));
+    var f2 = newFunction("f2", new Code(new int[] { RETURN_CONST, encodeSmallInt(2) }, 1, 1));
+    int[] instrs = {
+        CONST, encodeDictObject(callFunction, dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        CONST, encodeDictObject(f1, dict),
+        FUNCALL, 1,
+        PRINT,
+        POP,
+        CONST, encodeDictObject(callFunction, dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        CONST, encodeDictObject(f2, dict),
+        FUNCALL, 1,
+        PRINT,
+        POP,
+        CONST, encodeDictObject(callFunction, dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        LOOKUP, encodeDictObject("print", dict),
+        FUNCALL, 1,
+        RET
+    };
+    assertEquals("1\n2\n\n", execute(new Code(instrs, 1, 1), dict));
+    assertEquals(FUNCALL, call[4]);
+  }
+
+  @Tag("Q25") @Test
+  public void peephole() {
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ CONST, encodeDictObject("f", dict),
+        /* 2:*/ DUP,
+        /* 3:*/ REGISTER, encodeDictObject("f", dict),
+        /* 5:*/ POP,
+        /* 6:*/ LOAD, 1,
+        /* 8:*/ STORE, 2,
+        /*10:*/ LOAD, 2,
+        /*12:*/ JUMP_IF_FALSE, 16,
+        /*14:*/ GOTO, 16,
+        /*16:*/ CONST, encodeSmallInt(3),
+        /*18:*/ POP,
+        /*19:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /*21:*/ RET
+    };
+    int[] expected = {
+        /* 0:*/ CONST, encodeDictObject("f", dict),
+        /* 2:*/ REGISTER, encodeDictObject("f", dict),
+        /* 4:*/ LOAD, 1,
+        /* 6:*/ DUP,
+        /* 7:*/ STORE, 2,
+        /* 9:*/ JUMP_IF_FALSE, 11,
+        /*11:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /*13:*/ RET
+    };
+    assertArrayEquals(expected, InstrOptimizer.peephole(instrs));
+  }
+  @Tag("Q25") @Test
+  public void peepholeRelocateJumps() {
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ JUMP_IF_FALSE, 10,
+        /* 4:*/ CONST, encodeSmallInt(1),
+        /* 6:*/ POP,
+        /* 7:*/ DUP,
+        /* 8:*/ POP,
+        /* 9:*/ RET,
+        /*10:*/ LOAD, 1,
+        /*12:*/ RET
+    };
+    int[] expected = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ JUMP_IF_FALSE, 5,
+        /* 4:*/ RET,
+        /* 5:*/ LOAD, 1,
+        /* 7:*/ RET
+    };
+    assertArrayEquals(expected, InstrOptimizer.peephole(instrs));
+  }
+  @Tag("Q25") @Test
+  public void deadCode() {
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ JUMP_IF_FALSE, 9,
+        /* 4:*/ LOAD, 1,
+        /* 6:*/ RET,
+        /* 7:*/ LOAD, 1,
+        /* 9:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /*11:*/ RET,
+        /*12:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /*14:*/ RET
+    };
+    int[] expected = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ JUMP_IF_FALSE, 7,
+        /* 4:*/ LOAD, 1,
+        /* 6:*/ RET,
+        /* 7:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /* 9:*/ RET
+    };
+    assertArrayEquals(expected, InstrOptimizer.deadCode(instrs));
+  }
+  @Tag("Q25") @Test
+  public void verifyInvalidJumpTarget() {
+    int[] instrs = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ JUMP_IF_FALSE, 1,
+        /* 4:*/ LOAD, 1,
+        /* 6:*/ RET
+    };
+    assertThrows(IllegalStateException.class, () -> InstrOptimizer.verify(instrs));
+  }
+  @Tag("Q25") @Test
+  public void verifyExecutionGoesBeyondTheLastInstruction() {
+    int[] instrs = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ POP
+    };
+    assertThrows(IllegalStateException.class, () -> InstrOptimizer.verify(instrs));
+  }
+  @Tag("Q25") @Test
+  public void optimizeAnIfWithoutElse() {
+    // function f(a) {
+    //   if (a) { print(a); } else { }
+    // }
+    var dict = new Dictionary();
+    int[] instrs = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ JUMP_IF_FALSE, 10,
+        /* 4:*/ LOAD, 1,
+        /* 6:*/ PRINT,
+        /* 7:*/ POP,
+        /* 8:*/ GOTO, 10,
+        /*10:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /*12:*/ RET
+    };
+    int[] expected = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ JUMP_IF_FALSE, 8,
+        /* 4:*/ LOAD, 1,
+        /* 6:*/ PRINT,
+        /* 7:*/ POP,
+        /* 8:*/ RETURN_CONST, encodeDictObject(UNDEFINED, dict)
+    };
+    assertArrayEquals(expected, InstrOptimizer.optimize(instrs));
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallReusesTheFrame() {
+    // function down(n) {
+    //   if (n == 0) { return 0; } else { return down(n - 1); }
+    // }
+    // print(down(1000000));
+    var dict = new Dictionary();
+    int[] down = {
+        /* 0:*/ LOAD, 1,
+        /* 2:*/ CONST, encodeSmallInt(0),
+        /* 4:*/ JUMP_IF_NE, 8,
+        /* 6:*/ RETURN_CONST, encodeSmallInt(0),
+        /* 8:*/ LOOKUP, encodeDictObject("down", dict),
+        /*10:*/ CONST, encodeDictObject(UNDEFINED, dict),
+        /*12:*/ LOAD, 1,
+        /*14:*/ CONST, encodeSmallInt(1),
+        /*16:*/ SUB,
+        /*17:*/ TAILCALL, 1,
+        /*19:*/ RET
+    };
+    var downFunction = newFunction("down", new Code(down, 2, 2));
+    int[] instrs = {
+        CONST, encodeDictObject(downFunction, dict),
+        REGISTER, encodeDictObject("down", dict),
+        CONST, encodeDictObject(downFunction, dict),
+        CONST, encodeDictObject(UNDEFINED, dict),
+        CONST, encodeSmallInt(1_000_000),
+        FUNCALL, 1,
+        PRINT,
+        RET
+    };
+    // without the tail call, one million frames do not fit in the maximum stack size
+    assertEquals("0\n", execute(new Code(instrs, 1, 1), dict, Options.DEFAULT.withTailCalls(true)));
+    assertEquals(TAILCALL_CODE, down[17]);
+  }
+
 /*
 	@Tag("Q18") @Test
 	public void Swap() {
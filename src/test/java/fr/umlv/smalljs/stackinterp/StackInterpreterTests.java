@@ -1,26 +1,47 @@
 package fr.umlv.smalljs.stackinterp;
 
+import fr.umlv.smalljs.ast.ConstantFolder;
+import fr.umlv.smalljs.ast.Expr.Folded;
+import fr.umlv.smalljs.ast.Expr.FunCall;
+import fr.umlv.smalljs.ast.Script;
+import fr.umlv.smalljs.regvm.RegInterpreter;
 import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("static-method")
 public class StackInterpreterTests {
   private static String execute(String code) {
+    return execute(code, Options.DEFAULT);
+  }
+  private static String execute(String code, Options options) {
     var script = createScript(new StringReader(code));
     var outStream = new ByteArrayOutputStream(8192);
-    StackInterpreter.interpret(script, new PrintStream(outStream, false, UTF_8));
+    StackInterpreter.interpret(script, new PrintStream(outStream, false, UTF_8), options);
     return outStream.toString(UTF_8).replace("\r\n", "\n");
   }
 
@@ -239,6 +260,21 @@ public class StackInterpreterTests {
             print(f(7));
             """));
   }
+  @Tag("Q11") @Test
+  public void callAUserDefinedFunctionWithAGreaterOrEqualTest() {
+    assertEquals("0\n3\n7\n", execute("""
+            function f(x) {
+                if (x >= 3) {
+                  return x;
+                } else {
+                  return 0;
+                }
+            }
+            print(f(2));
+            print(f(3));
+            print(f(7));
+            """));
+  }
 
   @Tag("Q12") @Test
   public void callFibo() {
@@ -395,4 +431,808 @@ public class StackInterpreterTests {
                 object.foo(42);
                 """));
   }
+
+  @Tag("Q18") @Test
+  public void callDeepRecursionGrowsTheStack() {
+    assertEquals("5050\n", execute("""
+            function sum(n) {
+              if (n == 0) {
+                return 0;
+              } else {
+                return n + sum(n - 1);
+              }
+            }
+            print(sum(100));
+            """, Options.DEFAULT.withStackSize(96, 1 << 16)));
+  }
+
+  @Tag("Q18") @Test
+  public void callInfiniteRecursionIsAStackOverflow() {
+    var failure = assertThrows(Failure.class, () -> execute("""
+            function f(n) {
+              return f(n);
+            }
+            f(0);
+            """, Options.DEFAULT.withStackSize(96, 1024)));
+    assertEquals("stack overflow", failure.getMessage());
+  }
+
+  @Tag("Q22") @Test
+  public void objectFieldAccessOnDifferentClasses() {
+    assertEquals(
+        "1\n4\n1\nundefined\n",
+        execute("""
+                function getX(o) {
+                  return o.x;
+                }
+                var a = { x: 1, y: 2 };
+                var b = { y: 3, x: 4 };
+                var c = { y: 5 };
+                print(getX(a));
+                print(getX(b));
+                print(getX(a));
+                print(getX(c));
+                """));
+  }
+
+  @Tag("Q22") @Test
+  public void objectFieldAssignmentOnDifferentClasses() {
+    assertEquals(
+        "10 2\n3 20\n",
+        execute("""
+                function setX(o, value) {
+                  o.x = value;
+                }
+                var a = { x: 1, y: 2 };
+                var b = { y: 3, x: 4 };
+                setX(a, 10);
+                setX(b, 20);
+                print(a.x, a.y);
+                print(b.y, b.x);
+                """));
+  }
+
+  @Tag("Q22") @Test
+  public void objectFieldAssignmentInvalidField() {
+    var failure = assertThrows(Failure.class, () -> execute("""
+            function setX(o, value) {
+              o.x = value;
+            }
+            setX({ x: 1 }, 2);
+            setX({ y: 1 }, 2);
+            """));
+    assertEquals("invalid field x", failure.getMessage());
+  }
+
+  @Tag("Q23") @Test
+  public void callAFunctionRedefinedAfterTheFirstCall() {
+    assertEquals(
+        "1\n2\n",
+        execute("""
+                function f() {
+                  return 1;
+                }
+                function g() {
+                  return f();
+                }
+                print(g());
+                function f() {
+                  return 2;
+                }
+                print(g());
+                """));
+  }
+
+  @Tag("Q26") @Test
+  public void constantFolding() {
+    var globalEnv = StackInterpreter.createGlobalEnv(System.out);
+    var script = ConstantFolder.fold(createScript(new StringReader("print(1 + 2 * 3, 'a' < 'b', 0 - 4);\n")), globalEnv);
+    var call = (FunCall) script.body().instrs().get(0);
+    assertEquals(List.of(7, 1, -4), call.args().stream().map(arg -> ((Folded) arg).value()).toList());
+    assertEquals(Set.of("+", "*"), ((Folded) call.args().get(0)).operators().keySet());
+  }
+
+  @Tag("Q26") @Test
+  public void constantFoldingRedefineAFoldedOperator() {
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
+    var script = ConstantFolder.fold(createScript(new StringReader("""
+            function f() {
+              return 1 + 2 * 3;
+            }
+            print(f());
+            """)), globalEnv);
+    var dict = new Dictionary();
+    var main = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict);
+    StackInterpreter.execute(main, dict, globalEnv);
+    globalEnv.register("*", JSObject.newFunction("*", (receiver, args) -> 0));
+    StackInterpreter.execute(main, dict, globalEnv);
+    ThreadedInterpreter.execute(main, dict, globalEnv);
+    assertEquals("7\n1\n1\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+  }
+
+  @Tag("Q26") @Test
+  public void constantFoldingDoesNotFoldAnError() {
+    assertThrows(ArithmeticException.class, () -> execute("""
+            function f() {
+              return 1 / 0;
+            }
+            print("before");
+            f();
+            """));
+  }
+
+  @Tag("Q26") @Test
+  public void constantFoldingAnErrorFailsAtTheSamePoint() {
+    var code = """
+        print("before");
+        print(1 / 0);
+        print("after");
+        """;
+    var body = ConstantFolder.fold(createScript(new StringReader(code)).body(), StackInterpreter.createGlobalEnv(System.out));
+    var call = (FunCall) body.instrs().get(1);
+    assertTrue(call.args().get(0) instanceof FunCall);
+    for (var interpreter : List.<ScriptInterpreter>of(StackInterpreter::interpret, ThreadedInterpreter::interpret, RegInterpreter::interpret)) {
+      var outStream = new ByteArrayOutputStream(8192);
+      var script = createScript(new StringReader(code));
+      assertThrows(ArithmeticException.class,
+          () -> interpreter.interpret(script, new PrintStream(outStream, false, UTF_8), Options.DEFAULT));
+      assertEquals("before\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+    }
+  }
+
+  @FunctionalInterface
+  private interface ScriptInterpreter {
+    void interpret(Script script, PrintStream outStream, Options options);
+  }
+
+  private static String executeThreaded(String code, Options options) {
+    var script = createScript(new StringReader(code));
+    var outStream = new ByteArrayOutputStream(8192);
+    ThreadedInterpreter.interpret(script, new PrintStream(outStream, false, UTF_8), options);
+    return outStream.toString(UTF_8).replace("\r\n", "\n");
+  }
+
+  @Tag("Q28") @Test
+  public void threadedCallAndOperators() {
+    assertEquals("89\n1\n", executeThreaded("""
+            function fibo(n) {
+              if (n < 2) {
+                return 1;
+              } else {
+                return fibo(n - 1) + fibo(n - 2);
+              }
+            }
+            print(fibo(10));
+            function compare(a, b) {
+              return a < b;
+            }
+            print(compare("hello", "world"));
+            """, Options.DEFAULT));
+  }
+
+  @Tag("Q28") @Test
+  public void threadedObjectsAndMethodCalls() {
+    assertEquals("1 2\n3\nundefined\n", executeThreaded("""
+            var o = {
+              x: 1,
+              y: 2,
+              print: function () {
+                print(this.x, this.y);
+              }
+            };
+            o.print();
+            o.x = 3;
+            print(o.x);
+            print(o.z);
+            """, Options.DEFAULT));
+  }
+
+  @Tag("Q28") @Test
+  public void threadedGCAndStackGrowth() {
+    assertEquals("5050\n", executeThreaded("""
+            function sum(n) {
+              if (n == 0) {
+                return 0;
+              } else {
+                var o = { value: n };
+                return o.value + sum(n - 1);
+              }
+            }
+            print(sum(100));
+            """, Options.DEFAULT.withStackSize(96, 1 << 16).withHeapSize(96, 1 << 16)));
+  }
+
+  @Tag("Q28") @Test
+  public void threadedGenerationalHeap() {
+    assertEquals("100\n", executeThreaded("""
+            function makeList(n) {
+              if (n == 0) {
+                return undefined;
+              } else {
+                return { value: n, next: makeList(n - 1) };
+              }
+            }
+            function loop(n, sum) {
+              if (n == 0) {
+                return sum;
+              } else {
+                var list = makeList(10);
+                return loop(n - 1, sum + list.next.value - 8);
+              }
+            }
+            print(loop(100, 0));
+            """, Options.DEFAULT.withStackSize(96, 1 << 16).withHeapSize(64, 1 << 16).withNurserySize(32)));
+  }
+
+  @Tag("Q28") @Test
+  public void threadedSnapshotAfterAnExecution() throws IOException {
+    var path = Files.createTempFile("smalljs", ".snapshot");
+    try {
+      var script = createScript(new StringReader("""
+              function answer() {
+                return 42;
+              }
+              print(answer());
+              """));
+      var state = StackInterpreter.compile(script, new PrintStream(OutputStream.nullOutputStream()));
+      ThreadedInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+      // the decoded handlers are not constants of the dictionary
+      for (var i = 0; i < state.dict().size(); i++) {
+        assertFalse(state.dict().getConst(i).getClass().isArray());
+      }
+      Snapshot.save(path, state);
+      var restored = Snapshot.restore(path, System.out);
+      var answer = (JSObject) restored.globalEnv().lookup("answer");
+      assertEquals(42, ThreadedInterpreter.execute(answer, restored.dict(), restored.globalEnv()));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Tag("Q28") @Test
+  public void threadedRedefineAFunction() {
+    assertEquals("1\n1\n1\n2\n", executeThreaded("""
+            function f() {
+              return 1;
+            }
+            function g() {
+              return f();
+            }
+            print(g());
+            print(g());
+            print(g());
+            function f() {
+              return 2;
+            }
+            print(g());
+            """, Options.DEFAULT));
+  }
+
+  @Tag("Q31") @Test
+  public void generationalHeap() {
+    assertEquals("100\n", execute("""
+            function makeList(n) {
+              if (n == 0) {
+                return undefined;
+              } else {
+                return { value: n, next: makeList(n - 1) };
+              }
+            }
+            function loop(n, sum) {
+              if (n == 0) {
+                return sum;
+              } else {
+                var list = makeList(10);
+                return loop(n - 1, sum + list.next.value - 8);
+              }
+            }
+            print(loop(100, 0));
+            """, Options.DEFAULT.withStackSize(96, 1 << 16).withHeapSize(64, 1 << 16).withNurserySize(32)));
+  }
+
+  @Tag("Q31") @Test
+  public void generationalHeapOldObjectReferencesAYoungObject() {
+    assertEquals("42\n", execute("""
+            function churn(n) {
+              if (n == 0) {
+                return 0;
+              } else {
+                var o = { value: n };
+                return churn(n - 1);
+              }
+            }
+            var holder = { value: 0 };
+            churn(10);
+            holder.value = { value: 42 };
+            churn(10);
+            print(holder.value.value);
+            """, Options.DEFAULT.withHeapSize(64, 1 << 16).withNurserySize(16)));
+  }
+
+  @Tag("Q31") @Test
+  public void generationalHeapObjectBiggerThanTheNursery() {
+    assertEquals("1 5\n", execute("""
+            var o = { a: 1, b: 2, c: 3, d: 4, e: 5 };
+            var p = { a: o, b: 2, c: 3, d: 4, e: 5 };
+            print(p.a.a, p.e);
+            """, Options.DEFAULT.withHeapSize(64, 1 << 16).withNurserySize(4)));
+  }
+
+  @Tag("Q31") @Test
+  public void generationalHeapOutOfMemory() {
+    assertThrows(Failure.class, () -> execute("""
+            function makeList(n) {
+              if (n == 0) {
+                return undefined;
+              } else {
+                return { value: n, next: makeList(n - 1) };
+              }
+            }
+            makeList(100);
+            """, Options.DEFAULT.withStackSize(96, 1 << 16).withHeapSize(64, 128).withNurserySize(32)));
+  }
+
+  @Tag("Q31") @Test
+  public void invalidNurserySize() {
+    assertThrows(IllegalArgumentException.class, () -> Options.DEFAULT.withHeapSize(64, 128).withNurserySize(65));
+  }
+
+  private static String snapshotAndRestore(String code) throws IOException {
+    var path = Files.createTempFile("smalljs", ".snapshot");
+    try {
+      var script = createScript(new StringReader(code));
+      Snapshot.save(path, StackInterpreter.compile(script, new PrintStream(OutputStream.nullOutputStream())));
+      var outStream = new ByteArrayOutputStream(8192);
+      var state = Snapshot.restore(path, new PrintStream(outStream, false, UTF_8));
+      StackInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+      return outStream.toString(UTF_8).replace("\r\n", "\n");
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Tag("Q32") @Test
+  public void snapshotAndRestore() throws IOException {
+    assertEquals("hello 2000000000 3\n55\n", snapshotAndRestore("""
+            function fibo(n) {
+              if (n < 2) {
+                return n;
+              } else {
+                return fibo(n - 1) + fibo(n - 2);
+              }
+            }
+            var point = { x: 1, y: 2 };
+            print("hello", 2000000000, point.x + point.y);
+            print(fibo(10));
+            """));
+  }
+
+  @Tag("Q32") @Test
+  public void snapshotAndRestoreMethodCalls() throws IOException {
+    assertEquals("1 2\n", snapshotAndRestore("""
+            var o = {
+              x: 1,
+              y: 2,
+              print: function () {
+                print(this.x, this.y);
+              }
+            };
+            o.print();
+            """));
+  }
+
+  @Tag("Q32") @Test
+  public void snapshotAfterAnExecution() throws IOException {
+    var path = Files.createTempFile("smalljs", ".snapshot");
+    try {
+      var script = createScript(new StringReader("""
+              function answer() {
+                print("answer");
+                return 42;
+              }
+              print(answer());
+              """));
+      var state = StackInterpreter.compile(script, new PrintStream(OutputStream.nullOutputStream()));
+      StackInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+      Snapshot.save(path, state);
+
+      // the restored global environment already contains the functions of the script
+      var outStream = new ByteArrayOutputStream(8192);
+      var restored = Snapshot.restore(path, new PrintStream(outStream, false, UTF_8));
+      var answer = (JSObject) restored.globalEnv().lookup("answer");
+      assertEquals(42, StackInterpreter.execute(answer, restored.dict(), restored.globalEnv()));
+      assertEquals("answer\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Tag("Q32") @Test
+  public void restoreAnInvalidSnapshot() throws IOException {
+    var path = Files.createTempFile("smalljs", ".snapshot");
+    try {
+      Files.writeString(path, "not a snapshot");
+      assertThrows(IOException.class, () -> Snapshot.restore(path, System.out));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  private static String executeWithCache(CodeCache cache, String code) throws IOException {
+    var outStream = new ByteArrayOutputStream(8192);
+    var state = cache.load(code, new PrintStream(outStream, false, UTF_8));
+    StackInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+    return outStream.toString(UTF_8).replace("\r\n", "\n");
+  }
+
+  private static void deleteAll(Path directory) throws IOException {
+    try (var stream = Files.list(directory)) {
+      for (var path : stream.toList()) {
+        Files.delete(path);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  @Tag("Q33") @Test
+  public void codeCacheMissThenHit() throws IOException {
+    var directory = Files.createTempDirectory("smalljs-cache");
+    try {
+      var cache = new CodeCache(directory);
+      var code = """
+          function fibo(n) {
+            if (n < 2) {
+              return n;
+            } else {
+              return fibo(n - 1) + fibo(n - 2);
+            }
+          }
+          print(fibo(10));
+          """;
+      assertEquals("55\n", executeWithCache(cache, code));
+      assertTrue(Files.exists(directory.resolve(CodeCache.key(code))));
+      assertEquals("55\n", executeWithCache(cache, code));
+      try (var stream = Files.list(directory)) {
+        assertEquals(1, stream.count());
+      }
+    } finally {
+      deleteAll(directory);
+    }
+  }
+
+  @Tag("Q33") @Test
+  public void codeCacheKeyDependsOnTheSource() {
+    assertEquals(CodeCache.key("print(1);"), CodeCache.key("print(1);"));
+    assertFalse(CodeCache.key("print(1);").equals(CodeCache.key("print(2);")));
+  }
+
+  @Tag("Q33") @Test
+  public void codeCacheCorruptedEntry() throws IOException {
+    var directory = Files.createTempDirectory("smalljs-cache");
+    try {
+      var code = "print('hello');";
+      Files.writeString(directory.resolve(CodeCache.key(code)), "not a snapshot");
+      assertEquals("hello\n", executeWithCache(new CodeCache(directory), code));
+    } finally {
+      deleteAll(directory);
+    }
+  }
+
+  @Tag("Q33") @Test
+  public void codeCacheTruncatedEntry() throws IOException {
+    var directory = Files.createTempDirectory("smalljs-cache");
+    try {
+      var cache = new CodeCache(directory);
+      var code = """
+          function f(a) {
+            return a + 1;
+          }
+          print(f(41));
+          """;
+      assertEquals("42\n", executeWithCache(cache, code));
+      var path = directory.resolve(CodeCache.key(code));
+      var bytes = Files.readAllBytes(path);
+      for (var length : new int[] { bytes.length / 2, bytes.length - 1 }) {
+        Files.write(path, Arrays.copyOf(bytes, length));
+        assertThrows(IOException.class, () -> Snapshot.restore(path, System.out));
+        assertEquals("42\n", executeWithCache(cache, code));
+        assertArrayEquals(bytes, Files.readAllBytes(path));
+      }
+    } finally {
+      deleteAll(directory);
+    }
+  }
+
+  // the functions are registered in the global environment by the execution of main, so they are found in the dictionary
+  private static LazyCode lazyCode(Dictionary dict, String name) {
+    for (var i = 0; i < dict.size(); i++) {
+      if (dict.getConst(i) instanceof JSObject function && function.getName().equals("function " + name)) {
+        return (LazyCode) function.lookup("__code__");
+      }
+    }
+    throw new AssertionError("no function " + name);
+  }
+
+  @Tag("Q33") @Test
+  public void restoredFunctionIsLoadedLazily() throws IOException {
+    var path = Files.createTempFile("smalljs", ".snapshot");
+    try {
+      var script = createScript(new StringReader("""
+              function used() {
+                return 1;
+              }
+              function unused() {
+                return 2;
+              }
+              print(used());
+              """));
+      Snapshot.save(path, StackInterpreter.compile(script, new PrintStream(OutputStream.nullOutputStream())));
+      var state = Snapshot.restore(path, new PrintStream(OutputStream.nullOutputStream()));
+      var used = lazyCode(state.dict(), "used");
+      var unused = lazyCode(state.dict(), "unused");
+      assertFalse(used.isLoaded());
+      StackInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+      assertTrue(used.isLoaded());
+      assertFalse(unused.isLoaded());
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Tag("Q32") @Test
+  public void snapshotDoesNotCompileTheFunctionsNeverCalled() throws IOException {
+    var path = Files.createTempFile("smalljs", ".snapshot");
+    try {
+      var script = createScript(new StringReader("""
+              function point(x, y) {
+                var p = { x: x, y: y, sum: function () { return this.x + this.y; } };
+                p.y = p.y * 2;
+                return p;
+              }
+              function unused() {
+                return 2;
+              }
+              function main2() {
+                var p = point(1 + 2 * 3, 4);
+                if (p.x < 10) {
+                  print("small", p.sum());
+                } else {
+                  print("big");
+                }
+              }
+              """));
+      var state = StackInterpreter.compile(script, new PrintStream(OutputStream.nullOutputStream()));
+      Snapshot.save(path, state);
+      // only main has been compiled, the other functions are saved as their AST
+      assertFalse(lazyCode(state.dict(), "point").isLoaded());
+      assertFalse(lazyCode(state.dict(), "unused").isLoaded());
+
+      var outStream = new ByteArrayOutputStream(8192);
+      var restored = Snapshot.restore(path, new PrintStream(outStream, false, UTF_8));
+      StackInterpreter.execute(restored.main(), restored.dict(), restored.globalEnv());
+      var main2 = (JSObject) restored.globalEnv().lookup("main2");
+      StackInterpreter.execute(main2, restored.dict(), restored.globalEnv());
+      assertEquals("small 15\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+      assertFalse(lazyCode(restored.dict(), "unused").isLoaded());
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Tag("Q34") @Test
+  public void lazyCompilation() {
+    var script = createScript(new StringReader("""
+            function used() {
+              return 1;
+            }
+            function unused() {
+              return 2;
+            }
+            print(used());
+            """));
+    var outStream = new ByteArrayOutputStream(8192);
+    var state = StackInterpreter.compile(script, new PrintStream(outStream, false, UTF_8));
+    // the functions are constants of main
+    assertTrue(LazyCode.lookupCode(state.main()) instanceof Code);
+    var used = lazyCode(state.dict(), "used");
+    var unused = lazyCode(state.dict(), "unused");
+    assertFalse(used.isLoaded());
+    StackInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+    assertEquals("1\n", outStream.toString(UTF_8).replace("\r\n", "\n"));
+    assertTrue(used.isLoaded());
+    assertFalse(unused.isLoaded());
+  }
+
+  @Tag("Q34") @Test
+  public void lazyCompilationOfANestedFunction() {
+    var script = createScript(new StringReader("""
+            function outer() {
+              var inner = function () {
+                return 3;
+              };
+              return inner();
+            }
+            print("not called");
+            """));
+    var state = StackInterpreter.compile(script, new PrintStream(OutputStream.nullOutputStream()));
+    StackInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+    assertFalse(lazyCode(state.dict(), "outer").isLoaded());
+    // the lambda is created when outer is compiled
+    for (var i = 0; i < state.dict().size(); i++) {
+      if (state.dict().getConst(i) instanceof JSObject function) {
+        assertFalse(function.getName().equals("function lambda"));
+      }
+    }
+  }
+
+  @Tag("Q34") @Test
+  public void lazyCompilationReportsTheErrorsOfAFunctionNeverCalled() {
+    for (var code : List.of("""
+            function neverCalled() {
+              a = 3;
+            }
+            print("not called");
+            """, """
+            function outer() {
+              var inner = function () {
+                a = 3;
+              };
+            }
+            print("not called");
+            """)) {
+      var script = createScript(new StringReader(code));
+      var failure = assertThrows(Failure.class, () -> StackInterpreter.compile(script, new PrintStream(OutputStream.nullOutputStream())));
+      assertEquals("unknown local variable a", failure.getMessage());
+    }
+  }
+
+  @Tag("Q34") @Test
+  public void lazyCompilationLoadsACodeOnlyOnce() throws InterruptedException {
+    var script = createScript(new StringReader("""
+            function f() {
+              var g = function () {
+                return 1;
+              };
+              return g();
+            }
+            """));
+    var state = StackInterpreter.compile(script, new PrintStream(OutputStream.nullOutputStream()));
+    StackInterpreter.execute(state.main(), state.dict(), state.globalEnv());
+    var lazyCode = lazyCode(state.dict(), "f");
+    var codes = new Code[8];
+    var threads = new Thread[codes.length];
+    var latch = new CountDownLatch(1);
+    for (var i = 0; i < threads.length; i++) {
+      var index = i;
+      threads[i] = Thread.ofPlatform().start(() -> {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        codes[index] = lazyCode.load();
+      });
+    }
+    latch.countDown();
+    for (var thread : threads) {
+      thread.join();
+    }
+    for (var code : codes) {
+      assertSame(codes[0], code);
+    }
+    // the lambda is added to the dictionary only once
+    var lambdaCount = 0;
+    for (var i = 0; i < state.dict().size(); i++) {
+      if (state.dict().getConst(i) instanceof JSObject function && function.getName().equals("function lambda")) {
+        lambdaCount++;
+      }
+    }
+    assertEquals(1, lambdaCount);
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallRunsInConstantStackSpace() {
+    var code = """
+        function loop(n, acc) {
+          if (n == 0) {
+            return acc;
+          } else {
+            return loop(n - 1, acc + 1);
+          }
+        }
+        print(loop(100000, 0));
+        """;
+    assertEquals("100000\n", execute(code, Options.DEFAULT.withStackSize(96, 1024).withTailCalls(true)));
+    assertEquals("100000\n", executeThreaded(code, Options.DEFAULT.withStackSize(96, 1024).withTailCalls(true)));
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallOfAMillionCalls() {
+    var code = """
+        function down(n) {
+          if (n == 0) {
+            return "done";
+          } else {
+            return down(n - 1);
+          }
+        }
+        print(down(1000000));
+        """;
+    assertEquals("done\n", execute(code, Options.DEFAULT.withStackSize(96, 1024).withTailCalls(true)));
+    assertEquals("done\n", executeThreaded(code, Options.DEFAULT.withStackSize(96, 1024).withTailCalls(true)));
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallsAreDisabledByDefault() {
+    var code = """
+        function down(n) {
+          if (n == 0) {
+            return "done";
+          } else {
+            return down(n - 1);
+          }
+        }
+        print(down(1000000));
+        """;
+    var failure = assertThrows(Failure.class, () -> execute(code, Options.DEFAULT.withStackSize(96, 1024)));
+    assertEquals("stack overflow", failure.getMessage());
+    var threadedFailure = assertThrows(Failure.class, () -> executeThreaded(code, Options.DEFAULT.withStackSize(96, 1024)));
+    assertEquals("stack overflow", threadedFailure.getMessage());
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallMutualRecursion() {
+    var code = """
+        function isEven(n) {
+          if (n == 0) {
+            return "even";
+          } else {
+            return isOdd(n - 1);
+          }
+        }
+        function isOdd(n) {
+          if (n == 0) {
+            return "odd";
+          } else {
+            return isEven(n - 1);
+          }
+        }
+        print(isEven(10001));
+        """;
+    assertEquals("odd\n", execute(code, Options.DEFAULT.withStackSize(96, 1024).withTailCalls(true)));
+    assertEquals("odd\n", executeThreaded(code, Options.DEFAULT.withStackSize(96, 1024).withTailCalls(true)));
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallToAMethodAndToANativeFunction() {
+    var code = """
+        var counter = {
+          count: function (n) {
+            if (n == 0) {
+              return print("done");
+            } else {
+              return this.count(n - 1);
+            }
+          }
+        };
+        print(counter.count(10000));
+        """;
+    assertEquals("done\nundefined\n", execute(code, Options.DEFAULT.withStackSize(96, 1024).withTailCalls(true)));
+    assertEquals("done\nundefined\n", executeThreaded(code, Options.DEFAULT.withStackSize(96, 1024).withTailCalls(true)));
+  }
+
+  @Tag("Q35") @Test
+  public void tailCallWithAGenerationalHeap() {
+    assertEquals("500\n", execute("""
+        function loop(n, o) {
+          if (n == 0) {
+            return o.value;
+          } else {
+            return loop(n - 1, { value: o.value + 1, next: o });
+          }
+        }
+        print(loop(500, { value: 0, next: 0 }));
+        """, Options.DEFAULT.withStackSize(96, 1024).withTailCalls(true).withHeapSize(64, 1 << 16).withNurserySize(32)));
+  }
 }